@@ -1,10 +1,13 @@
 package com.csdg1t3.ryverbankapi;
 
+import java.time.Clock;
+import java.time.ZoneId;
 import java.util.*;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Bean;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import javax.annotation.PostConstruct;
@@ -24,10 +27,17 @@ public class RyverbankApiApplication {
         TimeZone.setDefault(TimeZone.getTimeZone("GMT+8"));
     }
     
+    // Clock used to decide whether the market is open, in the application timezone
+    @Bean
+    public Clock clock() {
+        return Clock.system(ZoneId.of("GMT+8"));
+    }
+    
     public static void main(String[] args) {
         ApplicationContext ctx = SpringApplication.run(RyverbankApiApplication.class, args);
         initApplicationData(ctx);
-
+        // Seeding a new database resets the journal, so the order books are only recovered after
+        ctx.getBean(JournalRecovery.class).recover();
     }
 
     public static void initApplicationData(ApplicationContext ctx) {
@@ -39,6 +49,9 @@ public class RyverbankApiApplication {
         PortfolioRepository portfolios = ctx.getBean(PortfolioRepository.class);
         MarketMaker marketMaker = ctx.getBean(MarketMaker.class);
         
+        // Another node of the cluster has already set up the shared database
+        if (users.count() > 0)
+            return;
 
         User admin = new User(null, "admin", "S1234567G", "81756529", "Lalaland 10, Potato's Dream, 10200", "manager_1", encoder.encode("01_manager_01"), "ROLE_MANAGER", true);
         User tstark = new User(null, "Tony Stark", "S8732269I", "81437586", "10880 Malibu Point, 90265", "iamironman", encoder.encode("i<3carmen"), "ROLE_USER", true);
@@ -18,7 +18,8 @@ import com.csdg1t3.ryverbankapi.trade.*;
 @Entity
 public class Account {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "account_seq")
+    @SequenceGenerator(name = "account_seq", sequenceName = "account_seq", allocationSize = 50)
     private Long id;
 
     @ManyToOne
@@ -29,11 +30,12 @@ public class Account {
     @NotNull(message = "Customer should not be null")
     private Long customer_id;
 
+    // Balances are stored in cents, see Price
     @NotNull(message = "Balance should not be null")
-    private Double balance;
+    private Long balance;
 
     @NotNull(message = "Available balance should not be null")
-    private Double available_balance;
+    private Long available_balance;
    
     @OneToMany(mappedBy = "sender", cascade = CascadeType.ALL, orphanRemoval = true)
     @JsonIgnore
@@ -66,8 +68,8 @@ public class Account {
         this.id = id;
         this.cust = customer;
         this.customer_id = customer_id;
-        this.balance = balance;
-        this.available_balance = available_balance;
+        setBalance(balance);
+        setAvailable_balance(available_balance);
     }
 
     public Long getId() { return id; }
@@ -77,9 +79,17 @@ public class Account {
 
     public Long getCustomer_id() { return customer_id; }
 
-    public Double getBalance() { return balance; }
+    public Double getBalance() { return balance == null ? null : Price.fromCents(balance); }
 
-    public Double getAvailable_balance() { return available_balance; }
+    public Double getAvailable_balance() { 
+        return available_balance == null ? null : Price.fromCents(available_balance); 
+    }
+
+    @JsonIgnore
+    public long getBalanceCents() { return balance; }
+
+    @JsonIgnore
+    public long getAvailableBalanceCents() { return available_balance; }
 
     @JsonIgnore
     public List<Transfer> getSentTransfers() { return sentTransfers; }
@@ -96,10 +106,18 @@ public class Account {
 
     public void setCustomerId(Long customer_id) { this.customer_id = customer_id; }
 
-    public void setBalance(Double balance) { this.balance = balance; }
+    public void setBalance(Double balance) { 
+        this.balance = balance == null ? null : Price.toCents(balance); 
+    }
 
     public void setAvailable_balance(Double available_balance) { 
-        this.available_balance = available_balance;
+        this.available_balance = available_balance == null ? null : Price.toCents(available_balance);
+    }
+
+    public void setBalanceCents(long balance) { this.balance = balance; }
+
+    public void setAvailableBalanceCents(long available_balance) { 
+        this.available_balance = available_balance; 
     }
 
     public void setSentTransfers(List<Transfer> sentTransfers) { 
@@ -114,7 +132,7 @@ public class Account {
     @Override
     public String toString() {
         return String.format("Account[id=%d, customerId=%d, balance=%lf, availableBalance=%lf]", 
-        id, cust.getId(), balance, available_balance);
+        id, cust.getId(), getBalance(), getAvailable_balance());
     }
     
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import java.util.Optional;
 import java.util.List;
 
 import org.springframework.http.HttpStatus;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -13,6 +14,8 @@ import org.springframework.web.bind.annotation.RestController;
 
 import com.csdg1t3.ryverbankapi.security.UserAuthenticator;
 import com.csdg1t3.ryverbankapi.user.*;
+import com.csdg1t3.ryverbankapi.trade.Price;
+import com.csdg1t3.ryverbankapi.trade.RiskCache;
 
 /**
  * Controller that manages HTTP requests to "/api/accounts"
@@ -22,13 +25,15 @@ public class AccountController {
     private AccountRepository accountRepo;
     private UserRepository userRepo;
     private TransferRepository transferRepo;
+    private RiskCache risk;
     private UserAuthenticator uAuth;
 
     public AccountController(AccountRepository accountRepo, UserRepository userRepo,
-    TransferRepository transferRepo, UserAuthenticator uAuth) {
+    TransferRepository transferRepo, RiskCache risk, UserAuthenticator uAuth) {
         this.accountRepo = accountRepo;
         this.userRepo = userRepo;
         this.transferRepo = transferRepo;
+        this.risk = risk;
         this.uAuth = uAuth;
     }
     
@@ -142,6 +147,10 @@ public class AccountController {
      * 2. ensure that user sending the request owns the account
      * 3. ensure that the sender has sufficient funds for transfer
      * 
+     * The funds are reserved in the risk cache, so that a transfer cannot spend funds that trades
+     * being accepted at the same time have reserved. Both balances are changed with a relative 
+     * update, so that fills written by the matching threads at the same time are not overwritten.
+     * 
      * @param senderId The account ID that the sender wishes to transfer money out from.
      * @param transfer The transfer to be made
      * @return The transaction created in the database.
@@ -152,6 +161,7 @@ public class AccountController {
      */
     @ResponseStatus(HttpStatus.CREATED)
     @PostMapping("/api/accounts/{account_id}/transactions")
+    @Transactional
     public Transfer createTransfer(@PathVariable (value = "account_id") Long senderId, 
     @RequestBody Transfer transfer) {
         if (transfer.getTo() == transfer.getFrom())
@@ -169,23 +179,23 @@ public class AccountController {
         if (senderAcc.getCustomer_id() != authenticatedUser.getId())
             throw new RoleNotAuthorisedException("You cannot transfer funds from another person's account");
 
-        if (senderAcc.getAvailable_balance() < transfer.getAmount())
+        long amount = Price.toCents(transfer.getAmount());
+        if (!risk.reserveFunds(senderAcc.getId(), amount))
             throw new TransferNotValidException("Insufficient funds in account for transfer");
         transfer.setSender(senderAcc);
 
         Optional<Account> receiver = accountRepo.findById(transfer.getTo());
         if (!receiver.isPresent()) {
+            risk.releaseFunds(senderAcc.getId(), amount);
             throw new AccountNotFoundException(transfer.getTo());
         }
         Account receiverAcc = receiver.get();
         transfer.setReceiver(receiverAcc);
         
-        senderAcc.setAvailable_balance(senderAcc.getAvailable_balance() - transfer.getAmount());
-        senderAcc.setBalance(senderAcc.getBalance() - transfer.getAmount());
-        accountRepo.save(senderAcc);
-        receiverAcc.setAvailable_balance(receiverAcc.getAvailable_balance() + transfer.getAmount());
-        receiverAcc.setBalance(receiverAcc.getBalance() + transfer.getAmount());
-        accountRepo.save(receiverAcc);
+        accountRepo.adjustBalances(senderAcc.getId(), -amount, -amount);
+        accountRepo.adjustBalances(receiverAcc.getId(), amount, amount);
+        risk.settleFunds(senderAcc.getId(), amount);
+        risk.invalidateAccount(receiverAcc.getId());
         
         return transferRepo.save(transfer);
     }
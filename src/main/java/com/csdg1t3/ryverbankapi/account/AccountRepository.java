@@ -1,8 +1,12 @@
 package com.csdg1t3.ryverbankapi.account;
 
 import java.util.Optional;
+import java.util.Collection;
 import java.util.List;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -14,4 +18,54 @@ import org.springframework.stereotype.Repository;
 public interface AccountRepository extends JpaRepository<Account, Long> {
     Optional<Account> findById(Long id);
     List<Account> findByCustId(Long id);
+
+    /**
+     * Releases every reservation of the accounts that have buy trades with one of the given 
+     * statuses, in a single statement. Used when all such trades are closed at once, after which 
+     * nothing remains reserved, so the available balance is reset to the balance.
+     * 
+     * Good-till-date trades that expire after the given time are not closed, so accounts that 
+     * have any are left as they are, and their reservations must be recomputed by the caller.
+     * 
+     * @param statuses The statuses of the buy trades being closed
+     * @param time The current time in milliseconds
+     * @return The number of accounts updated
+     */
+    @Modifying
+    @Query("UPDATE Account a SET a.available_balance = a.balance WHERE a.id IN "
+    + "(SELECT t.account_id FROM Trade t WHERE t.action = 'buy' AND t.account_id <> 0 "
+    + "AND t.status IN :statuses AND (t.expiry IS NULL OR t.expiry <= :time)) "
+    + "AND a.id NOT IN (SELECT t.account_id FROM Trade t WHERE t.action = 'buy' "
+    + "AND t.status IN :statuses AND t.expiry > :time)")
+    int releaseReservations(@Param("statuses") Collection<String> statuses, 
+    @Param("time") long time);
+
+    /**
+     * Adds to the balance and available balance of an account, relative to their current values in
+     * the database, so that concurrent changes to the same account are not lost.
+     * 
+     * @param id The ID of the account
+     * @param balance The amount to add to the balance, in cents
+     * @param available The amount to add to the available balance, in cents
+     * @return The number of accounts updated
+     */
+    @Modifying
+    @Query("UPDATE Account a SET a.balance = a.balance + :balance, "
+    + "a.available_balance = a.available_balance + :available WHERE a.id = :id")
+    int adjustBalances(@Param("id") Long id, @Param("balance") long balance, 
+    @Param("available") long available);
+
+    /**
+     * Takes an amount off the available balance of an account, only if the available balance 
+     * covers it. Used where several processes reserve funds of the same account, so that a 
+     * reservation made against an out-of-date available balance is refused by the database.
+     * 
+     * @param id The ID of the account
+     * @param amount The amount to reserve, in cents
+     * @return The number of accounts updated, i.e. 0 if the funds could not be reserved
+     */
+    @Modifying
+    @Query("UPDATE Account a SET a.available_balance = a.available_balance - :amount "
+    + "WHERE a.id = :id AND a.available_balance >= :amount")
+    int reserveFunds(@Param("id") Long id, @Param("amount") long amount);
 }
\ No newline at end of file
@@ -11,7 +11,8 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 @Entity
 public class Transfer {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "transfer_seq")
+    @SequenceGenerator(name = "transfer_seq", sequenceName = "transfer_seq", allocationSize = 50)
     private Long id;
 
     @ManyToOne
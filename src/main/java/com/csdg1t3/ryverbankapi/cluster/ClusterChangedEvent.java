@@ -0,0 +1,52 @@
+package com.csdg1t3.ryverbankapi.cluster;
+
+import java.util.Objects;
+
+/**
+ * Published when a node joins or leaves the cluster, with the hash rings from before and after the
+ * change, so that the stocks whose owner changed can be handed over
+ */
+public class ClusterChangedEvent {
+    private final HashRing previous;
+    private final HashRing current;
+    private final String localNode;
+
+    /**
+     * Full field constructor for class ClusterChangedEvent
+     * @param previous The ring before the change
+     * @param current The ring after the change
+     * @param localNode The ID of this node
+     */
+    public ClusterChangedEvent(HashRing previous, HashRing current, String localNode) {
+        this.previous = previous;
+        this.current = current;
+        this.localNode = localNode;
+    }
+
+    public HashRing getPrevious() { return previous; }
+
+    public HashRing getCurrent() { return current; }
+
+    /**
+     * Checks whether this node has just become the owner of a stock
+     *
+     * @param symbol The symbol of the stock
+     * @return true if this node owns the stock now, but did not before
+     */
+    public boolean gained(String symbol) {
+        return localNode.equals(current.ownerOf(symbol))
+            && !localNode.equals(previous.ownerOf(symbol));
+    }
+
+    /**
+     * Checks whether this node has just gained or lost a stock
+     *
+     * @param symbol The symbol of the stock
+     * @return true if this node owned the stock before or owns it now, but not both
+     */
+    public boolean moved(String symbol) {
+        return !Objects.equals(previous.ownerOf(symbol), current.ownerOf(symbol))
+            && (localNode.equals(previous.ownerOf(symbol))
+            || localNode.equals(current.ownerOf(symbol)));
+    }
+}
@@ -0,0 +1,197 @@
+package com.csdg1t3.ryverbankapi.cluster;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Tracks the API nodes running on this machine, and which of them owns the order book of each
+ * stock. Nodes find each other through a shared directory, without any coordination service:
+ * every node rewrites a heartbeat file holding its URL at a fixed interval, and a node whose file
+ * has not been rewritten within the timeout is considered to have left. A node that shuts down
+ * cleanly deletes its file, so that the others take over its stocks at once.
+ *
+ * Stocks are assigned to the live nodes by a consistent hash ring. When the set of live nodes
+ * changes, a new ring is built and a ClusterChangedEvent is published. The node with the lowest
+ * ID is the leader, which runs the jobs that must only run once for the whole market.
+ *
+ * When the cluster is disabled, this node owns every stock and is the leader.
+ */
+@Component
+public class ClusterMembership {
+    private static final Logger log = LoggerFactory.getLogger(ClusterMembership.class);
+    private static final String SUFFIX = ".node";
+
+    private ApplicationEventPublisher events;
+    private final boolean enabled;
+    private final String nodeId;
+    private final String url;
+    private final Path dir;
+    private final long timeoutMs;
+    private final int virtualNodes;
+
+    private volatile HashRing ring;
+    private volatile Map<String, String> urls = Collections.emptyMap();
+
+    public ClusterMembership(ApplicationEventPublisher events,
+    @Value("${ryverbank.cluster.enabled:false}") boolean enabled,
+    @Value("${ryverbank.cluster.node-id:}") String nodeId,
+    @Value("${ryverbank.cluster.url:http://localhost:8080}") String url,
+    @Value("${ryverbank.cluster.path:./data/cluster}") String dir,
+    @Value("${ryverbank.cluster.timeout-ms:3000}") long timeoutMs,
+    @Value("${ryverbank.cluster.virtual-nodes:64}") int virtualNodes) {
+        this.events = events;
+        this.enabled = enabled;
+        // The ID names the node's heartbeat file, so one derived from the URL must be a file name
+        this.nodeId = nodeId == null || nodeId.isEmpty() 
+            ? url.replaceAll("[^A-Za-z0-9._-]", "_") : nodeId;
+        this.url = url;
+        this.dir = Paths.get(dir).toAbsolutePath();
+        this.timeoutMs = timeoutMs;
+        this.virtualNodes = Math.max(virtualNodes, 1);
+        this.ring = new HashRing(Collections.singleton(this.nodeId), this.virtualNodes);
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    public String getNodeId() { return nodeId; }
+
+    public String getUrl() { return url; }
+
+    /**
+     * Retrieves the IDs of the live nodes
+     *
+     * @return The IDs, in ascending order
+     */
+    public SortedSet<String> getNodes() { return ring.getNodes(); }
+
+    /**
+     * Retrieves the node that owns a stock
+     *
+     * @param symbol The symbol of the stock
+     * @return The ID of the owning node
+     */
+    public String ownerOf(String symbol) {
+        return enabled ? ring.ownerOf(symbol) : nodeId;
+    }
+
+    /**
+     * Checks whether this node owns a stock, i.e. whether it may match its trades
+     *
+     * @param symbol The symbol of the stock
+     * @return true if this node owns the stock
+     */
+    public boolean isLocal(String symbol) {
+        return nodeId.equals(ownerOf(symbol));
+    }
+
+    /**
+     * Checks whether this node is the leader of the cluster
+     *
+     * @return true if this node has the lowest ID of the live nodes
+     */
+    public boolean isLeader() {
+        return !enabled || nodeId.equals(ring.getNodes().first());
+    }
+
+    /**
+     * Retrieves the URL that a node serves requests on
+     *
+     * @param node The ID of the node
+     * @return The base URL of the node, or null if it is not live
+     */
+    public String urlOf(String node) {
+        return nodeId.equals(node) ? url : urls.get(node);
+    }
+
+    /**
+     * Writes the first heartbeat and reads those of the nodes already running, so that ownership
+     * is known before any request is served
+     */
+    @PostConstruct
+    public void join() {
+        if (!enabled)
+            return;
+        HashRing joined = exchangeHeartbeats();
+        if (joined != null)
+            ring = joined;
+        log.info("Joined cluster as " + nodeId + " with nodes " + ring.getNodes());
+    }
+
+    /**
+     * Rewrites this node's heartbeat and reads those of the other nodes. If a node has joined or
+     * left since the previous heartbeat, the ring is rebuilt and a ClusterChangedEvent published.
+     */
+    @Scheduled(fixedDelayString = "${ryverbank.cluster.heartbeat-ms:1000}")
+    public void heartbeat() {
+        if (!enabled)
+            return;
+        HashRing current = exchangeHeartbeats();
+        if (current == null || current.getNodes().equals(ring.getNodes()))
+            return;
+
+        HashRing previous = ring;
+        ring = current;
+        log.info("Cluster nodes changed from " + previous.getNodes() + " to " + current.getNodes());
+        events.publishEvent(new ClusterChangedEvent(previous, current, nodeId));
+    }
+
+    @PreDestroy
+    public void leave() {
+        if (!enabled)
+            return;
+        try {
+            Files.deleteIfExists(dir.resolve(nodeId + SUFFIX));
+        } catch (IOException e) {
+            log.warn("Failed to remove cluster heartbeat of " + nodeId, e);
+        }
+    }
+
+    // Returns the ring of the live nodes, or null if the heartbeats could not be exchanged
+    private HashRing exchangeHeartbeats() {
+        Map<String, String> live = new HashMap<>();
+        live.put(nodeId, url);
+        try {
+            Files.createDirectories(dir);
+            Path temp = dir.resolve(nodeId + SUFFIX + ".tmp");
+            Files.write(temp, url.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, dir.resolve(nodeId + SUFFIX), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+            long now = System.currentTimeMillis();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    String node = name.substring(0, name.length() - SUFFIX.length());
+                    if (live.containsKey(node))
+                        continue;
+                    try {
+                        if (now - Files.getLastModifiedTime(file).toMillis() <= timeoutMs)
+                            live.put(node, new String(Files.readAllBytes(file),
+                                StandardCharsets.UTF_8).trim());
+                    } catch (NoSuchFileException e) {
+                        // The node left while the directory was being read
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to exchange cluster heartbeats", e);
+            return null;
+        }
+
+        urls = live;
+        return new HashRing(live.keySet(), virtualNodes);
+    }
+}
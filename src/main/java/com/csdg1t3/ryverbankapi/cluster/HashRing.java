@@ -0,0 +1,60 @@
+package com.csdg1t3.ryverbankapi.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent hash ring that assigns stock symbols to nodes. Every node is placed on the ring at a
+ * number of virtual points, and a symbol belongs to the first node at or after its own hash, so
+ * that when a node joins or leaves, only the symbols next to its points change owner.
+ *
+ * Rings are immutable; a new ring is built whenever the set of nodes changes.
+ */
+public class HashRing {
+    private final NavigableMap<Long, String> points = new TreeMap<>();
+    private final SortedSet<String> nodes;
+
+    /**
+     * Builds a ring of the given nodes
+     *
+     * @param nodes The IDs of the nodes
+     * @param virtualNodes The number of points of each node on the ring
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableSortedSet(new TreeSet<>(nodes));
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++)
+                points.put(hash(node + "#" + i), node);
+        }
+    }
+
+    public SortedSet<String> getNodes() { return nodes; }
+
+    public boolean isEmpty() { return points.isEmpty(); }
+
+    /**
+     * Retrieves the node that owns a key
+     *
+     * @param key The key, e.g. a stock symbol
+     * @return The ID of the owning node, or null if the ring has no nodes
+     */
+    public String ownerOf(String key) {
+        if (points.isEmpty())
+            return null;
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    // 64-bit FNV-1a, followed by a finalizer that spreads similar keys such as "A#1" and "A#2"
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
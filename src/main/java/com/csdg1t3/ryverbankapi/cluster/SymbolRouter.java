@@ -0,0 +1,360 @@
+package com.csdg1t3.ryverbankapi.cluster;
+
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.*;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.*;
+import java.net.URI;
+import java.util.*;
+
+import com.csdg1t3.ryverbankapi.user.*;
+import com.csdg1t3.ryverbankapi.security.*;
+import com.csdg1t3.ryverbankapi.trade.*;
+
+/**
+ * Forwards requests for "/api/trades" and "/api/stocks" to the node of the cluster that owns
+ * the stock they concern, so that every stock is only matched by one node. A request is handled
+ * by the node that received it if that node owns the stock, or if it does not concern one stock,
+ * e.g. listing the trades of a customer, which any node can read from the shared database.
+ *
+ * - POST /api/trades, GET /api/stocks/{symbol} and DELETE /api/trades?symbol= are forwarded by
+ * their symbol, and PUT /api/trades/{id} by the symbol of the trade.
+ * - A batch of trades is split by owner, each part is sent to its owner, and the results are put
+ * back in the order of the batch.
+ * - Cancelling all of a customer's trades is sent to the owner of each stock they have open
+ * trades in, and the cancelled trades are combined.
+ * - Listing the stocks asks every node, and takes each stock from its owner, as only the owner's
+ * order book has its current bid and ask.
+ *
+ * Forwarded requests carry the client's credentials, and are marked so that the receiving node
+ * handles them itself even if it disagrees about the owner, e.g. while a heartbeat is in flight.
+ * If the owner cannot be reached, the request is handled locally.
+ */
+@Component
+public class SymbolRouter extends OncePerRequestFilter {
+    private static final Logger log = LoggerFactory.getLogger(SymbolRouter.class);
+    static final String FORWARDED = "X-Ryverbank-Forwarded";
+
+    private static final List<String> VALID_STATUSES = Arrays.asList("open", "partial-filled");
+
+    private ClusterMembership cluster;
+    private TradeRepository tradeRepo;
+    private UserAuthenticator uAuth;
+    private ObjectMapper mapper;
+    private final RestTemplate template;
+
+    public SymbolRouter(ClusterMembership cluster, TradeRepository tradeRepo,
+    UserAuthenticator uAuth, ObjectMapper mapper, RestTemplateBuilder builder) {
+        this.cluster = cluster;
+        this.tradeRepo = tradeRepo;
+        this.uAuth = uAuth;
+        this.mapper = mapper;
+        // Error responses of the owner are passed on to the client as they are
+        this.template = builder.errorHandler(new DefaultResponseErrorHandler() {
+            @Override
+            public boolean hasError(ClientHttpResponse response) { return false; }
+        }).build();
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String[] path = request.getServletPath().split("/");
+        return !cluster.isEnabled() || request.getHeader(FORWARDED) != null || path.length < 3
+            || !path[1].equals("api") || !(path[2].equals("trades") || path[2].equals("stocks"));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+    FilterChain chain) throws ServletException, IOException {
+        String method = request.getMethod();
+        String[] path = request.getServletPath().split("/");
+        byte[] body = StreamUtils.copyToByteArray(request.getInputStream());
+        CachedBodyRequest local = new CachedBodyRequest(request, body);
+
+        // path is {"", "api", "trades" or "stocks", ...}
+        boolean trades = path[2].equals("trades");
+        String symbol = null;
+        if (!trades && path.length == 4 && method.equals("GET")) {
+            symbol = path[3];
+        } else if (!trades && path.length == 3 && method.equals("GET")) {
+            gatherStocks(request, response);
+            return;
+        } else if (trades && path.length == 3 && method.equals("POST")) {
+            symbol = readTree(body).path("symbol").asText(null);
+        } else if (trades && path.length == 4 && path[3].equals("batch")
+            && method.equals("POST")) {
+            JsonNode batch = readTree(body);
+            if (batch.isArray() && scatterBatch((ArrayNode) batch, request, response))
+                return;
+        } else if (trades && path.length == 4 && method.equals("PUT")) {
+            symbol = tradeSymbol(path[3]);
+        } else if (trades && path.length == 3 && method.equals("DELETE")) {
+            symbol = request.getParameter("symbol");
+            if (symbol == null && scatterCancel(request, response))
+                return;
+        }
+
+        if (symbol == null || cluster.isLocal(symbol)
+            || !forward(cluster.ownerOf(symbol), request, body, response)) {
+            chain.doFilter(local, response);
+        }
+    }
+
+    // Sends a request on to the owner as it is, returning false if the owner could not be reached
+    private boolean forward(String node, HttpServletRequest request, byte[] body,
+    HttpServletResponse response) throws IOException {
+        String query = request.getQueryString();
+        ResponseEntity<byte[]> result = exchange(node, request,
+            request.getServletPath() + (query == null ? "" : "?" + query), body);
+        if (result == null)
+            return false;
+
+        forwardResult(result, response);
+        return true;
+    }
+
+    /**
+     * Splits a batch of trades by the owner of their stocks, and sends each part to its owner,
+     * including the parts this node owns. The results of each part are given their index in the
+     * whole batch. Every trade of a part whose owner fails is rejected.
+     *
+     * @return false if this node owns every trade, so that the batch is handled locally
+     */
+    private boolean scatterBatch(ArrayNode batch, HttpServletRequest request,
+    HttpServletResponse response) throws IOException {
+        Map<String, List<Integer>> byNode = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            String symbol = batch.get(i).path("symbol").asText(null);
+            String node = symbol == null ? cluster.getNodeId() : cluster.ownerOf(symbol);
+            byNode.computeIfAbsent(node, n -> new ArrayList<>()).add(i);
+        }
+        if (byNode.size() == 1 && byNode.containsKey(cluster.getNodeId()))
+            return false;
+
+        JsonNode[] results = new JsonNode[batch.size()];
+        for (Map.Entry<String, List<Integer>> entry : byNode.entrySet()) {
+            List<Integer> indices = entry.getValue();
+            ArrayNode part = mapper.createArrayNode();
+            for (int i : indices)
+                part.add(batch.get(i));
+
+            ResponseEntity<byte[]> result = exchange(entry.getKey(), request,
+                request.getServletPath(), mapper.writeValueAsBytes(part));
+            JsonNode partResults = result != null && result.getStatusCode().is2xxSuccessful()
+                ? readTree(result.getBody()) : null;
+            for (int j = 0; j < indices.size(); j++) {
+                JsonNode outcome = partResults != null ? partResults.get(j) : null;
+                ObjectNode merged = outcome instanceof ObjectNode ? (ObjectNode) outcome
+                    : mapper.createObjectNode().put("error", "Trade could not be routed to "
+                    + "the node of its stock");
+                results[indices.get(j)] = merged.put("index", indices.get(j));
+            }
+        }
+        writeJson(response, mapper.createArrayNode().addAll(Arrays.asList(results)));
+        return true;
+    }
+
+    /**
+     * Cancels all of a customer's trades by cancelling their trades in each stock on the owner of
+     * that stock, and combines the cancelled trades. The first part that fails is returned as it
+     * is.
+     *
+     * @return false if this node owns every stock concerned, so that the cancellation is handled
+     * locally
+     */
+    private boolean scatterCancel(HttpServletRequest request, HttpServletResponse response)
+    throws IOException {
+        User cust;
+        try {
+            cust = uAuth.getAuthenticatedUser();
+        } catch (NoCredentialsException e) {
+            return false;
+        }
+
+        Set<String> symbols = new TreeSet<>();
+        for (Trade trade : tradeRepo.findByCustomerIdAndStatusIn(cust.getId(), VALID_STATUSES))
+            symbols.add(trade.getSymbol());
+        if (symbols.stream().allMatch(cluster::isLocal))
+            return false;
+
+        String accountId = request.getParameter("account_id");
+        ArrayNode cancelled = mapper.createArrayNode();
+        for (String symbol : symbols) {
+            String target = request.getServletPath() + "?symbol=" + symbol
+                + (accountId == null ? "" : "&account_id=" + accountId);
+            ResponseEntity<byte[]> result = exchange(cluster.ownerOf(symbol), request, target,
+                new byte[0]);
+            if (result == null || !result.getStatusCode().is2xxSuccessful()) {
+                if (result == null)
+                    response.sendError(HttpStatus.BAD_GATEWAY.value(),
+                        "Trades in " + symbol + " could not be cancelled");
+                else
+                    forwardResult(result, response);
+                return true;
+            }
+            JsonNode part = readTree(result.getBody());
+            if (part.isArray())
+                cancelled.addAll((ArrayNode) part);
+        }
+        writeJson(response, cancelled);
+        return true;
+    }
+
+    /**
+     * Lists the stocks by asking every node, and taking each stock from the list of its owner.
+     * Stocks whose owner did not answer are taken from this node's list.
+     */
+    private void gatherStocks(HttpServletRequest request, HttpServletResponse response)
+    throws IOException {
+        Map<String, Map<String, JsonNode>> byNode = new HashMap<>();
+        JsonNode ordered = null;
+        for (String node : cluster.getNodes()) {
+            ResponseEntity<byte[]> result = exchange(node, request, request.getServletPath(),
+                new byte[0]);
+            if (result == null || !result.getStatusCode().is2xxSuccessful())
+                continue;
+            JsonNode stocks = readTree(result.getBody());
+            if (!stocks.isArray())
+                continue;
+
+            Map<String, JsonNode> bySymbol = new HashMap<>();
+            for (JsonNode stock : stocks)
+                bySymbol.put(stock.path("symbol").asText(), stock);
+            byNode.put(node, bySymbol);
+            if (ordered == null || node.equals(cluster.getNodeId()))
+                ordered = stocks;
+        }
+        if (ordered == null) {
+            response.sendError(HttpStatus.BAD_GATEWAY.value(), "No node could list the stocks");
+            return;
+        }
+
+        ArrayNode merged = mapper.createArrayNode();
+        for (JsonNode stock : ordered) {
+            Map<String, JsonNode> owner = byNode.get(cluster.ownerOf(stock.path("symbol").asText()));
+            JsonNode fromOwner = owner == null ? null : owner.get(stock.path("symbol").asText());
+            merged.add(fromOwner != null ? fromOwner : stock);
+        }
+        writeJson(response, merged);
+    }
+
+    // Returns null if the node could not be reached
+    private ResponseEntity<byte[]> exchange(String node, HttpServletRequest request,
+    String target, byte[] body) {
+        String url = cluster.urlOf(node);
+        if (url == null)
+            return null;
+
+        HttpHeaders headers = new HttpHeaders();
+        for (String name : Arrays.asList(HttpHeaders.AUTHORIZATION, HttpHeaders.CONTENT_TYPE,
+            HttpHeaders.ACCEPT)) {
+            if (request.getHeader(name) != null)
+                headers.set(name, request.getHeader(name));
+        }
+        headers.set(FORWARDED, cluster.getNodeId());
+
+        try {
+            return template.exchange(URI.create(url + target),
+                HttpMethod.resolve(request.getMethod()),
+                new HttpEntity<>(body.length == 0 ? null : body, headers), byte[].class);
+        } catch (ResourceAccessException e) {
+            log.warn("Failed to forward " + request.getMethod() + " " + target + " to " + node, e);
+            return null;
+        }
+    }
+
+    private void forwardResult(ResponseEntity<byte[]> result, HttpServletResponse response)
+    throws IOException {
+        response.setStatus(result.getStatusCodeValue());
+        MediaType type = result.getHeaders().getContentType();
+        if (type != null)
+            response.setContentType(type.toString());
+        if (result.getBody() != null)
+            response.getOutputStream().write(result.getBody());
+    }
+
+    private void writeJson(HttpServletResponse response, JsonNode json) throws IOException {
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        mapper.writeValue(response.getOutputStream(), json);
+    }
+
+    // Malformed bodies are left for the controller to reject
+    private JsonNode readTree(byte[] body) {
+        try {
+            JsonNode json = body == null || body.length == 0 ? null : mapper.readTree(body);
+            return json == null ? mapper.missingNode() : json;
+        } catch (IOException e) {
+            return mapper.missingNode();
+        }
+    }
+
+    private String tradeSymbol(String id) {
+        try {
+            return tradeRepo.findById(Long.valueOf(id)).map(Trade::getSymbol).orElse(null);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Request whose body has already been read by the router, and can be read again by the
+     * controller
+     */
+    private static class CachedBodyRequest extends HttpServletRequestWrapper {
+        private final byte[] body;
+
+        CachedBodyRequest(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream in = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public int read() { return in.read(); }
+
+                @Override
+                public boolean isFinished() { return in.available() == 0; }
+
+                @Override
+                public boolean isReady() { return true; }
+
+                @Override
+                public void setReadListener(ReadListener listener) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            return new BufferedReader(new InputStreamReader(getInputStream()));
+        }
+    }
+}
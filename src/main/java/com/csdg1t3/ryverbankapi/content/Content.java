@@ -9,7 +9,8 @@ import javax.validation.constraints.*;
 @Entity
 public class Content {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "content_seq")
+    @SequenceGenerator(name = "content_seq", sequenceName = "content_seq", allocationSize = 50)
     private Long id;
     @NotNull(message = "Title should not be null")
     private String title;
@@ -62,8 +62,9 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
             .antMatchers(HttpMethod.GET, "/api/stocks", "/api/stocks/*").hasRole("USER")
             // trades
             .antMatchers(HttpMethod.GET, "/api/trades", "/api/trades/*").hasRole("USER")
-            .antMatchers(HttpMethod.POST, "/api/trades").hasRole("USER")
+            .antMatchers(HttpMethod.POST, "/api/trades", "/api/trades/batch").hasRole("USER")
             .antMatchers(HttpMethod.PUT, "/api/trades/*").hasRole("USER")
+            .antMatchers(HttpMethod.DELETE, "/api/trades").hasRole("USER")
             // portfolio
             .antMatchers(HttpMethod.GET, "/api/portfolio").hasRole("USER")
             // reset
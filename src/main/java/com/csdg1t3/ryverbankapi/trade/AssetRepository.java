@@ -1,8 +1,12 @@
 package com.csdg1t3.ryverbankapi.trade;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -16,4 +20,27 @@ public interface AssetRepository extends JpaRepository<Asset, Long>{
     List<Asset> findByPortfolioCustomerId(Long id);
     Optional<Asset> findByPortfolioCustomerIdAndCode(Long id, String symbol);
     void deleteById(Long id);
+
+    /**
+     * Returns the remaining quantity of sell trades with one of the given statuses to the 
+     * available quantity of the assets they were placed against, in a single statement. Used when 
+     * all such trades are closed at once. Good-till-date trades that expire after the given time
+     * are not closed, and keep their reservations.
+     * 
+     * @param statuses The statuses of the sell trades being closed
+     * @param time The current time in milliseconds
+     * @return The number of assets updated
+     */
+    @Modifying
+    @Query("UPDATE Asset a SET a.available_quantity = a.available_quantity + "
+    + "(SELECT COALESCE(SUM(t.quantity - t.filled_quantity), 0) FROM Trade t, Portfolio p "
+    + "WHERE p.id = a.portfolio.id AND t.customer_id = p.customer_id AND t.symbol = a.code "
+    + "AND t.action = 'sell' AND t.account_id <> 0 AND t.status IN :statuses "
+    + "AND (t.expiry IS NULL OR t.expiry <= :time)) "
+    + "WHERE EXISTS (SELECT t FROM Trade t, Portfolio p WHERE p.id = a.portfolio.id "
+    + "AND t.customer_id = p.customer_id AND t.symbol = a.code AND t.action = 'sell' "
+    + "AND t.account_id <> 0 AND t.status IN :statuses "
+    + "AND (t.expiry IS NULL OR t.expiry <= :time))")
+    int releaseReservations(@Param("statuses") Collection<String> statuses, 
+    @Param("time") long time);
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Periodically writes a compact binary snapshot of every resting order, so that a restart only
+ * needs to load the latest snapshot and replay the journal records written after it, rather than
+ * the whole journal or the trade table.
+ *
+ * Each snapshot holds the sequence number of the last journal record it includes, followed by the
+ * resting orders in priority order. Every order carries its remaining quantity and the funds it
+ * still reserves, from which the reserved balance of each account and the available quantity of
+ * each asset are rebuilt. Snapshots are written to a temporary file and then renamed, and end with
+ * a CRC32 checksum, so a snapshot that was only partly written is never loaded.
+ */
+@Component
+public class EngineSnapshotter {
+    private static final Logger log = LoggerFactory.getLogger(EngineSnapshotter.class);
+
+    private static final int MAGIC = 0x52425350;
+    private static final short VERSION = 3;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+
+    private TradeJournal journal;
+    private final Path dir;
+    private final int retain;
+    private long lastSnapshotSeq = -1;
+
+    public EngineSnapshotter(TradeJournal journal,
+    @Value("${ryverbank.snapshot.path:./data/snapshots}") String dir,
+    @Value("${ryverbank.snapshot.retain:2}") int retain) {
+        this.journal = journal;
+        this.dir = Paths.get(dir).toAbsolutePath();
+        this.retain = Math.max(retain, 1);
+    }
+
+    /**
+     * Takes a snapshot at the configured interval, skipping it if nothing has been journalled
+     * since the previous one
+     */
+    @Scheduled(initialDelayString = "${ryverbank.snapshot.interval-ms:60000}",
+    fixedDelayString = "${ryverbank.snapshot.interval-ms:60000}")
+    public void scheduledSnapshot() {
+        if (!journal.isEnabled() || journal.getLastSeq() == lastSnapshotSeq)
+            return;
+
+        try {
+            snapshot();
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Failed to write engine snapshot", e);
+        }
+    }
+
+    /**
+     * Rolls the journal and writes the resting orders at that point to a new snapshot file. Older
+     * snapshots beyond the number to retain are deleted.
+     *
+     * @return The path of the snapshot written
+     * @throws IOException If the snapshot could not be written
+     */
+    public synchronized Path snapshot() throws IOException {
+        RestingOrders state = journal.roll();
+        Files.createDirectories(dir);
+
+        Path target = dir.resolve(PREFIX + state.getLastSeq() + SUFFIX);
+        Path temp = dir.resolve(PREFIX + state.getLastSeq() + SUFFIX + ".tmp");
+        Files.write(temp, encode(state));
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+        lastSnapshotSeq = state.getLastSeq();
+
+        List<Path> snapshots = list();
+        for (int i = 0; i < snapshots.size() - retain; i++)
+            Files.deleteIfExists(snapshots.get(i));
+
+        log.info("Wrote snapshot of " + state.getOrders().size() + " resting trades at journal "
+        + "sequence " + state.getLastSeq());
+        return target;
+    }
+
+    /**
+     * Loads the latest intact snapshot. Snapshots that cannot be read or fail their checksum are
+     * skipped in favour of the one before them.
+     *
+     * @return The resting orders in the latest snapshot, or an empty Optional if there is none
+     */
+    public Optional<RestingOrders> loadLatest() {
+        List<Path> snapshots;
+        try {
+            snapshots = list();
+        } catch (IOException e) {
+            log.error("Failed to list engine snapshots", e);
+            return Optional.empty();
+        }
+
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            try {
+                return Optional.of(decode(Files.readAllBytes(snapshots.get(i))));
+            } catch (IOException e) {
+                log.warn("Skipping unreadable snapshot " + snapshots.get(i) + ": " + e.getMessage());
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Deletes all snapshots, e.g. when the market is initialised from scratch
+     */
+    public synchronized void reset() {
+        try {
+            for (Path snapshot : list())
+                Files.deleteIfExists(snapshot);
+        } catch (IOException e) {
+            log.error("Failed to delete engine snapshots", e);
+        }
+        lastSnapshotSeq = -1;
+    }
+
+    // Lists snapshot files from oldest to newest
+    private List<Path> list() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        if (!Files.isDirectory(dir))
+            return snapshots;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files)
+                snapshots.add(file);
+        }
+        snapshots.sort(Comparator.comparingLong(this::seqOf));
+        return snapshots;
+    }
+
+    private long seqOf(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static byte[] encode(RestingOrders state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(state.getLastSeq());
+        out.writeInt(state.getOrders().size());
+        for (RestingOrders.RestingOrder order : state.getOrders()) {
+            out.writeLong(order.getId());
+            byte[] sym = order.getSymbol().getBytes(StandardCharsets.UTF_8);
+            out.writeShort(sym.length);
+            out.write(sym);
+            out.writeByte(order.getAction().equals("buy") ? 'B' : 'S');
+            out.writeLong(order.getPrice());
+            out.writeLong(order.getCustomerId());
+            out.writeLong(order.getAccountId());
+            out.writeInt(order.getRemaining());
+            out.writeLong(order.getReserved());
+            out.writeLong(order.getExpiry());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int)crc.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static RestingOrders decode(byte[] data) throws IOException {
+        if (data.length < 4)
+            throw new IOException("Snapshot is truncated");
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        in.skipBytes(data.length - 4);
+        if (in.readInt() != (int)crc.getValue())
+            throw new IOException("Snapshot checksum mismatch");
+
+        in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+        if (in.readInt() != MAGIC || in.readShort() != VERSION)
+            throw new IOException("Unknown snapshot format");
+
+        RestingOrders state = new RestingOrders();
+        state.setLastSeq(in.readLong());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            byte[] sym = new byte[in.readShort()];
+            in.readFully(sym);
+            String action = in.readByte() == 'B' ? "buy" : "sell";
+            state.add(new RestingOrders.RestingOrder(id, new String(sym, StandardCharsets.UTF_8),
+            action, in.readLong(), in.readLong(), in.readLong(), in.readInt(), in.readLong(),
+            in.readLong()));
+        }
+        return state;
+    }
+}
@@ -0,0 +1,276 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single event in the trade journal. Every record carries a sequence number and the time it
+ * was written, followed by the fields of its event type:
+ *
+ * - ACCEPTED: a trade entered the matching engine (all order fields are set)
+ * - FILL: a buy and sell trade were filled against each other at a price and quantity
+ * - CANCEL: a trade was cancelled by its owner
+ * - EXPIRE: a trade was expired
+ * - AMEND: the price or quantity of a resting trade was changed
+ * - EXPIRE_ALL: every resting trade except those of the market maker, and good-till-date trades
+ *   expiring later, was expired at once
+ */
+public class JournalRecord {
+    public static final byte ACCEPTED = 1;
+    public static final byte FILL = 2;
+    public static final byte CANCEL = 3;
+    public static final byte EXPIRE = 4;
+    public static final byte AMEND = 5;
+    public static final byte EXPIRE_ALL = 6;
+
+    private byte type;
+    private long seq;
+    private long timestamp;
+
+    private long orderId;
+    private String symbol;
+    private String action;
+    private long price;
+    private int quantity;
+    private long customerId;
+    private long accountId;
+    private long date;
+    private long amtReserved;
+    private long expiry;
+
+    private long buyId;
+    private long sellId;
+
+    private boolean requeue;
+
+    private JournalRecord() {}
+
+    /**
+     * Creates an ACCEPTED record for a trade
+     *
+     * @param trade The trade that entered the matching engine
+     * @return The record to be written
+     */
+    public static JournalRecord accepted(Trade trade) {
+        JournalRecord record = new JournalRecord();
+        record.type = ACCEPTED;
+        record.orderId = trade.getId();
+        record.symbol = trade.getSymbol();
+        record.action = trade.getAction();
+        record.price = trade.getPriceTicks();
+        record.quantity = trade.getQuantity();
+        record.customerId = trade.getCustomer_id();
+        record.accountId = trade.getAccount_id();
+        record.date = trade.getDate();
+        record.amtReserved = trade.getAmtReservedCents();
+        record.expiry = trade.isGoodTillDate() ? trade.getExpiry() : 0;
+        return record;
+    }
+
+    /**
+     * Creates a FILL record for a buy-sell trade pair
+     *
+     * @param buy The buy trade that was filled
+     * @param sell The sell trade that was filled
+     * @param price The price of the fill, in ticks
+     * @param qty The quantity filled
+     * @return The record to be written
+     */
+    public static JournalRecord fill(Trade buy, Trade sell, long price, int qty) {
+        JournalRecord record = new JournalRecord();
+        record.type = FILL;
+        record.symbol = buy.getSymbol();
+        record.buyId = buy.getId();
+        record.sellId = sell.getId();
+        record.price = price;
+        record.quantity = qty;
+        return record;
+    }
+
+    /**
+     * Creates a CANCEL or EXPIRE record for a trade
+     *
+     * @param type Either CANCEL or EXPIRE
+     * @param trade The trade that was cancelled or expired
+     * @return The record to be written
+     */
+    public static JournalRecord closed(byte type, Trade trade) {
+        JournalRecord record = new JournalRecord();
+        record.type = type;
+        record.orderId = trade.getId();
+        record.symbol = trade.getSymbol();
+        return record;
+    }
+
+    /**
+     * Creates an AMEND record for a trade whose price or quantity was changed
+     *
+     * @param trade The trade after it was amended
+     * @param reservedDelta The change in the funds reserved by a buy trade, in cents
+     * @param requeue Whether the trade lost its time priority and moved to the back of its level
+     * @return The record to be written
+     */
+    public static JournalRecord amend(Trade trade, long reservedDelta, boolean requeue) {
+        JournalRecord record = new JournalRecord();
+        record.type = AMEND;
+        record.orderId = trade.getId();
+        record.symbol = trade.getSymbol();
+        record.price = trade.getPriceTicks();
+        record.quantity = trade.getRemaining_quantity();
+        record.amtReserved = reservedDelta;
+        record.requeue = requeue;
+        return record;
+    }
+
+    /**
+     * Creates an EXPIRE_ALL record, written when the trades of every stock are expired together
+     *
+     * @return The record to be written
+     */
+    public static JournalRecord expireAll() {
+        JournalRecord record = new JournalRecord();
+        record.type = EXPIRE_ALL;
+        record.symbol = "";
+        return record;
+    }
+
+    public byte getType() { return type; }
+
+    public long getSeq() { return seq; }
+
+    public long getTimestamp() { return timestamp; }
+
+    public long getOrderId() { return orderId; }
+
+    public String getSymbol() { return symbol; }
+
+    public String getAction() { return action; }
+
+    /**
+     * Retrieves the limit price of an ACCEPTED or AMEND record, or the price of a FILL record
+     *
+     * @return The price in ticks
+     */
+    public long getPrice() { return price; }
+
+    public int getQuantity() { return quantity; }
+
+    public long getCustomerId() { return customerId; }
+
+    public long getAccountId() { return accountId; }
+
+    public long getDate() { return date; }
+
+    /**
+     * Retrieves the funds reserved by an ACCEPTED buy trade, or the change in reserved funds of an
+     * AMEND record
+     *
+     * @return The reserved funds in cents
+     */
+    public long getAmtReserved() { return amtReserved; }
+
+    /**
+     * Retrieves the expiry of an ACCEPTED good-till-date trade
+     *
+     * @return The expiry in milliseconds, or 0 for a day trade
+     */
+    public long getExpiry() { return expiry; }
+
+    public boolean isRequeue() { return requeue; }
+
+    public long getBuyId() { return buyId; }
+
+    public long getSellId() { return sellId; }
+
+    void setSeq(long seq) { this.seq = seq; }
+
+    void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+
+    /**
+     * Writes the record, without its length and checksum header, to a buffer
+     *
+     * @param buf The buffer to write to
+     */
+    void writeTo(ByteBuffer buf) {
+        buf.put(type);
+        buf.putLong(seq);
+        buf.putLong(timestamp);
+        byte[] sym = symbol.getBytes(StandardCharsets.UTF_8);
+        buf.putShort((short)sym.length);
+        buf.put(sym);
+        switch (type) {
+            case ACCEPTED:
+                buf.put((byte)(action.equals("buy") ? 'B' : 'S'));
+                buf.putLong(orderId);
+                buf.putLong(price);
+                buf.putInt(quantity);
+                buf.putLong(customerId);
+                buf.putLong(accountId);
+                buf.putLong(date);
+                buf.putLong(amtReserved);
+                buf.putLong(expiry);
+                break;
+            case FILL:
+                buf.putLong(buyId);
+                buf.putLong(sellId);
+                buf.putLong(price);
+                buf.putInt(quantity);
+                break;
+            case AMEND:
+                buf.putLong(orderId);
+                buf.putLong(price);
+                buf.putInt(quantity);
+                buf.putLong(amtReserved);
+                buf.put((byte)(requeue ? 1 : 0));
+                break;
+            default:
+                buf.putLong(orderId);
+        }
+    }
+
+    /**
+     * Reads a record written by writeTo()
+     *
+     * @param buf The buffer to read from
+     * @return The record read
+     */
+    static JournalRecord readFrom(ByteBuffer buf) {
+        JournalRecord record = new JournalRecord();
+        record.type = buf.get();
+        record.seq = buf.getLong();
+        record.timestamp = buf.getLong();
+        byte[] sym = new byte[buf.getShort()];
+        buf.get(sym);
+        record.symbol = new String(sym, StandardCharsets.UTF_8);
+        switch (record.type) {
+            case ACCEPTED:
+                record.action = buf.get() == 'B' ? "buy" : "sell";
+                record.orderId = buf.getLong();
+                record.price = buf.getLong();
+                record.quantity = buf.getInt();
+                record.customerId = buf.getLong();
+                record.accountId = buf.getLong();
+                record.date = buf.getLong();
+                record.amtReserved = buf.getLong();
+                // Records written before good-till-date trades end here
+                record.expiry = buf.remaining() >= Long.BYTES ? buf.getLong() : 0;
+                break;
+            case FILL:
+                record.buyId = buf.getLong();
+                record.sellId = buf.getLong();
+                record.price = buf.getLong();
+                record.quantity = buf.getInt();
+                break;
+            case AMEND:
+                record.orderId = buf.getLong();
+                record.price = buf.getLong();
+                record.quantity = buf.getInt();
+                record.amtReserved = buf.getLong();
+                record.requeue = buf.get() == 1;
+                break;
+            default:
+                record.orderId = buf.getLong();
+        }
+        return record;
+    }
+}
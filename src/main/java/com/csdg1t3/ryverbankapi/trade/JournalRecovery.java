@@ -0,0 +1,176 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+import com.csdg1t3.ryverbankapi.account.*;
+import com.csdg1t3.ryverbankapi.cluster.*;
+
+/**
+ * Rebuilds the order books and reservations from the trade journal when the application starts.
+ *
+ * Recovery starts from the latest engine snapshot, if there is one, and replays only the journal
+ * records written after it, so the time taken does not grow with the trade history. This yields
+ * the resting orders in their original priority, together with the funds and assets each of them
+ * still holds. The matching trades are then loaded by ID in a
+ * single query, and each account's available balance and each asset's available quantity is set
+ * to what is left after those reservations.
+ *
+ * Stop trades that have not been triggered are not journaled, as they do not enter an order book.
+ * Their reservations are read from the database instead, and their stop books are loaded on
+ * first use.
+ *
+ * Nothing is recovered on a node of a cluster, as its journal only holds the stocks it owned,
+ * while balances and assets are shared by every node. Its books are loaded from the shared
+ * database on first use instead.
+ *
+ * Nothing is recovered on a hot standby either. When it takes over, the books and reservations
+ * are restored from the resting orders it replicated from the primary instead, and a snapshot is
+ * taken at once, so that a later restart recovers from this process's own journal.
+ */
+@Component
+public class JournalRecovery {
+    private static final Logger log = LoggerFactory.getLogger(JournalRecovery.class);
+    private static final List<String> PENDING_STATUSES = Arrays.asList("pending");
+
+    private TradeJournal journal;
+    private EngineSnapshotter snapshotter;
+    private OrderBookManager orderBooks;
+    private TradeRepository tradeRepo;
+    private AccountRepository accountRepo;
+    private AssetRepository assetRepo;
+    private RiskCache risk;
+    private ClusterMembership cluster;
+    private StandbyFollower standby;
+
+    public JournalRecovery(TradeJournal journal, EngineSnapshotter snapshotter,
+    OrderBookManager orderBooks, TradeRepository tradeRepo, AccountRepository accountRepo,
+    AssetRepository assetRepo, RiskCache risk, ClusterMembership cluster, 
+    StandbyFollower standby) {
+        this.journal = journal;
+        this.snapshotter = snapshotter;
+        this.orderBooks = orderBooks;
+        this.tradeRepo = tradeRepo;
+        this.accountRepo = accountRepo;
+        this.assetRepo = assetRepo;
+        this.risk = risk;
+        this.cluster = cluster;
+        this.standby = standby;
+    }
+
+    /**
+     * Recovers the order books and reservations from the latest snapshot and the journal after it.
+     * This is called by the main method once the application data has been set up, as seeding a
+     * new database resets the journal and would otherwise discard what was recovered.
+     */
+    @Transactional
+    public void recover() {
+        if (!journal.isEnabled() || cluster.isEnabled() || standby.isStandby())
+            return;
+
+        RestingOrders state = snapshotter.loadLatest().orElseGet(RestingOrders::new);
+        journal.replayAfter(state.getLastSeq(), state::apply);
+        journal.restoreState(state);
+        restore(state);
+    }
+
+    /**
+     * Restores the order books and reservations that a standby replicated, when it takes over
+     * from its primary
+     *
+     * @param event The promotion of this process, with the replicated resting orders
+     */
+    @EventListener
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @Transactional
+    public void takeOver(StandbyPromotedEvent event) {
+        RestingOrders state = event.getState();
+        // The primary's sequence numbers do not continue in this process's journal
+        state.setLastSeq(journal.getLastSeq());
+        journal.restoreState(state);
+        restore(state);
+        if (!journal.isEnabled())
+            return;
+
+        try {
+            snapshotter.snapshot();
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Failed to write engine snapshot after taking over", e);
+        }
+    }
+
+    /**
+     * Restores the order books and reservations described by a set of resting orders
+     *
+     * @param state The resting orders to restore
+     */
+    @Transactional
+    public void restore(RestingOrders state) {
+        List<Trade> stops = tradeRepo.findByStatusIn(PENDING_STATUSES);
+        if (state.getOrders().isEmpty() && stops.isEmpty())
+            return;
+
+        List<Long> ids = new ArrayList<>();
+        for (RestingOrders.RestingOrder order : state.getOrders())
+            ids.add(order.getId());
+
+        Map<Long, Trade> trades = new HashMap<>();
+        for (Trade trade : tradeRepo.findAllById(ids))
+            trades.put(trade.getId(), trade);
+
+        Map<String, List<Trade>> bySymbol = new HashMap<>();
+        for (RestingOrders.RestingOrder order : state.getOrders()) {
+            Trade trade = trades.get(order.getId());
+            if (trade != null)
+                bySymbol.computeIfAbsent(order.getSymbol(), s -> new ArrayList<>()).add(trade);
+        }
+        for (Map.Entry<String, List<Trade>> entry : bySymbol.entrySet())
+            orderBooks.restore(entry.getKey(), entry.getValue());
+
+        restoreReservations(state, stops);
+        log.info("Recovered " + trades.size() + " resting trades up to journal sequence "
+        + state.getLastSeq());
+    }
+
+    private void restoreReservations(RestingOrders state, List<Trade> stops) {
+        Map<Long, Long> funds = state.reservedFunds();
+        Map<Long, Map<String, Integer>> assets = state.reservedAssets();
+        for (Trade stop : stops) {
+            if (stop.getAccount_id() == 0)
+                continue;
+            if (stop.getAction().equals("buy"))
+                funds.merge(stop.getAccount_id(), stop.getAmtReservedCents(), Long::sum);
+            else
+                assets.computeIfAbsent(stop.getCustomer_id(), id -> new HashMap<>())
+                    .merge(stop.getSymbol(), stop.getQuantity(), Integer::sum);
+        }
+
+        List<Account> accounts = accountRepo.findAllById(funds.keySet());
+        for (Account acc : accounts)
+            acc.setAvailableBalanceCents(acc.getBalanceCents() - funds.get(acc.getId()));
+        accountRepo.saveAll(accounts);
+
+        List<Asset> toSave = new ArrayList<>();
+        for (Map.Entry<Long, Map<String, Integer>> entry : assets.entrySet()) {
+            for (Asset asset : assetRepo.findByPortfolioCustomerId(entry.getKey())) {
+                Integer reserved = entry.getValue().get(asset.getCode());
+                if (reserved != null) {
+                    asset.setAvailable_quantity(asset.getQuantity() - reserved);
+                    toSave.add(asset);
+                }
+            }
+        }
+        assetRepo.saveAll(toSave);
+        risk.invalidateAll();
+    }
+}
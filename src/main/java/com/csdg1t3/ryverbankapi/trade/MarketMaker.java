@@ -11,6 +11,9 @@ import java.util.Random;
 public class MarketMaker {
     private TradeRepository tradeRepo;
     private StockRepository stockRepo;
+    private OrderBookManager orderBooks;
+    private TradeJournal journal;
+    private EngineSnapshotter snapshotter;
 
     private static final String[] SYMBOLS = 
     {"A17U", "C61U", "C31", "C38U", "C09", "C52", "D01", "D05", "G13", "H78", "C07", "J36", "J37",
@@ -21,21 +24,29 @@ public class MarketMaker {
     {3.23, 1.65, 2.76, 1.91, 7.73, 1.46, 3.80, 21.39, 0.67, 3.76, 17.82, 40.72, 19.77, 4.56, 1.92, 
      3.18, 2.07, 8.74, 3.03, 1.44, 9.20, 3.51, 2.17, 3.59, 0.58, 19.60, 6.79, 20.79, 4.49, 0.97};
 
-    public MarketMaker(TradeRepository tradeRepo, StockRepository stockRepo) {
+    public MarketMaker(TradeRepository tradeRepo, StockRepository stockRepo, 
+    OrderBookManager orderBooks, TradeJournal journal, EngineSnapshotter snapshotter) {
         this.tradeRepo = tradeRepo;
         this.stockRepo = stockRepo;
+        this.orderBooks = orderBooks;
+        this.journal = journal;
+        this.snapshotter = snapshotter;
     }
 
     /**  
      * Market maker function that creates stocks as well as market maker buy and sell bids 
      * given a list of stock symbols.
      * 
-     * This method should be called by the main method during application startup.
+     * This method should be called by the main method during application startup. Existing order
+     * books, the trade journal and engine snapshots are discarded, and will be rebuilt with the 
+     * new market maker trades.
      *
      */
     public void initMarket(){
         int volume = 20000;
         Random random = new Random();
+        journal.reset();
+        snapshotter.reset();
 
         for (int i = 0; i < SYMBOLS.length; i++) {
             Double bid = (LAST_PRICES[i] * 100 - 1 - random.nextInt(20)) / 100;
@@ -65,10 +76,10 @@ public class MarketMaker {
             marketSell.setStatus("open");
             marketSell.setProcessed(false);
 
-            tradeRepo.save(marketBuy);
-            tradeRepo.save(marketSell);
+            journal.orderAccepted(tradeRepo.save(marketBuy));
+            journal.orderAccepted(tradeRepo.save(marketSell));
             stockRepo.save(new Stock(SYMBOLS[i], LAST_PRICES[i], volume, bid, volume, ask));
         }
-        
+        orderBooks.clear();
     }
 }
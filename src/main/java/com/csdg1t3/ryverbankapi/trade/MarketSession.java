@@ -0,0 +1,104 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.*;
+import java.util.*;
+
+/**
+ * Holds the state of the trading session, so that the matching engine does not need to read the
+ * time for every trade. The state is computed from the injected clock when the session is created,
+ * and again at each transition: midnight, the 9am open and the 5pm close (GMT+8).
+ *
+ * - PRE_OPEN: a trading day, before 9am
+ * - OPEN: a trading day, from 9am until 5pm
+ * - CLOSED: a trading day after 5pm, or a weekend
+ * - HOLIDAY: a weekday listed in ryverbank.market.holidays
+ *
+ * Tests and simulations can supply their own clock, e.g. a fixed or accelerated one, and call
+ * refresh() whenever it has moved.
+ */
+@Component
+public class MarketSession {
+    public enum State { PRE_OPEN, OPEN, CLOSED, HOLIDAY }
+
+    private static final LocalTime OPEN_TIME = LocalTime.of(9, 0);
+    private static final LocalTime CLOSE_TIME = LocalTime.of(17, 0);
+
+    private final Clock clock;
+    private final Set<LocalDate> holidays = new HashSet<>();
+    private volatile State state;
+
+    public MarketSession(Clock clock, @Value("${ryverbank.market.holidays:}") String holidays) {
+        this.clock = clock;
+        for (String date : holidays.split(",")) {
+            if (!date.trim().isEmpty())
+                this.holidays.add(LocalDate.parse(date.trim()));
+        }
+        refresh();
+    }
+
+    public State getState() { return state; }
+
+    public boolean isOpen() { return state == State.OPEN; }
+
+    public boolean isHoliday() { return state == State.HOLIDAY; }
+
+    /**
+     * Retrieves the current time of the exchange clock
+     *
+     * @return The current time in milliseconds
+     */
+    public long millis() { return clock.millis(); }
+
+    /**
+     * Opens a pre-open session ahead of the scheduled refresh, so that the open of day does not
+     * depend on which of the 9am jobs runs first. The next refresh recomputes the state from the
+     * clock as usual.
+     */
+    public void open() {
+        if (state == State.PRE_OPEN)
+            state = State.OPEN;
+    }
+
+    /**
+     * Closes an open session ahead of the scheduled refresh, so that the close of day does not
+     * depend on which of the 5pm jobs runs first. The next refresh recomputes the state from the
+     * clock as usual.
+     */
+    public void close() {
+        if (state == State.OPEN)
+            state = State.CLOSED;
+    }
+
+    /**
+     * Recomputes the state of the session from the current time. This runs at every transition.
+     */
+    @Scheduled(cron = "0 0 0,9,17 * * *", zone = "GMT+8")
+    public void refresh() {
+        state = stateAt(ZonedDateTime.now(clock));
+    }
+
+    /**
+     * Computes the state of the session at a given time
+     *
+     * @param time The time, in the timezone of the exchange
+     * @return The state of the session at that time
+     */
+    public State stateAt(ZonedDateTime time) {
+        DayOfWeek day = time.getDayOfWeek();
+        if (day == DayOfWeek.SATURDAY || day == DayOfWeek.SUNDAY)
+            return State.CLOSED;
+        if (holidays.contains(time.toLocalDate()))
+            return State.HOLIDAY;
+
+        LocalTime now = time.toLocalTime();
+        if (now.isBefore(OPEN_TIME))
+            return State.PRE_OPEN;
+        if (now.isBefore(CLOSE_TIME))
+            return State.OPEN;
+        return State.CLOSED;
+    }
+}
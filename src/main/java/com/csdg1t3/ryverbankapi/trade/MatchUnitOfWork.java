@@ -0,0 +1,245 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+import com.csdg1t3.ryverbankapi.account.*;
+
+/**
+ * Collects the entities modified while matching a single incoming trade, so that they are written
+ * together when matching finishes rather than one statement at a time after every fill.
+ *
+ * An entity modified by several fills is only written once. Stocks and portfolios are also read
+ * once per unit of work, instead of once per fill. New transfers and assets are inserted with
+ * saveAll(), which Hibernate sends as JDBC batches (see hibernate.jdbc.batch_size).
+ *
+ * Accounts and portfolios are shared by the trades of every stock, and so may be modified by
+ * several matching threads at once. Their balances and realized gains are therefore never written
+ * as absolute values: changes are added up per account or portfolio, and applied with a relative
+ * update when the unit of work is flushed, so that concurrent changes are merged by the database
+ * instead of overwriting each other.
+ *
+ * Reservations made in memory by the risk cache when trades were accepted are written here as
+ * well. Once the unit of work is committed, the risk cache forgets the balances and assets
+ * changed for any other reason, so that it reads them again.
+ *
+ * Trade journal records are also held back until the transaction of the unit of work commits, so
+ * that the journal never records fills or orders that were rolled back.
+ */
+public class MatchUnitOfWork {
+    private TradeRepository tradeRepo;
+    private AccountRepository accountRepo;
+    private TransferRepository transferRepo;
+    private AssetRepository assetRepo;
+    private PortfolioRepository portfolioRepo;
+    private StockRepository stockRepo;
+    private RiskCache risk;
+    private TradeJournal journal;
+
+    private final Map<Long, Trade> trades = new LinkedHashMap<>();
+    private final Map<Long, Asset> assets = new LinkedHashMap<>();
+    private final Map<String, Stock> stocks = new LinkedHashMap<>();
+    private final List<Transfer> transfers = new ArrayList<>();
+    private final List<Asset> newAssets = new ArrayList<>();
+    private final List<JournalRecord> records = new ArrayList<>();
+
+    // Changes to account balances in cents, as {balance, available balance}
+    private final Map<Long, long[]> balanceChanges = new LinkedHashMap<>();
+    private final Map<Long, Double> realizedGainChanges = new LinkedHashMap<>();
+    // Accounts and assets changed other than by reservations, which the risk cache must forget
+    private final Set<Long> changedAccounts = new HashSet<>();
+    private final Set<Asset> changedAssets = new HashSet<>();
+
+    private final Map<Long, Optional<Portfolio>> portfolioCache = new HashMap<>();
+    private final Map<Long, Trade> tradeCache = new HashMap<>();
+
+    public MatchUnitOfWork(TradeRepository tradeRepo, AccountRepository accountRepo,
+    TransferRepository transferRepo, AssetRepository assetRepo, PortfolioRepository portfolioRepo,
+    StockRepository stockRepo, RiskCache risk, TradeJournal journal) {
+        this.tradeRepo = tradeRepo;
+        this.accountRepo = accountRepo;
+        this.transferRepo = transferRepo;
+        this.assetRepo = assetRepo;
+        this.portfolioRepo = portfolioRepo;
+        this.stockRepo = stockRepo;
+        this.risk = risk;
+        this.journal = journal;
+    }
+
+    public void save(Trade trade) { trades.put(trade.getId(), trade); }
+
+    public void save(Asset asset) { 
+        assets.put(asset.getId(), asset);
+        changedAssets.add(asset);
+    }
+
+    public void save(Stock stock) { stocks.put(stock.getSymbol(), stock); }
+
+    public void save(Transfer transfer) { transfers.add(transfer); }
+
+    /**
+     * Registers a record to be appended to the trade journal once the unit of work is committed
+     *
+     * @param record The record to be appended
+     */
+    public void journal(JournalRecord record) { records.add(record); }
+
+    /**
+     * Registers a change to the balance and available balance of an account. The account itself is
+     * left as it is.
+     *
+     * @param account The account to be changed
+     * @param balance The amount to add to the balance, in cents
+     * @param available The amount to add to the available balance, in cents
+     */
+    public void adjust(Account account, long balance, long available) {
+        long[] change = balanceChanges.computeIfAbsent(account.getId(), id -> new long[2]);
+        change[0] += balance;
+        change[1] += available;
+        changedAccounts.add(account.getId());
+    }
+
+    /**
+     * Registers a reservation of funds that the risk cache has already made in memory. It is 
+     * written as a change to the available balance, without making the risk cache forget the 
+     * account.
+     *
+     * @param account The account
+     * @param cents The amount reserved, in cents
+     */
+    public void reserve(Account account, long cents) {
+        balanceChanges.computeIfAbsent(account.getId(), id -> new long[2])[1] -= cents;
+    }
+
+    /**
+     * Registers a reservation of assets that the risk cache has already made in memory
+     *
+     * @param asset The asset
+     * @param qty The quantity reserved
+     */
+    public void reserve(Asset asset, int qty) {
+        asset.setAvailable_quantity(asset.getAvailable_quantity() - qty);
+        assets.put(asset.getId(), asset);
+    }
+
+    /**
+     * Registers a change to the realized gain or loss of a portfolio
+     *
+     * @param portfolio The portfolio to be changed
+     * @param change The amount to add to the realized gain or loss
+     */
+    public void adjustRealizedGain(Portfolio portfolio, double change) {
+        realizedGainChanges.merge(portfolio.getId(), change, Double::sum);
+    }
+
+    /**
+     * Registers a new asset. If the asset's portfolio holds a list of assets, the asset is also
+     * added to it, so that later fills in the same unit of work update it instead of creating
+     * another asset.
+     *
+     * @param asset The asset to be inserted
+     */
+    public void saveNew(Asset asset) {
+        newAssets.add(asset);
+        Portfolio portfolio = asset.getPortfolio();
+        if (portfolio != null && portfolio.getAssets() != null)
+            portfolio.getAssets().add(asset);
+    }
+
+    /**
+     * Retrieves a resting trade from the order book by its ID. Trades already registered in this
+     * unit of work are returned as they are, and other trades are read once from the database.
+     *
+     * @param id The ID of the trade
+     * @return The trade, or null if it does not exist
+     */
+    public Trade trade(long id) {
+        Trade trade = trades.get(id);
+        if (trade != null)
+            return trade;
+        return tradeCache.computeIfAbsent(id, key -> tradeRepo.findById(key).orElse(null));
+    }
+
+    /**
+     * Retrieves a stock, reading it from the database only the first time it is requested
+     *
+     * @param symbol The symbol of the stock
+     * @param loader Loads the stock if it has not been read yet
+     * @return The stock
+     */
+    public Stock stock(String symbol, Supplier<Stock> loader) {
+        return stocks.computeIfAbsent(symbol, s -> loader.get());
+    }
+
+    /**
+     * Retrieves a customer's portfolio, querying it only the first time it is requested
+     *
+     * @param customerId The ID of the customer
+     * @return The portfolio, or an empty Optional if the customer has none
+     */
+    public Optional<Portfolio> portfolio(Long customerId) {
+        return portfolioCache.computeIfAbsent(customerId, portfolioRepo::findByCustomerId);
+    }
+
+    /**
+     * Writes every registered entity, one saveAll() per entity type. Inserts are written before
+     * updates of the same type, so that Hibernate can group them into batches. Balance and realized
+     * gain changes are then applied with one relative update per account or portfolio.
+     * 
+     * The accounts and assets changed are invalidated in the risk cache after the commit. Journal
+     * records are appended after the transaction commits, or at once if there is no transaction.
+     */
+    public void flush() {
+        if (!transfers.isEmpty())
+            transferRepo.saveAll(transfers);
+        if (!newAssets.isEmpty())
+            assetRepo.saveAll(newAssets);
+        if (!assets.isEmpty())
+            assetRepo.saveAll(assets.values());
+        if (!stocks.isEmpty())
+            stockRepo.saveAll(stocks.values());
+        if (!trades.isEmpty())
+            tradeRepo.saveAll(trades.values());
+        for (Map.Entry<Long, long[]> entry : balanceChanges.entrySet())
+            accountRepo.adjustBalances(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        for (Map.Entry<Long, Double> entry : realizedGainChanges.entrySet())
+            portfolioRepo.adjustRealizedGain(entry.getKey(), entry.getValue());
+        for (Long id : changedAccounts)
+            risk.invalidateAccount(id);
+        changedAssets.addAll(newAssets);
+        for (Asset asset : changedAssets) {
+            if (asset.getPortfolio() != null)
+                risk.invalidateAsset(asset.getPortfolio().getCustomer_id(), asset.getCode());
+        }
+        appendRecords(new ArrayList<>(records));
+
+        trades.clear();
+        assets.clear();
+        balanceChanges.clear();
+        realizedGainChanges.clear();
+        changedAccounts.clear();
+        changedAssets.clear();
+        stocks.clear();
+        transfers.clear();
+        newAssets.clear();
+        records.clear();
+    }
+
+    private void appendRecords(List<JournalRecord> committed) {
+        if (committed.isEmpty())
+            return;
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            journal.appendAll(committed);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(
+            new TransactionSynchronization() {
+                @Override
+                public void afterCommit() { journal.appendAll(committed); }
+            });
+    }
+}
@@ -0,0 +1,247 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs all matching work for a stock on a single dedicated thread. Each stock symbol is assigned
+ * to one of a fixed number of shards, and every shard has exactly one thread that reads and
+ * writes the order books of its stocks. Request threads hand tasks over through a pre-allocated
+ * lock-free ring buffer, so trades on the same stock are processed one at a time in arrival order,
+ * while trades on stocks in different shards are processed in parallel.
+ *
+ * Each task runs in its own database transaction, if a transaction manager is available.
+ */
+@Component
+public class MatchingEngine {
+    private final Shard[] shards;
+    private final TransactionTemplate txTemplate;
+
+    public MatchingEngine(PlatformTransactionManager txManager,
+    @Value("${ryverbank.matching.threads:0}") int threads,
+    @Value("${ryverbank.matching.ring-size:1024}") int ringSize) {
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+
+        this.txTemplate = txManager == null ? null : new TransactionTemplate(txManager);
+        this.shards = new Shard[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new Shard("matching-" + i, ringSize);
+            shards[i].thread.start();
+        }
+    }
+
+    /**
+     * Retrieves the index of the shard that a stock is assigned to
+     *
+     * @param symbol The symbol of the stock
+     * @return The index of the stock's shard
+     */
+    public int shardOf(String symbol) {
+        return Math.floorMod(symbol.hashCode(), shards.length);
+    }
+
+    /**
+     * Retrieves the index of the shard that the current thread matches trades for
+     *
+     * @return The index of the shard, or -1 if the current thread is not a matching thread
+     */
+    public int currentShard() {
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i].thread == Thread.currentThread())
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Runs a task on the matching thread of a stock, and waits for its result. If the current
+     * thread is already the stock's matching thread, the task runs immediately.
+     *
+     * @param symbol The symbol of the stock that the task reads or modifies
+     * @param task The task to be run
+     * @return The result of the task
+     */
+    public <T> T call(String symbol, Callable<T> task) {
+        return call(symbol, task, null);
+    }
+
+    /**
+     * Runs a task on the matching thread of a stock as call() does. If the task fails, a 
+     * compensating task then runs on the same thread in its own transaction, before any other 
+     * task, e.g. to undo what the failed task's caller wrote before handing it over.
+     *
+     * @param symbol The symbol of the stock that the task reads or modifies
+     * @param task The task to be run
+     * @param compensation The task to be run if the task fails, or null
+     * @return The result of the task
+     */
+    public <T> T call(String symbol, Callable<T> task, Runnable compensation) {
+        Shard shard = shards[shardOf(symbol)];
+        if (Thread.currentThread() == shard.thread)
+            return runCompensated(task, compensation);
+
+        try {
+            return submit(symbol, task, compensation).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for matching engine", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Queues a task on the matching thread of a stock without waiting for it to complete
+     *
+     * @param symbol The symbol of the stock that the task reads or modifies
+     * @param task The task to be run
+     * @return A future that completes with the result of the task
+     */
+    public <T> CompletableFuture<T> submit(String symbol, Callable<T> task) {
+        return submit(symbol, task, null);
+    }
+
+    /**
+     * Queues a task on the matching thread of a stock as submit() does, with a compensating task
+     * that runs on the same thread, in its own transaction, if the task fails. The compensating
+     * task runs before any task queued after this one.
+     *
+     * @param symbol The symbol of the stock that the task reads or modifies
+     * @param task The task to be run
+     * @param compensation The task to be run if the task fails, or null
+     * @return A future that completes with the result of the task
+     */
+    public <T> CompletableFuture<T> submit(String symbol, Callable<T> task, Runnable compensation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        shards[shardOf(symbol)].enqueue(() -> {
+            try {
+                result.complete(runCompensated(task, compensation));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs a task on the calling thread while every matching thread is held, once each has
+     * finished the tasks queued before this call. The task runs in its own transaction, if a 
+     * transaction manager is available, and the matching threads are only released once that
+     * transaction has completed, so that no matching task runs alongside it or reads its changes
+     * before they are committed. Must not be called from a matching thread.
+     *
+     * @param task The task to be run
+     * @return The result of the task
+     */
+    public <T> T fence(Callable<T> task) {
+        if (currentShard() >= 0)
+            throw new IllegalStateException("A matching thread cannot fence the matching engine");
+
+        CountDownLatch held = new CountDownLatch(shards.length);
+        CountDownLatch released = new CountDownLatch(1);
+        for (Shard shard : shards) {
+            shard.enqueue(() -> {
+                held.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        try {
+            held.await();
+            return runTask(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for matching engine", e);
+        } finally {
+            released.countDown();
+        }
+    }
+
+    private <T> T runCompensated(Callable<T> task, Runnable compensation) {
+        try {
+            return runTask(task);
+        } catch (RuntimeException e) {
+            if (compensation != null) {
+                try {
+                    runTask(() -> {
+                        compensation.run();
+                        return null;
+                    });
+                } catch (RuntimeException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private <T> T runTask(Callable<T> task) {
+        if (txTemplate == null)
+            return callUnchecked(task);
+        return txTemplate.execute(status -> callUnchecked(task));
+    }
+
+    private static <T> T callUnchecked(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    /**
+     * A single matching thread, and the ring buffer of tasks waiting to run on it
+     */
+    private static class Shard implements Runnable {
+        private final RingBuffer<Runnable> tasks;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        Shard(String name, int ringSize) {
+            tasks = new RingBuffer<>(ringSize);
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void enqueue(Runnable task) {
+            tasks.publish(task);
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import java.util.*;
+
+/**
+ * The uncrossing of a stock's order book at the market open. Rather than matching the orders
+ * queued overnight one at a time, all of them are executed together at a single equilibrium
+ * price.
+ *
+ * The equilibrium price is the limit price at which the most shares can be executed, i.e. the
+ * price that maximises the lesser of the demand (market buys and bids at or above the price) and
+ * the supply (market sells and asks at or below the price). Ties are broken by the smallest
+ * surplus between demand and supply, and then by the price closest to the stock's last price.
+ * The price is found in a single pass over the aggregated price levels of the book.
+ */
+public class OpeningAuction {
+    private final long price;
+    private final int volume;
+
+    private OpeningAuction(long price, int volume) {
+        this.price = price;
+        this.volume = volume;
+    }
+
+    /**
+     * Retrieves the equilibrium price
+     *
+     * @return The price in ticks, or 0 if no shares can be executed
+     */
+    public long getPriceTicks() { return price; }
+
+    /**
+     * Retrieves the number of shares that can be executed at the equilibrium price
+     *
+     * @return The executable volume, or 0 if the book does not cross
+     */
+    public int getVolume() { return volume; }
+
+    /**
+     * Computes the equilibrium price and volume of an order book
+     *
+     * @param book The order book to uncross
+     * @param reference The last price of the stock in ticks, used to break ties and to price an
+     * auction that only contains market orders. May be 0 if there is no last price.
+     * @return The result of the auction
+     */
+    public static OpeningAuction uncross(OrderBook book, long reference) {
+        int marketBuys = book.getMarketBuyQuantity();
+        int marketSells = book.getMarketSellQuantity();
+        NavigableMap<Long, Integer> bids = book.getBidLevels().descendingMap();
+        NavigableMap<Long, Integer> asks = book.getAskLevels();
+
+        int totalBids = 0;
+        for (int qty : bids.values())
+            totalBids += qty;
+
+        TreeSet<Long> prices = new TreeSet<>(bids.keySet());
+        prices.addAll(asks.keySet());
+
+        long bestPrice = 0;
+        int bestVolume = 0;
+        int bestSurplus = Integer.MAX_VALUE;
+
+        // Walk the prices upwards: supply grows by the asks at each price, and demand shrinks by
+        // the bids below it
+        int supply = marketSells;
+        int bidsBelow = 0;
+        for (long p : prices) {
+            supply += asks.getOrDefault(p, 0);
+            int demand = marketBuys + totalBids - bidsBelow;
+            bidsBelow += bids.getOrDefault(p, 0);
+
+            int volume = Math.min(demand, supply);
+            int surplus = Math.abs(demand - supply);
+            if (volume == 0)
+                continue;
+
+            if (volume > bestVolume || (volume == bestVolume && (surplus < bestSurplus
+                || (surplus == bestSurplus && closer(p, bestPrice, reference))))) {
+                bestPrice = p;
+                bestVolume = volume;
+                bestSurplus = surplus;
+            }
+        }
+
+        if (bestPrice == 0 && reference > 0 && marketBuys > 0 && marketSells > 0)
+            return new OpeningAuction(reference, Math.min(marketBuys, marketSells));
+
+        return new OpeningAuction(bestPrice, bestVolume);
+    }
+
+    private static boolean closer(long price, long current, long reference) {
+        if (reference <= 0)
+            return false;
+        return Math.abs(price - reference) < Math.abs(current - reference);
+    }
+}
@@ -0,0 +1,506 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import java.util.*;
+
+/**
+ * In-memory limit order book for a single stock. Resting limit orders are kept in price levels,
+ * each of which is a FIFO queue, so that the best bid and ask can be read without touching the
+ * database. Price levels are keyed by their price in ticks (see Price), so levels are compared
+ * exactly. Market orders (bid or ask of 0) do not have a price level, and are kept in a separate
+ * FIFO queue for each side.
+ *
+ * The book does not hold Trade entities. Only the fields needed for matching are copied into an
+ * OrderStore when a trade is added, and the book refers to resting orders by trade ID; the
+ * matching engine loads the trades it fills from the database. Each price level also keeps the
+ * total remaining quantity and the number of its orders, and each side keeps the remaining
+ * quantity of every customer's orders, so the remaining quantity of resting orders must be kept
+ * up to date through reduce(). Depth and top-of-book volume are then read without visiting the
+ * orders themselves.
+ *
+ * An order book is not thread safe, and should only be modified by the thread matching trades
+ * for its stock.
+ */
+public class OrderBook {
+    /**
+     * Returned in place of a trade ID when there is no matching order
+     */
+    public static final long NONE = -1;
+
+    private final String symbol;
+    private final OrderStore store = new OrderStore();
+
+    // Bids are ordered from highest to lowest, asks from lowest to highest
+    private final TreeMap<Long, Level> bids = new TreeMap<>(Comparator.reverseOrder());
+    private final TreeMap<Long, Level> asks = new TreeMap<>();
+
+    private final Level marketBuys = new Level();
+    private final Level marketSells = new Level();
+
+    // Remaining quantity of each customer's buy and sell orders, market orders included
+    private final Map<Long, int[]> buyersQuantity = new HashMap<>();
+    private final Map<Long, int[]> sellersQuantity = new HashMap<>();
+
+    // A FIFO queue of orders, linked through the slots of the order store
+    private static class Level {
+        int head = OrderStore.NONE;
+        int tail = OrderStore.NONE;
+        int quantity;
+        int count;
+    }
+
+    /**
+     * The aggregated remaining quantity and number of orders resting at a price
+     */
+    public static final class PriceLevel {
+        private final long priceTicks;
+        private final int quantity;
+        private final int orders;
+
+        public PriceLevel(long priceTicks, int quantity, int orders) {
+            this.priceTicks = priceTicks;
+            this.quantity = quantity;
+            this.orders = orders;
+        }
+
+        public long getPriceTicks() { return priceTicks; }
+
+        public int getQuantity() { return quantity; }
+
+        public int getOrders() { return orders; }
+    }
+
+    public OrderBook(String symbol) {
+        this.symbol = symbol;
+    }
+
+    public String getSymbol() { return symbol; }
+
+    public int size() { return store.size(); }
+
+    public boolean contains(Long id) { return id != null && store.slotOf(id) != OrderStore.NONE; }
+
+    /**
+     * Retrieves the remaining quantity of a resting order
+     *
+     * @param id The ID of the trade
+     * @return The remaining quantity, or 0 if the trade is not in the book
+     */
+    public int getRemaining(long id) {
+        int slot = store.slotOf(id);
+        return slot == OrderStore.NONE ? 0 : store.remaining(slot);
+    }
+
+    /**
+     * Retrieves the limit price of a resting order
+     *
+     * @param id The ID of the trade
+     * @return The price in ticks, or 0 if the trade is a market order or is not in the book
+     */
+    public long getPriceTicks(long id) {
+        int slot = store.slotOf(id);
+        return slot == OrderStore.NONE ? 0 : store.price(slot);
+    }
+
+    /**
+     * Adds a trade to the back of the queue at its price level. Trades that are already resting in
+     * the book are ignored, so that they keep their time priority.
+     *
+     * @param trade The trade to be added
+     */
+    public void add(Trade trade) {
+        if (contains(trade.getId()))
+            return;
+
+        boolean buy = trade.getAction().equals("buy");
+        if (!buy && !trade.getAction().equals("sell"))
+            return;
+
+        long price = trade.isMarket() ? 0 : trade.getPriceTicks();
+        long customer = trade.getCustomer_id() == null ? 0 : trade.getCustomer_id();
+        int slot = store.allocate(trade.getId(), buy, price, trade.getRemaining_quantity(), 
+        customer);
+
+        Level level = levelOf(buy, price, true);
+        if (level.tail == OrderStore.NONE) {
+            level.head = slot;
+        } else {
+            store.setNext(level.tail, slot);
+            store.setPrev(slot, level.tail);
+        }
+        level.tail = slot;
+        level.quantity += store.remaining(slot);
+        level.count++;
+        addCustomerQuantity(buy, customer, store.remaining(slot));
+    }
+
+    /**
+     * Removes a trade from the book, e.g. when it has been filled, cancelled or expired. Empty
+     * price levels are discarded.
+     *
+     * @param id The ID of the trade to be removed
+     * @return True if the trade was in the book
+     */
+    public boolean remove(Long id) {
+        int slot = id == null ? OrderStore.NONE : store.slotOf(id);
+        if (slot == OrderStore.NONE)
+            return false;
+
+        boolean buy = store.isBuy(slot);
+        long price = store.price(slot);
+        Level level = levelOf(buy, price, false);
+
+        int prev = store.prev(slot);
+        int next = store.next(slot);
+        if (prev == OrderStore.NONE)
+            level.head = next;
+        else
+            store.setNext(prev, next);
+        if (next == OrderStore.NONE)
+            level.tail = prev;
+        else
+            store.setPrev(next, prev);
+        level.quantity -= store.remaining(slot);
+        level.count--;
+        addCustomerQuantity(buy, store.customer(slot), -store.remaining(slot));
+
+        if (level.head == OrderStore.NONE && price != 0)
+            (buy ? bids : asks).remove(price);
+
+        store.free(slot);
+        return true;
+    }
+
+    /**
+     * Reduces the remaining quantity of a resting order after it has been filled, removing it from
+     * the book once nothing remains. Trades that are not in the book are ignored.
+     *
+     * @param id The ID of the trade
+     * @param qty The quantity filled
+     */
+    public void reduce(long id, int qty) {
+        int slot = store.slotOf(id);
+        if (slot == OrderStore.NONE)
+            return;
+
+        int left = store.remaining(slot) - qty;
+        if (left <= 0) {
+            remove(id);
+            return;
+        }
+        store.setRemaining(slot, left);
+        levelOf(store.isBuy(slot), store.price(slot), false).quantity -= qty;
+        addCustomerQuantity(store.isBuy(slot), store.customer(slot), -qty);
+    }
+
+    private void addCustomerQuantity(boolean buy, long customer, int qty) {
+        Map<Long, int[]> side = buy ? buyersQuantity : sellersQuantity;
+        int[] quantity = side.computeIfAbsent(customer, c -> new int[1]);
+        quantity[0] += qty;
+        if (quantity[0] <= 0)
+            side.remove(customer);
+    }
+
+    private int customerQuantity(boolean buy, Long customer) {
+        int[] quantity = (buy ? buyersQuantity : sellersQuantity).get(customer);
+        return quantity == null ? 0 : quantity[0];
+    }
+
+    private Level levelOf(boolean buy, long price, boolean create) {
+        if (price == 0)
+            return buy ? marketBuys : marketSells;
+
+        TreeMap<Long, Level> side = buy ? bids : asks;
+        return create ? side.computeIfAbsent(price, p -> new Level()) : side.get(price);
+    }
+
+    /**
+     * Retrieves the earliest limit sell trade at the lowest ask price
+     *
+     * @return The ID of the trade with the lowest ask, or NONE if there are no limit sell trades
+     */
+    public long bestAsk() { return bestAsk(null); }
+
+    /**
+     * Retrieves the earliest limit buy trade at the highest bid price
+     *
+     * @return The ID of the trade with the highest bid, or NONE if there are no limit buy trades
+     */
+    public long bestBid() { return bestBid(null); }
+
+    /**
+     * Retrieves the earliest limit sell trade at the lowest ask price that was not placed by the
+     * given customer, so that customers never trade with themselves.
+     *
+     * @param excludedCustomer The ID of the customer whose trades should be skipped, or null
+     * @return The ID of the trade with the lowest ask, or NONE if there is none
+     */
+    public long bestAsk(Long excludedCustomer) {
+        return firstOf(asks, excludedCustomer);
+    }
+
+    /**
+     * Retrieves the earliest limit buy trade at the highest bid price that was not placed by the
+     * given customer, so that customers never trade with themselves.
+     *
+     * @param excludedCustomer The ID of the customer whose trades should be skipped, or null
+     * @return The ID of the trade with the highest bid, or NONE if there is none
+     */
+    public long bestBid(Long excludedCustomer) {
+        return firstOf(bids, excludedCustomer);
+    }
+
+    private long firstOf(TreeMap<Long, Level> side, Long excludedCustomer) {
+        for (Level level : side.values()) {
+            for (int slot = level.head; slot != OrderStore.NONE; slot = store.next(slot)) {
+                if (excludedCustomer == null || store.customer(slot) != excludedCustomer)
+                    return store.id(slot);
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Retrieves limit buy trades bidding at least the given price, from highest to lowest bid and
+     * then from earliest to latest
+     *
+     * @param minPrice The lowest bid to include, in ticks
+     * @return The IDs of the buy trades in priority order
+     */
+    public long[] getBids(long minPrice) { return idsOf(bids.headMap(minPrice, true).values()); }
+
+    /**
+     * Retrieves limit sell trades asking at most the given price, from lowest to highest ask and
+     * then from earliest to latest
+     *
+     * @param maxPrice The highest ask to include, in ticks
+     * @return The IDs of the sell trades in priority order
+     */
+    public long[] getAsks(long maxPrice) { return idsOf(asks.headMap(maxPrice, true).values()); }
+
+    /**
+     * Retrieves resting market buy trades, from earliest to latest
+     *
+     * @return The IDs of the market buy trades
+     */
+    public long[] getMarketBuys() { return idsOf(Collections.singletonList(marketBuys)); }
+
+    /**
+     * Retrieves resting market sell trades, from earliest to latest
+     *
+     * @return The IDs of the market sell trades
+     */
+    public long[] getMarketSells() { return idsOf(Collections.singletonList(marketSells)); }
+
+    private long[] idsOf(Collection<Level> levels) {
+        int count = 0;
+        for (Level level : levels) {
+            for (int slot = level.head; slot != OrderStore.NONE; slot = store.next(slot))
+                count++;
+        }
+
+        long[] result = new long[count];
+        int i = 0;
+        for (Level level : levels) {
+            for (int slot = level.head; slot != OrderStore.NONE; slot = store.next(slot))
+                result[i++] = store.id(slot);
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves the total remaining quantity of resting market buy trades
+     *
+     * @return The remaining quantity
+     */
+    public int getMarketBuyQuantity() { return marketBuys.quantity; }
+
+    /**
+     * Retrieves the total remaining quantity of resting market sell trades
+     *
+     * @return The remaining quantity
+     */
+    public int getMarketSellQuantity() { return marketSells.quantity; }
+
+    /**
+     * Aggregates the remaining quantity of limit buy trades at each bid price
+     *
+     * @return A map of bid price in ticks to total remaining quantity, from highest to lowest bid
+     */
+    public NavigableMap<Long, Integer> getBidLevels() { return levelsOf(bids); }
+
+    /**
+     * Aggregates the remaining quantity of limit sell trades at each ask price
+     *
+     * @return A map of ask price in ticks to total remaining quantity, from lowest to highest ask
+     */
+    public NavigableMap<Long, Integer> getAskLevels() { return levelsOf(asks); }
+
+    /**
+     * Retrieves the aggregated quantity and number of orders at the highest bid price
+     *
+     * @return The highest bid level, or null if there are no limit buy trades
+     */
+    public PriceLevel getBestBidLevel() { return priceLevelOf(bids.firstEntry()); }
+
+    /**
+     * Retrieves the aggregated quantity and number of orders at the lowest ask price
+     *
+     * @return The lowest ask level, or null if there are no limit sell trades
+     */
+    public PriceLevel getBestAskLevel() { return priceLevelOf(asks.firstEntry()); }
+
+    /**
+     * Retrieves the aggregated quantity and number of orders at the highest bid prices
+     *
+     * @param depth The number of price levels to retrieve
+     * @return Up to depth bid levels, from highest to lowest bid
+     */
+    public List<PriceLevel> getBidDepth(int depth) { return depthLevelsOf(bids, depth); }
+
+    /**
+     * Retrieves the aggregated quantity and number of orders at the lowest ask prices
+     *
+     * @param depth The number of price levels to retrieve
+     * @return Up to depth ask levels, from lowest to highest ask
+     */
+    public List<PriceLevel> getAskDepth(int depth) { return depthLevelsOf(asks, depth); }
+
+    private PriceLevel priceLevelOf(Map.Entry<Long, Level> entry) {
+        if (entry == null)
+            return null;
+        return new PriceLevel(entry.getKey(), entry.getValue().quantity, entry.getValue().count);
+    }
+
+    private List<PriceLevel> depthLevelsOf(TreeMap<Long, Level> side, int depth) {
+        List<PriceLevel> levels = new ArrayList<>(Math.min(Math.max(depth, 0), side.size()));
+        for (Map.Entry<Long, Level> entry : side.entrySet()) {
+            if (levels.size() >= depth)
+                break;
+            levels.add(priceLevelOf(entry));
+        }
+        return levels;
+    }
+
+    /**
+     * Retrieves the ask prices that a buy could fill at, from the lowest up, as matching does
+     *
+     * @param maxPrice The highest ask to include, in ticks
+     * @return A read-only view of the ask prices in ticks
+     */
+    public Set<Long> askPrices(long maxPrice) {
+        return Collections.unmodifiableSet(asks.headMap(maxPrice, true).keySet());
+    }
+
+    /**
+     * Retrieves the bid prices that a sell could fill at, from the highest down, as matching does
+     *
+     * @param minPrice The lowest bid to include, in ticks
+     * @return A read-only view of the bid prices in ticks
+     */
+    public Set<Long> bidPrices(long minPrice) {
+        return Collections.unmodifiableSet(bids.headMap(minPrice, true).keySet());
+    }
+
+    /**
+     * Computes how much of a quantity could be filled against limit sell trades asking at most 
+     * the given price, skipping trades of the given customer as matching does. 
+     *
+     * @param maxPrice The highest ask to include, in ticks
+     * @param excludedCustomer The ID of the customer whose trades should be skipped, or null
+     * @param needed The quantity to be filled
+     * @return The quantity that could be filled, at most needed
+     */
+    public int askDepth(long maxPrice, Long excludedCustomer, int needed) {
+        return depthOf(asks.headMap(maxPrice, true).values(), false, excludedCustomer, needed);
+    }
+
+    /**
+     * Computes how much of a quantity could be filled against limit buy trades bidding at least 
+     * the given price, skipping trades of the given customer as matching does.
+     *
+     * @param minPrice The lowest bid to include, in ticks
+     * @param excludedCustomer The ID of the customer whose trades should be skipped, or null
+     * @param needed The quantity to be filled
+     * @return The quantity that could be filled, at most needed
+     */
+    public int bidDepth(long minPrice, Long excludedCustomer, int needed) {
+        return depthOf(bids.headMap(minPrice, true).values(), true, excludedCustomer, needed);
+    }
+
+    /**
+     * Computes how much of a quantity could be filled against market sell trades, skipping 
+     * trades of the given customer
+     *
+     * @param excludedCustomer The ID of the customer whose trades should be skipped, or null
+     * @param needed The quantity to be filled
+     * @return The quantity that could be filled, at most needed
+     */
+    public int marketSellDepth(Long excludedCustomer, int needed) {
+        return depthOf(Collections.singletonList(marketSells), false, excludedCustomer, 
+            needed);
+    }
+
+    /**
+     * Computes how much of a quantity a market buy could fill against limit sell trades with a
+     * given amount of money, buying from the lowest ask up as matching does
+     *
+     * @param budget The money available to the market buy, in cents
+     * @param maxPrice The highest ask to include, in ticks
+     * @param excludedCustomer The ID of the customer whose trades should be skipped, or null
+     * @param needed The quantity to be filled
+     * @return The quantity that could be filled and paid for, at most needed
+     */
+    public int affordableAskDepth(long budget, long maxPrice, Long excludedCustomer, int needed) {
+        int filled = 0;
+        for (Map.Entry<Long, Level> entry : asks.headMap(maxPrice, true).entrySet()) {
+            int affordable = Price.affordableLots(budget, entry.getKey());
+            if (filled >= needed || affordable == 0)
+                break;
+
+            int qty = Math.min(affordable, depthOf(Collections.singletonList(entry.getValue()), 
+                false, excludedCustomer, needed - filled));
+            filled += qty;
+            budget -= Price.valueInCents(entry.getKey(), qty);
+        }
+        return filled;
+    }
+
+    // The depth is read from the aggregated quantity of each level without visiting any order.
+    // With an excluded customer, the levels must also cover everything that customer has resting
+    // on the side, as it may all be within them; only when they do not are orders visited until
+    // the quantity is reached.
+    private int depthOf(Collection<Level> levels, boolean buy, Long excludedCustomer, 
+    int needed) {
+        if (needed <= 0)
+            return 0;
+
+        long excluded = excludedCustomer == null ? 0 : customerQuantity(buy, excludedCustomer);
+        long total = 0;
+        for (Level level : levels) {
+            total += level.quantity;
+            if (total - excluded >= needed)
+                return needed;
+        }
+        if (excluded == 0)
+            return (int)total;
+
+        int available = 0;
+        for (Level level : levels) {
+            for (int slot = level.head; slot != OrderStore.NONE; slot = store.next(slot)) {
+                if (store.customer(slot) == excludedCustomer)
+                    continue;
+                available += store.remaining(slot);
+                if (available >= needed)
+                    return needed;
+            }
+        }
+        return available;
+    }
+
+    private NavigableMap<Long, Integer> levelsOf(TreeMap<Long, Level> side) {
+        NavigableMap<Long, Integer> levels = new TreeMap<>(side.comparator());
+        for (Map.Entry<Long, Level> entry : side.entrySet())
+            levels.put(entry.getKey(), entry.getValue().quantity);
+        return levels;
+    }
+}
@@ -0,0 +1,159 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the in-memory order book and stop book of every stock. A book is loaded from the database
+ * the first time its stock is traded, after which the matching engine reads and updates the book
+ * directly, and the database only stores the results.
+ *
+ * The expiry wheel of each stock, which holds its good-till-date trades, is not loaded lazily, as
+ * its trades must expire whether or not the stock is traded. It is filled when the application
+ * starts, and as good-till-date trades are accepted.
+ */
+@Component
+public class OrderBookManager {
+    private TradeRepository tradeRepo;
+
+    private final Map<String, OrderBook> books = new ConcurrentHashMap<>();
+    private final Map<String, StopBook> stopBooks = new ConcurrentHashMap<>();
+    private final Map<String, TimingWheel> expiries = new ConcurrentHashMap<>();
+
+    // Good-till-date trades expire within a second of their expiry
+    private static final long EXPIRY_TICK_MS = 1000;
+
+    private static final List<String> VALID_STATUSES = Arrays.asList("open", "partial-filled");
+    private static final List<String> PENDING_STATUSES = Arrays.asList("pending");
+
+    public OrderBookManager(TradeRepository tradeRepo) {
+        this.tradeRepo = tradeRepo;
+    }
+
+    /**
+     * Retrieves the order book of a stock, loading the open and partial-filled trades of that
+     * stock from the database if the book has not been built yet
+     *
+     * @param symbol The symbol of the stock
+     * @return The order book of the stock
+     */
+    public OrderBook getBook(String symbol) {
+        return books.computeIfAbsent(symbol, this::loadBook);
+    }
+
+    private OrderBook loadBook(String symbol) {
+        OrderBook book = new OrderBook(symbol);
+        List<Trade> resting = tradeRepo.findBySymbolAndStatusIn(symbol, VALID_STATUSES);
+        if (resting == null)
+            return book;
+
+        resting.sort(new TradeTimeComparator());
+        for (Trade trade : resting)
+            book.add(trade);
+
+        return book;
+    }
+
+    /**
+     * Retrieves the stop book of a stock, loading the pending stop trades of that stock from the
+     * database if the book has not been built yet
+     *
+     * @param symbol The symbol of the stock
+     * @return The stop book of the stock
+     */
+    public StopBook getStops(String symbol) {
+        return stopBooks.computeIfAbsent(symbol, this::loadStops);
+    }
+
+    private StopBook loadStops(String symbol) {
+        StopBook stops = new StopBook();
+        List<Trade> pending = tradeRepo.findBySymbolAndStatusIn(symbol, PENDING_STATUSES);
+        if (pending == null)
+            return stops;
+
+        pending.sort(new TradeTimeComparator());
+        for (Trade trade : pending)
+            stops.add(trade);
+
+        return stops;
+    }
+
+    /**
+     * Retrieves the expiry wheel of a stock, creating an empty wheel if there is none
+     *
+     * @param symbol The symbol of the stock
+     * @param now The current time in milliseconds, from which a new wheel starts
+     * @return The expiry wheel of the stock
+     */
+    public TimingWheel getExpiries(String symbol, long now) {
+        return expiries.computeIfAbsent(symbol, s -> new TimingWheel(EXPIRY_TICK_MS, now));
+    }
+
+    /**
+     * Retrieves the symbols of the stocks that have an expiry wheel
+     *
+     * @return A copy of the symbols
+     */
+    public Set<String> getExpirySymbols() {
+        return new HashSet<>(expiries.keySet());
+    }
+
+    /**
+     * Replaces the order book of a stock with a book built from the given trades, e.g. when 
+     * recovering the books from the trade journal
+     *
+     * @param symbol The symbol of the stock
+     * @param trades The resting trades of the stock, from earliest to latest
+     */
+    public void restore(String symbol, List<Trade> trades) {
+        OrderBook book = new OrderBook(symbol);
+        for (Trade trade : trades)
+            book.add(trade);
+        books.put(symbol, book);
+    }
+
+    /**
+     * Retrieves the symbols of the stocks whose order or stop books have been built
+     *
+     * @return A copy of the symbols
+     */
+    public Set<String> getSymbols() {
+        Set<String> symbols = new HashSet<>(books.keySet());
+        symbols.addAll(stopBooks.keySet());
+        return symbols;
+    }
+
+    /**
+     * Discards the order and stop books of a stock, so that they are rebuilt from the database 
+     * when they are next accessed. Should be called from the matching thread of the stock.
+     *
+     * @param symbol The symbol of the stock
+     */
+    public void evict(String symbol) {
+        books.remove(symbol);
+        stopBooks.remove(symbol);
+    }
+
+    /**
+     * Discards the order book, stop book and expiry wheel of a stock, e.g. when another node of the
+     * cluster takes the stock over. Should be called from the matching thread of the stock.
+     *
+     * @param symbol The symbol of the stock
+     */
+    public void release(String symbol) {
+        evict(symbol);
+        expiries.remove(symbol);
+    }
+
+    /**
+     * Discards all order books, e.g. after trades have been deleted or recreated in the database.
+     * Books will be rebuilt from the database when they are next accessed. Expiry wheels are kept,
+     * as they are not rebuilt.
+     */
+    public void clear() {
+        books.clear();
+        stopBooks.clear();
+    }
+}
@@ -0,0 +1,200 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import java.util.Arrays;
+
+/**
+ * Compact storage for the resting orders of an order book. Rather than holding Trade entities,
+ * with their Account and User associations, each order occupies a slot across parallel primitive
+ * arrays: its trade ID, price in ticks, remaining quantity and customer ID. Time priority is kept
+ * by the links of the FIFO queue of each price level, which slots also hold, so that walking a
+ * level reads adjacent array elements instead of following object references.
+ *
+ * Slots freed by removed orders are kept in a free list and reused by later orders, and the arrays
+ * double in size when every slot is in use. Trade IDs are mapped to slots by an open addressing
+ * hash table of primitives, so that lookups do not allocate.
+ *
+ * An order store is not thread safe, and is only used by the order book that owns it.
+ */
+class OrderStore {
+    static final int NONE = -1;
+
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] ids;
+    private long[] prices;
+    private int[] remaining;
+    private long[] customers;
+    private boolean[] buys;
+    private int[] next;
+    private int[] prev;
+
+    // Slots below this index have been used at least once; freed slots are chained through next
+    private int used;
+    private int freeHead = NONE;
+    private int size;
+
+    // Trade ID to slot, with linear probing
+    private long[] keys;
+    private int[] values;
+    private int mask;
+
+    OrderStore() {
+        grow(INITIAL_CAPACITY);
+        keys = new long[INITIAL_CAPACITY * 2];
+        Arrays.fill(keys, EMPTY_KEY);
+        values = new int[INITIAL_CAPACITY * 2];
+        mask = keys.length - 1;
+    }
+
+    int size() { return size; }
+
+    /**
+     * Stores a new order in a free slot. The slot is not linked to any price level.
+     *
+     * @param id The ID of the trade
+     * @param buy Whether the trade is a buy trade
+     * @param price The limit price in ticks, or 0 for a market order
+     * @param qty The remaining quantity of the trade
+     * @param customer The ID of the customer that placed the trade
+     * @return The slot of the order
+     */
+    int allocate(long id, boolean buy, long price, int qty, long customer) {
+        int slot;
+        if (freeHead != NONE) {
+            slot = freeHead;
+            freeHead = next[slot];
+        } else {
+            if (used == ids.length)
+                grow(ids.length * 2);
+            slot = used++;
+        }
+
+        ids[slot] = id;
+        buys[slot] = buy;
+        prices[slot] = price;
+        remaining[slot] = qty;
+        customers[slot] = customer;
+        next[slot] = NONE;
+        prev[slot] = NONE;
+
+        put(id, slot);
+        size++;
+        return slot;
+    }
+
+    /**
+     * Returns a slot to the free list. The slot must already be unlinked from its price level.
+     *
+     * @param slot The slot to be freed
+     */
+    void free(int slot) {
+        remove(ids[slot]);
+        next[slot] = freeHead;
+        prev[slot] = NONE;
+        freeHead = slot;
+        size--;
+    }
+
+    /**
+     * Finds the slot of an order
+     *
+     * @param id The ID of the trade
+     * @return The slot of the order, or NONE if it is not stored
+     */
+    int slotOf(long id) {
+        for (int i = hash(id); ; i = (i + 1) & mask) {
+            if (keys[i] == id)
+                return values[i];
+            if (keys[i] == EMPTY_KEY)
+                return NONE;
+        }
+    }
+
+    long id(int slot) { return ids[slot]; }
+
+    boolean isBuy(int slot) { return buys[slot]; }
+
+    long price(int slot) { return prices[slot]; }
+
+    int remaining(int slot) { return remaining[slot]; }
+
+    long customer(int slot) { return customers[slot]; }
+
+    int next(int slot) { return next[slot]; }
+
+    int prev(int slot) { return prev[slot]; }
+
+    void setRemaining(int slot, int qty) { remaining[slot] = qty; }
+
+    void setNext(int slot, int nextSlot) { next[slot] = nextSlot; }
+
+    void setPrev(int slot, int prevSlot) { prev[slot] = prevSlot; }
+
+    private void grow(int capacity) {
+        ids = ids == null ? new long[capacity] : Arrays.copyOf(ids, capacity);
+        buys = buys == null ? new boolean[capacity] : Arrays.copyOf(buys, capacity);
+        prices = prices == null ? new long[capacity] : Arrays.copyOf(prices, capacity);
+        remaining = remaining == null ? new int[capacity] : Arrays.copyOf(remaining, capacity);
+        customers = customers == null ? new long[capacity] : Arrays.copyOf(customers, capacity);
+        next = next == null ? new int[capacity] : Arrays.copyOf(next, capacity);
+        prev = prev == null ? new int[capacity] : Arrays.copyOf(prev, capacity);
+    }
+
+    private int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    private void put(long id, int slot) {
+        // Keep the table at most half full
+        if ((size + 1) * 2 > keys.length)
+            rehash(keys.length * 2);
+
+        int i = hash(id);
+        while (keys[i] != EMPTY_KEY && keys[i] != id)
+            i = (i + 1) & mask;
+        keys[i] = id;
+        values[i] = slot;
+    }
+
+    private void remove(long id) {
+        int i = hash(id);
+        while (keys[i] != id) {
+            if (keys[i] == EMPTY_KEY)
+                return;
+            i = (i + 1) & mask;
+        }
+
+        // Shift later entries of the probe sequence back, so that lookups never stop early
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != EMPTY_KEY; j = (j + 1) & mask) {
+            int home = hash(keys[j]);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY_KEY;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        values = new int[capacity];
+        mask = capacity - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY_KEY)
+                continue;
+            int j = hash(oldKeys[i]);
+            while (keys[j] != EMPTY_KEY)
+                j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
@@ -18,7 +18,8 @@ import com.csdg1t3.ryverbankapi.user.*;
 @Entity 
 public class Portfolio {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "portfolio_seq")
+    @SequenceGenerator(name = "portfolio_seq", sequenceName = "portfolio_seq", allocationSize = 50)
     @JsonIgnore
     private Long id;
 
@@ -3,6 +3,9 @@ package com.csdg1t3.ryverbankapi.trade;
 import java.util.List;
 import java.util.Optional;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -13,4 +16,17 @@ import org.springframework.stereotype.Repository;
 public interface PortfolioRepository extends JpaRepository<Portfolio, Long>{
     Portfolio save(Portfolio portfolio);
     Optional<Portfolio> findByCustomerId(Long id);
+
+    /**
+     * Adds to the realized gain or loss of a portfolio, relative to its current value in the 
+     * database, so that concurrent changes to the same portfolio are not lost.
+     * 
+     * @param id The ID of the portfolio
+     * @param change The amount to add to the realized gain or loss
+     * @return The number of portfolios updated
+     */
+    @Modifying
+    @Query("UPDATE Portfolio p SET p.realized_gain_loss = p.realized_gain_loss + :change "
+    + "WHERE p.id = :id")
+    int adjustRealizedGain(@Param("id") Long id, @Param("change") double change);
 }
\ No newline at end of file
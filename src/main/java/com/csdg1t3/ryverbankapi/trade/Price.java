@@ -0,0 +1,76 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+/**
+ * Fixed-point representation of prices and amounts of money.
+ *
+ * Prices are held as a whole number of ticks of 0.001, the smallest price step of the exchange,
+ * and amounts of money as a whole number of cents. Matching and ledger arithmetic is done on these
+ * longs, so that comparisons are exact and do not allocate. Values are converted to and from
+ * decimals only where they enter or leave the application, i.e. in the JSON getters and setters
+ * of the entities, where prices are rounded to the nearest tick and amounts to the nearest cent.
+ */
+public final class Price {
+    public static final long TICKS_PER_UNIT = 1000;
+    public static final long CENTS_PER_UNIT = 100;
+
+    private static final long TICKS_PER_CENT = TICKS_PER_UNIT / CENTS_PER_UNIT;
+
+    private Price() {}
+
+    /**
+     * Converts a decimal price to ticks, rounding to the nearest tick
+     *
+     * @param price The decimal price
+     * @return The price in ticks
+     */
+    public static long toTicks(double price) { return Math.round(price * TICKS_PER_UNIT); }
+
+    /**
+     * Converts a price in ticks to a decimal price
+     *
+     * @param ticks The price in ticks
+     * @return The decimal price
+     */
+    public static double fromTicks(long ticks) { return (double)ticks / TICKS_PER_UNIT; }
+
+    /**
+     * Converts a decimal amount of money to cents, rounding to the nearest cent
+     *
+     * @param amount The decimal amount
+     * @return The amount in cents
+     */
+    public static long toCents(double amount) { return Math.round(amount * CENTS_PER_UNIT); }
+
+    /**
+     * Converts an amount of money in cents to a decimal amount
+     *
+     * @param cents The amount in cents
+     * @return The decimal amount
+     */
+    public static double fromCents(long cents) { return (double)cents / CENTS_PER_UNIT; }
+
+    /**
+     * Computes the value of a quantity of stock at a price, rounded half up to the nearest cent.
+     * As quantities are traded in multiples of 100, the result is normally exact.
+     *
+     * @param ticks The unit price in ticks
+     * @param qty The quantity of stock
+     * @return The value in cents
+     */
+    public static long valueInCents(long ticks, int qty) {
+        return Math.floorDiv(ticks * qty + TICKS_PER_CENT / 2, TICKS_PER_CENT);
+    }
+
+    /**
+     * Computes the largest quantity, in lots of 100, that an amount of money can pay for at a price
+     *
+     * @param cents The amount of money in cents
+     * @param ticks The unit price in ticks
+     * @return The affordable quantity, a multiple of 100
+     */
+    public static int affordableLots(long cents, long ticks) {
+        if (ticks <= 0 || cents <= 0)
+            return 0;
+        return (int)(cents * TICKS_PER_CENT / (ticks * 100)) * 100;
+    }
+}
@@ -0,0 +1,206 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the price bands of every stock, which protect the order book from trades priced far away
+ * from the market, e.g. by a mistyped price or a market order that would sweep the whole book.
+ *
+ * - Static band: a percentage around the reference price, which is the last price of the stock
+ * when its band was first used after the previous close. Limit trades priced outside it are
+ * rejected when they are placed.
+ * - Dynamic band: a percentage around the last price, which moves with every fill.
+ *
+ * A fill priced outside either band is not made. Instead, trading in the stock halts for a
+ * cooldown, during which new trades are rejected, and the trade that would have made the fill is
+ * cancelled. Once the cooldown ends, the first fill is only checked against the static band, and
+ * reopens the stock: the dynamic band is re-centred on its price, as the last price from before 
+ * the halt no longer reflects the market, and would otherwise halt the stock again at once.
+ *
+ * The bounds of each band are computed once, when the reference or last price changes, so that
+ * every check is a pair of comparisons. Bands are only updated by the matching thread of their
+ * stock, and may be read by any thread. A percentage of 0 disables the band.
+ */
+@Component
+public class PriceBands {
+    private static final Logger log = LoggerFactory.getLogger(PriceBands.class);
+
+    private StockRepository stockRepo;
+    private MarketSession session;
+    private final double staticPercent;
+    private final double dynamicPercent;
+    private final long haltMs;
+
+    private final Map<String, Band> bands = new ConcurrentHashMap<>();
+
+    // The bounds of a stock's bands in ticks, the end of its current halt in milliseconds, and
+    // whether it has yet to reopen after a halt
+    private static class Band {
+        volatile long staticLow;
+        volatile long staticHigh;
+        volatile long dynamicLow;
+        volatile long dynamicHigh;
+        volatile long haltedUntil;
+        volatile boolean reopening;
+    }
+
+    public PriceBands(StockRepository stockRepo, MarketSession session,
+    @Value("${ryverbank.bands.static-percent:10}") double staticPercent,
+    @Value("${ryverbank.bands.dynamic-percent:5}") double dynamicPercent,
+    @Value("${ryverbank.bands.halt-ms:300000}") long haltMs) {
+        this.stockRepo = stockRepo;
+        this.session = session;
+        this.staticPercent = staticPercent;
+        this.dynamicPercent = dynamicPercent;
+        this.haltMs = haltMs;
+    }
+
+    /**
+     * Checks whether trading in a stock is halted
+     *
+     * @param symbol The symbol of the stock
+     * @return true if the stock is in a cooldown after a fill breached its bands
+     */
+    public boolean isHalted(String symbol) {
+        return session.millis() < band(symbol).haltedUntil;
+    }
+
+    /**
+     * Checks whether a limit price lies within the static band of a stock
+     *
+     * @param symbol The symbol of the stock
+     * @param price The price in ticks
+     * @return true if the price is within the band
+     */
+    public boolean withinStaticBand(String symbol, long price) {
+        Band band = band(symbol);
+        return price >= band.staticLow && price <= band.staticHigh;
+    }
+
+    /**
+     * Checks whether a fill may be made at a price, on the matching thread of the stock. If the
+     * price lies outside either band, trading in the stock is halted. The first fill after a halt
+     * is only checked against the static band, and reopens the stock.
+     *
+     * @param symbol The symbol of the stock
+     * @param price The price of the fill in ticks
+     * @return true if the fill may be made
+     */
+    public boolean allowsFill(String symbol, long price) {
+        Band band = band(symbol);
+        long now = session.millis();
+        if (now < band.haltedUntil)
+            return false;
+        boolean withinStatic = price >= band.staticLow && price <= band.staticHigh;
+        if (withinStatic && band.reopening) {
+            band.reopening = false;
+            return true;
+        }
+        if (withinStatic && price >= band.dynamicLow && price <= band.dynamicHigh)
+            return true;
+
+        band.haltedUntil = now + haltMs;
+        band.reopening = true;
+        log.warn("Halted trading in " + symbol + " for " + haltMs + "ms, as a fill at "
+        + Price.fromTicks(price) + " breached its price bands");
+        return false;
+    }
+
+    /**
+     * Finds how far a sweep of the order book could go before a fill breaches the bands of a 
+     * stock, as the dynamic band moves to the price of each fill. Nothing is changed, so that a 
+     * fill-or-kill trade can be checked before any fill is made.
+     *
+     * @param symbol The symbol of the stock
+     * @param prices The prices the sweep would fill at, in the order it would fill them, in ticks
+     * @return The last price the sweep could fill at, or 0 if it could not fill at the first
+     */
+    public long sweepLimit(String symbol, Iterable<Long> prices) {
+        Band band = band(symbol);
+        if (session.millis() < band.haltedUntil)
+            return 0;
+
+        long low = band.reopening ? 0 : band.dynamicLow;
+        long high = band.reopening ? Long.MAX_VALUE : band.dynamicHigh;
+        long limit = 0;
+        for (long price : prices) {
+            if (price < band.staticLow || price > band.staticHigh || price < low || price > high)
+                break;
+            limit = price;
+            low = lowerBound(price, dynamicPercent);
+            high = upperBound(price, dynamicPercent);
+        }
+        return limit;
+    }
+
+    /**
+     * Moves the dynamic band of a stock to the price of a fill, on the matching thread of the
+     * stock
+     *
+     * @param symbol The symbol of the stock
+     * @param price The price of the fill in ticks
+     */
+    public void filled(String symbol, long price) {
+        Band band = band(symbol);
+        band.dynamicLow = lowerBound(price, dynamicPercent);
+        band.dynamicHigh = upperBound(price, dynamicPercent);
+    }
+
+    /**
+     * Moves the dynamic band of a stock back to the last price of the stock in the database, e.g.
+     * after the fills that moved it were rolled back. The static band and any halt are kept.
+     *
+     * @param symbol The symbol of the stock
+     */
+    public void restore(String symbol) {
+        Band band = bands.get(symbol);
+        if (band == null)
+            return;
+
+        long last = stockRepo.findBySymbol(symbol).map(Stock::getLastPriceTicks).orElse(0L);
+        band.dynamicLow = lowerBound(last, dynamicPercent);
+        band.dynamicHigh = upperBound(last, dynamicPercent);
+    }
+
+    /**
+     * Forgets the bands of every stock at the close, so that the static bands of the next trading
+     * day are centred on the closing prices
+     */
+    @Scheduled(cron = "0 0 17 ? * MON-FRI", zone = "GMT+8")
+    public void reset() {
+        bands.clear();
+    }
+
+    private Band band(String symbol) {
+        return bands.computeIfAbsent(symbol, s -> {
+            long reference = stockRepo.findBySymbol(s).map(Stock::getLastPriceTicks).orElse(0L);
+            Band band = new Band();
+            band.staticLow = lowerBound(reference, staticPercent);
+            band.staticHigh = upperBound(reference, staticPercent);
+            band.dynamicLow = lowerBound(reference, dynamicPercent);
+            band.dynamicHigh = upperBound(reference, dynamicPercent);
+            return band;
+        });
+    }
+
+    // A band is disabled by a percentage of 0, and around a price of 0, i.e. an untraded stock
+    private static long lowerBound(long price, double percent) {
+        if (percent <= 0 || price <= 0)
+            return 0;
+        return price - (long) (price * percent / 100);
+    }
+
+    private static long upperBound(long price, double percent) {
+        if (percent <= 0 || price <= 0)
+            return Long.MAX_VALUE;
+        return price + (long) (price * percent / 100);
+    }
+}
@@ -0,0 +1,84 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+
+/**
+ * Fences the primary of a hot standby pair. Only the process that holds an exclusive lock on the
+ * file at ryverbank.replication.lock-path, shared by the primary and its standbys, may act as the
+ * primary: a primary takes the lock before it serves standbys, and a standby only takes over once
+ * it has taken the lock.
+ *
+ * The operating system releases the lock when the process holding it exits, however it exits. A
+ * primary that is only paused, e.g. by a long garbage collection, keeps it, so that a standby
+ * that has stopped hearing from it never matches trades alongside it.
+ */
+@Component
+public class PrimaryLock {
+    private final Path path;
+    private FileChannel channel;
+    private FileLock lock;
+
+    public PrimaryLock(
+    @Value("${ryverbank.replication.lock-path:./data/replication.lock}") String path) {
+        this.path = Paths.get(path).toAbsolutePath();
+    }
+
+    public Path getPath() { return path; }
+
+    /**
+     * Takes the lock, if no other process holds it
+     *
+     * @return true if this process holds the lock
+     */
+    public synchronized boolean tryAcquire() {
+        if (lock != null)
+            return true;
+
+        try {
+            Files.createDirectories(path.getParent());
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Held by another PrimaryLock in this process
+                lock = null;
+            }
+            if (lock == null) {
+                channel.close();
+                channel = null;
+            }
+            return lock != null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not lock " + path, e);
+        }
+    }
+
+    /**
+     * Releases the lock, if this process holds it
+     */
+    @PreDestroy
+    public synchronized void release() {
+        if (channel == null)
+            return;
+
+        try {
+            lock.release();
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not unlock " + path, e);
+        } finally {
+            lock = null;
+            channel = null;
+        }
+    }
+}
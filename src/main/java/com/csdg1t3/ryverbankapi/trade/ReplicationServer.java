@@ -0,0 +1,159 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Streams the trade journal to hot standby processes on this machine over a loopback socket.
+ *
+ * A standby that connects is first sent the resting orders as of the last journal record, in the
+ * snapshot format, and then every record appended after it, in the journal's own framing. A frame
+ * with a length of 0 is sent as a heartbeat whenever no record has been appended for
+ * heartbeat-ms, so that the standby notices a primary that has stopped without closing its socket.
+ *
+ * Records are queued for each standby by the thread that appends them, and written by a sender
+ * thread of its own, so a slow standby never holds up matching. A standby that falls so far
+ * behind that its queue fills is disconnected, and starts again from a fresh snapshot when it
+ * reconnects.
+ *
+ * Nothing is served unless ryverbank.replication.port is set, or while this process is itself a
+ * standby. A primary takes the PrimaryLock before it serves standbys, and refuses to start if
+ * another process holds it.
+ */
+@Component
+public class ReplicationServer {
+    private static final Logger log = LoggerFactory.getLogger(ReplicationServer.class);
+    private static final int QUEUE_SIZE = 65536;
+
+    private TradeJournal journal;
+    private StandbyFollower standby;
+    private PrimaryLock lock;
+    private final int port;
+    private final long heartbeatMs;
+
+    private ServerSocket server;
+    private final Set<Socket> standbys = ConcurrentHashMap.newKeySet();
+
+    public ReplicationServer(TradeJournal journal, StandbyFollower standby, PrimaryLock lock,
+    @Value("${ryverbank.replication.port:0}") int port,
+    @Value("${ryverbank.replication.heartbeat-ms:100}") long heartbeatMs) {
+        this.journal = journal;
+        this.standby = standby;
+        this.lock = lock;
+        this.port = port;
+        this.heartbeatMs = heartbeatMs;
+    }
+
+    /**
+     * Starts accepting standbys, when the application starts as a primary or when this process
+     * takes over as one
+     */
+    @EventListener({ApplicationReadyEvent.class, StandbyPromotedEvent.class})
+    public synchronized void start() {
+        if (port <= 0 || !journal.isEnabled() || standby.isStandby() || server != null)
+            return;
+        if (!lock.tryAcquire())
+            throw new IllegalStateException("Another primary holds " + lock.getPath());
+
+        try {
+            server = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            log.error("Failed to listen for standbys on port " + port, e);
+            return;
+        }
+        Thread acceptor = new Thread(this::accept, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Replicating the trade journal to standbys on port " + port);
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                standbys.add(socket);
+                Thread sender = new Thread(() -> send(socket), "replication-send");
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!server.isClosed())
+                    log.warn("Failed to accept standby", e);
+            }
+        }
+    }
+
+    // Sends the current resting orders, and then every record appended, until the standby leaves
+    private void send(Socket socket) {
+        BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        AtomicBoolean overflowed = new AtomicBoolean();
+        Consumer<byte[]> follower = frame -> {
+            if (!queue.offer(frame))
+                overflowed.set(true);
+        };
+
+        try (Socket s = socket; DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(socket.getOutputStream()))) {
+            byte[] snapshot = EngineSnapshotter.encode(journal.follow(follower));
+            out.writeInt(snapshot.length);
+            out.write(snapshot);
+            out.flush();
+            log.info("Standby " + socket.getRemoteSocketAddress() + " connected");
+
+            while (!overflowed.get()) {
+                byte[] frame = queue.poll(heartbeatMs, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    out.writeInt(0);
+                } else {
+                    out.write(frame);
+                    while ((frame = queue.poll()) != null)
+                        out.write(frame);
+                }
+                out.flush();
+            }
+            log.warn("Disconnected standby " + socket.getRemoteSocketAddress()
+            + ", as it fell too far behind");
+        } catch (IOException e) {
+            log.info("Standby " + socket.getRemoteSocketAddress() + " disconnected");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            journal.unfollow(follower);
+            standbys.remove(socket);
+        }
+    }
+
+    /**
+     * Stops accepting standbys and disconnects those connected, which then take over
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (server == null)
+            return;
+        try {
+            server.close();
+            for (Socket socket : standbys)
+                socket.close();
+        } catch (IOException e) {
+            log.error("Failed to close replication socket", e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import java.util.*;
+
+/**
+ * The set of resting orders, and the funds and assets they hold in reserve, as derived from the
+ * trade journal. Applying every journal record in sequence order rebuilds the state of the order
+ * books without querying the trade table.
+ */
+public class RestingOrders {
+    private final Map<Long, RestingOrder> orders = new LinkedHashMap<>();
+    private long lastSeq;
+
+    /**
+     * A resting order, holding only what is needed to rebuild books and reservations
+     */
+    public static class RestingOrder {
+        private final long id;
+        private final String symbol;
+        private final String action;
+        private long price;
+        private final long customerId;
+        private final long accountId;
+        private int remaining;
+        private long reserved;
+        private final long expiry;
+
+        public RestingOrder(long id, String symbol, String action, long price, long customerId,
+        long accountId, int remaining, long reserved, long expiry) {
+            this.id = id;
+            this.symbol = symbol;
+            this.action = action;
+            this.price = price;
+            this.customerId = customerId;
+            this.accountId = accountId;
+            this.remaining = remaining;
+            this.reserved = reserved;
+            this.expiry = expiry;
+        }
+
+        public long getId() { return id; }
+
+        public String getSymbol() { return symbol; }
+
+        public String getAction() { return action; }
+
+        // The limit price in ticks, or 0 for a market order
+        public long getPrice() { return price; }
+
+        public long getCustomerId() { return customerId; }
+
+        public long getAccountId() { return accountId; }
+
+        public int getRemaining() { return remaining; }
+
+        // The funds still reserved by a buy order, in cents
+        public long getReserved() { return reserved; }
+
+        // The expiry of a good-till-date order in milliseconds, or 0 for a day order
+        public long getExpiry() { return expiry; }
+    }
+
+    public long getLastSeq() { return lastSeq; }
+
+    public void setLastSeq(long lastSeq) { this.lastSeq = lastSeq; }
+
+    /**
+     * Applies a journal record. Records at or before the last applied sequence number are ignored,
+     * so a journal can be replayed on top of a snapshot.
+     *
+     * @param record The record to be applied
+     */
+    public void apply(JournalRecord record) {
+        if (record.getSeq() <= lastSeq)
+            return;
+        lastSeq = record.getSeq();
+
+        switch (record.getType()) {
+            case JournalRecord.ACCEPTED:
+                orders.putIfAbsent(record.getOrderId(), new RestingOrder(record.getOrderId(),
+                record.getSymbol(), record.getAction(), record.getPrice(), record.getCustomerId(),
+                record.getAccountId(), record.getQuantity(), record.getAmtReserved(), 
+                record.getExpiry()));
+                break;
+            case JournalRecord.FILL:
+                fill(record.getBuyId(), record.getPrice(), record.getQuantity());
+                fill(record.getSellId(), record.getPrice(), record.getQuantity());
+                break;
+            case JournalRecord.AMEND:
+                amend(record);
+                break;
+            case JournalRecord.EXPIRE_ALL:
+                // Market maker orders (account ID 0) do not expire, nor do good-till-date orders
+                // that expire later
+                orders.values().removeIf(order -> order.getAccountId() != 0 
+                    && (order.getExpiry() == 0 || order.getExpiry() <= record.getTimestamp()));
+                break;
+            default:
+                orders.remove(record.getOrderId());
+        }
+    }
+
+    private void fill(long id, long price, int qty) {
+        RestingOrder order = orders.get(id);
+        if (order == null)
+            return;
+
+        order.remaining -= qty;
+        if (order.action.equals("buy"))
+            order.reserved -= Price.valueInCents(price, qty);
+        if (order.remaining <= 0)
+            orders.remove(id);
+    }
+
+    // Orders that lost their time priority are moved to the back, behind later orders
+    private void amend(JournalRecord record) {
+        RestingOrder order = record.isRequeue() ? orders.remove(record.getOrderId()) 
+            : orders.get(record.getOrderId());
+        if (order == null)
+            return;
+
+        order.price = record.getPrice();
+        order.remaining = record.getQuantity();
+        order.reserved += record.getAmtReserved();
+        if (record.isRequeue())
+            orders.put(order.getId(), order);
+    }
+
+    /**
+     * Adds an order directly, e.g. when loading a snapshot
+     *
+     * @param order The order to be added
+     */
+    public void add(RestingOrder order) {
+        orders.put(order.getId(), order);
+    }
+
+    /**
+     * Creates a deep copy of this state, e.g. so that a snapshot can be written while the journal
+     * keeps applying records
+     *
+     * @return The copy
+     */
+    public RestingOrders copy() {
+        RestingOrders copy = new RestingOrders();
+        copy.lastSeq = lastSeq;
+        for (RestingOrder o : orders.values())
+            copy.add(new RestingOrder(o.id, o.symbol, o.action, o.price, o.customerId, o.accountId,
+            o.remaining, o.reserved, o.expiry));
+        return copy;
+    }
+
+    /**
+     * Retrieves all resting orders, in the order they were accepted
+     *
+     * @return The resting orders
+     */
+    public Collection<RestingOrder> getOrders() { return orders.values(); }
+
+    /**
+     * Sums the funds still reserved by resting buy orders, for each account
+     *
+     * @return A map of account ID to reserved funds in cents
+     */
+    public Map<Long, Long> reservedFunds() {
+        Map<Long, Long> reserved = new HashMap<>();
+        for (RestingOrder order : orders.values()) {
+            if (order.action.equals("buy") && order.accountId != 0)
+                reserved.merge(order.accountId, Math.max(order.reserved, 0), Long::sum);
+        }
+        return reserved;
+    }
+
+    /**
+     * Sums the quantity of each stock still reserved by resting sell orders, for each customer
+     *
+     * @return A map of customer ID to a map of stock symbol to reserved quantity
+     */
+    public Map<Long, Map<String, Integer>> reservedAssets() {
+        Map<Long, Map<String, Integer>> reserved = new HashMap<>();
+        for (RestingOrder order : orders.values()) {
+            if (order.action.equals("sell") && order.accountId != 0)
+                reserved.computeIfAbsent(order.customerId, id -> new HashMap<>())
+                    .merge(order.symbol, order.remaining, Integer::sum);
+        }
+        return reserved;
+    }
+}
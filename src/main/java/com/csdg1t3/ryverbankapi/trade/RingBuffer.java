@@ -0,0 +1,83 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, pre-allocated ring buffer that hands items from many producer threads to a single
+ * consumer thread without locks. Producers claim a sequence number, write into the slot for that
+ * sequence and then publish it; the consumer reads slots strictly in sequence order. When the
+ * buffer is full, producers spin, then back off, until the consumer frees a slot, which applies
+ * back-pressure to request threads instead of letting the queue grow without bound.
+ *
+ * @param <E> The type of item held by the buffer
+ */
+public class RingBuffer<E> {
+    private static final int MAX_SPINS = 100;
+    private static final long BACKOFF_NANOS = 1000;
+
+    private final Object[] entries;
+    private final AtomicLongArray published;
+    private final int mask;
+
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private volatile long consumed = -1;
+
+    /**
+     * Creates a ring buffer with the given number of slots
+     *
+     * @param capacity The number of slots, which must be a power of 2
+     */
+    public RingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Ring buffer capacity must be a power of 2");
+
+        this.entries = new Object[capacity];
+        this.published = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++)
+            published.set(i, -1);
+    }
+
+    public int capacity() { return entries.length; }
+
+    /**
+     * Publishes an item to the buffer, waiting for a free slot if the buffer is full. This method
+     * may be called by any number of threads.
+     *
+     * @param item The item to be published
+     */
+    public void publish(E item) {
+        long seq = claimed.incrementAndGet();
+        int spins = 0;
+        while (seq - entries.length > consumed) {
+            if (++spins < MAX_SPINS)
+                Thread.onSpinWait();
+            else
+                LockSupport.parkNanos(BACKOFF_NANOS);
+        }
+
+        int idx = (int)(seq & mask);
+        entries[idx] = item;
+        published.lazySet(idx, seq);
+    }
+
+    /**
+     * Takes the next item from the buffer. This method must only be called by the consumer thread.
+     *
+     * @return The next item, or null if no item has been published yet
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long next = consumed + 1;
+        int idx = (int)(next & mask);
+        if (published.get(idx) != next)
+            return null;
+
+        E item = (E)entries[idx];
+        entries[idx] = null;
+        consumed = next;
+        return item;
+    }
+}
@@ -0,0 +1,315 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.csdg1t3.ryverbankapi.account.*;
+
+/**
+ * Holds what pre-trade checks need in memory, so that accepting a trade does not read or write
+ * the database: the owner of each account, the listed stocks, and the available balance of each
+ * account and available quantity of each customer's assets.
+ *
+ * Funds and assets are reserved in memory, atomically per account or asset, and the reservation
+ * is written to the database later by the matching thread of the trade's stock, together with the
+ * rest of the trade's unit of work. Until then, it is counted as pending. When an available
+ * balance or quantity is read from the database, the pending reservations are taken off it, so
+ * that a reservation is never counted twice or lost however the two interleave.
+ *
+ * Other changes to balances and assets, e.g. fills, cancellations and transfers, are written to
+ * the database as before. The cached value is invalidated once they have been committed, and read
+ * again the next time it is needed.
+ *
+ * Cached accounts are only used for their ID and owner; their balances are not kept up to date.
+ */
+@Component
+public class RiskCache {
+    private AccountRepository accountRepo;
+    private AssetRepository assetRepo;
+    private StockRepository stockRepo;
+
+    private final Map<Long, Account> accounts = new ConcurrentHashMap<>();
+    private final Set<String> symbols = ConcurrentHashMap.newKeySet();
+    // Available balances in cents, by account ID
+    private final ConcurrentHashMap<Long, Available> funds = new ConcurrentHashMap<>();
+    // Available quantities, by customer ID and then by symbol
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<String, Available>> assets =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The available amount of an account or asset. Entries are only modified inside compute(),
+     * which runs one at a time per key. An entry that still has pending reservations is marked
+     * stale instead of being removed, so that its pending amount is not forgotten.
+     *
+     * An entry read while reservations are pending cannot tell whether the database already
+     * included them, as they are settled only after their transaction commits. Such an entry may
+     * undercount what is available, and is read again once they are settled.
+     */
+    private static class Available {
+        long amount;
+        long pending;
+        boolean held = true;
+        boolean stale = true;
+        boolean uncertain;
+    }
+
+    private interface Loader {
+        // Returns the available amount in the database, or null if there is none
+        Long load();
+    }
+
+    public RiskCache(AccountRepository accountRepo, AssetRepository assetRepo,
+    StockRepository stockRepo) {
+        this.accountRepo = accountRepo;
+        this.assetRepo = assetRepo;
+        this.stockRepo = stockRepo;
+    }
+
+    /**
+     * Retrieves an account, reading it from the database only the first time it is requested
+     *
+     * @param id The ID of the account
+     * @return The account, or null if it does not exist
+     */
+    public Account account(Long id) {
+        if (id == null)
+            return null;
+        return accounts.computeIfAbsent(id, key -> accountRepo.findById(key).orElse(null));
+    }
+
+    /**
+     * Checks whether a stock is listed. Stocks are never delisted, so only listed symbols are
+     * remembered.
+     *
+     * @param symbol The symbol of the stock
+     * @return true if the stock exists
+     */
+    public boolean isListed(String symbol) {
+        if (symbol == null)
+            return false;
+        if (symbols.contains(symbol))
+            return true;
+        if (!stockRepo.existsBySymbol(symbol))
+            return false;
+        symbols.add(symbol);
+        return true;
+    }
+
+    /**
+     * Reserves funds of an account, if its available balance covers them. The reservation is
+     * pending until settleFunds() is called.
+     *
+     * @param accountId The ID of the account
+     * @param cents The amount to reserve, in cents
+     * @return true if the funds were reserved
+     */
+    public boolean reserveFunds(Long accountId, long cents) {
+        return reserve(funds, accountId, cents, () -> {
+            Optional<Account> acc = accountRepo.findById(accountId);
+            return acc.isPresent() ? acc.get().getAvailableBalanceCents() : null;
+        });
+    }
+
+    /**
+     * Records that a reservation of funds has been written to the database, once the current 
+     * transaction commits if there is one. If it rolls back instead, the reservation is taken 
+     * back.
+     *
+     * @param accountId The ID of the account
+     * @param cents The amount that was reserved, in cents
+     */
+    public void settleFunds(Long accountId, long cents) {
+        afterCompletion(() -> settle(funds, accountId, cents), 
+            () -> release(funds, accountId, cents));
+    }
+
+    /**
+     * Takes back a reservation of funds that will not be written to the database, e.g. because
+     * the trade could not be saved
+     *
+     * @param accountId The ID of the account
+     * @param cents The amount that was reserved, in cents
+     */
+    public void releaseFunds(Long accountId, long cents) {
+        release(funds, accountId, cents);
+    }
+
+    /**
+     * Checks whether a customer holds any of a stock
+     *
+     * @param customerId The ID of the customer
+     * @param symbol The symbol of the stock
+     * @return true if the customer has an asset of the stock
+     */
+    public boolean holds(Long customerId, String symbol) {
+        boolean[] held = new boolean[1];
+        assetsOf(customerId).compute(symbol, (key, entry) -> {
+            entry = load(entry, assetLoader(customerId, symbol));
+            held[0] = entry.held;
+            return entry;
+        });
+        return held[0];
+    }
+
+    /**
+     * Reserves a quantity of a customer's asset, if its available quantity covers it. The
+     * reservation is pending until settleAssets() is called.
+     *
+     * @param customerId The ID of the customer
+     * @param symbol The symbol of the stock
+     * @param qty The quantity to reserve
+     * @return true if the quantity was reserved
+     */
+    public boolean reserveAssets(Long customerId, String symbol, int qty) {
+        return reserve(assetsOf(customerId), symbol, qty, assetLoader(customerId, symbol));
+    }
+
+    /**
+     * Records that a reservation of assets has been written to the database, once the current 
+     * transaction commits if there is one. If it rolls back instead, the reservation is taken 
+     * back.
+     *
+     * @param customerId The ID of the customer
+     * @param symbol The symbol of the stock
+     * @param qty The quantity that was reserved
+     */
+    public void settleAssets(Long customerId, String symbol, int qty) {
+        afterCompletion(() -> settle(assetsOf(customerId), symbol, qty), 
+            () -> release(assetsOf(customerId), symbol, qty));
+    }
+
+    /**
+     * Takes back a reservation of assets that will not be written to the database
+     *
+     * @param customerId The ID of the customer
+     * @param symbol The symbol of the stock
+     * @param qty The quantity that was reserved
+     */
+    public void releaseAssets(Long customerId, String symbol, int qty) {
+        release(assetsOf(customerId), symbol, qty);
+    }
+
+    /**
+     * Forgets the available balance of an account once the current transaction commits, so that
+     * it is read again after it was changed in the database
+     *
+     * @param accountId The ID of the account
+     */
+    public void invalidateAccount(Long accountId) {
+        afterCompletion(() -> invalidate(funds, accountId), null);
+    }
+
+    /**
+     * Forgets the available quantity of a customer's asset once the current transaction commits
+     *
+     * @param customerId The ID of the customer
+     * @param symbol The symbol of the stock
+     */
+    public void invalidateAsset(Long customerId, String symbol) {
+        afterCompletion(() -> invalidate(assetsOf(customerId), symbol), null);
+    }
+
+    /**
+     * Forgets every available balance and quantity once the current transaction commits, e.g.
+     * after reservations were released in bulk at the close
+     */
+    public void invalidateAll() {
+        afterCompletion(() -> {
+            for (Long id : funds.keySet())
+                invalidate(funds, id);
+            for (ConcurrentHashMap<String, Available> held : assets.values()) {
+                for (String symbol : held.keySet())
+                    invalidate(held, symbol);
+            }
+        }, null);
+    }
+
+    private ConcurrentHashMap<String, Available> assetsOf(Long customerId) {
+        return assets.computeIfAbsent(customerId, id -> new ConcurrentHashMap<>());
+    }
+
+    private Loader assetLoader(Long customerId, String symbol) {
+        return () -> {
+            Optional<Asset> asset = assetRepo.findByPortfolioCustomerIdAndCode(customerId, symbol);
+            return asset.isPresent() ? Long.valueOf(asset.get().getAvailable_quantity()) : null;
+        };
+    }
+
+    private static <K> boolean reserve(ConcurrentHashMap<K, Available> map, K key, long amount,
+    Loader loader) {
+        if (key == null)
+            return false;
+
+        boolean[] reserved = new boolean[1];
+        map.compute(key, (k, entry) -> {
+            entry = load(entry, loader);
+            if (entry.held && entry.amount >= amount) {
+                entry.amount -= amount;
+                entry.pending += amount;
+                reserved[0] = true;
+            }
+            return entry;
+        });
+        return reserved[0];
+    }
+
+    // Reads an entry from the database if it is missing or stale, less what is still pending
+    private static Available load(Available entry, Loader loader) {
+        if (entry == null)
+            entry = new Available();
+        if (!entry.stale)
+            return entry;
+
+        Long amount = loader.load();
+        entry.held = amount != null;
+        entry.amount = amount == null ? 0 : amount - entry.pending;
+        entry.stale = false;
+        entry.uncertain = entry.pending > 0;
+        return entry;
+    }
+
+    private static <K> void settle(ConcurrentHashMap<K, Available> map, K key, long amount) {
+        map.computeIfPresent(key, (k, entry) -> {
+            entry.pending -= amount;
+            if (entry.uncertain && entry.pending == 0)
+                entry.stale = true;
+            return entry.pending == 0 && entry.stale ? null : entry;
+        });
+    }
+
+    private static <K> void release(ConcurrentHashMap<K, Available> map, K key, long amount) {
+        map.computeIfPresent(key, (k, entry) -> {
+            entry.pending -= amount;
+            entry.amount += amount;
+            return entry.pending == 0 && entry.stale ? null : entry;
+        });
+    }
+
+    private static <K> void invalidate(ConcurrentHashMap<K, Available> map, K key) {
+        map.computeIfPresent(key, (k, entry) -> {
+            entry.stale = true;
+            return entry.pending == 0 ? null : entry;
+        });
+    }
+
+    // Runs an action once the current transaction commits, or at once if there is none
+    private static void afterCompletion(Runnable committed, Runnable rolledBack) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            committed.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_COMMITTED)
+                    committed.run();
+                else if (rolledBack != null)
+                    rolledBack.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,38 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+
+/**
+ * Rejects API requests with 503 Service Unavailable while this process is a hot standby, so that
+ * clients retry against the primary until the standby takes over
+ */
+@Component
+public class StandbyFilter extends OncePerRequestFilter {
+    private StandbyFollower standby;
+
+    public StandbyFilter(StandbyFollower standby) {
+        this.standby = standby;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !standby.isStandby() || !request.getServletPath().startsWith("/api/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+    FilterChain chain) throws ServletException, IOException {
+        response.setHeader("Retry-After", "1");
+        response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(),
+            "This node is a standby and does not serve requests");
+    }
+}
@@ -0,0 +1,186 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Runs this process as a hot standby of a primary on the same machine, when
+ * ryverbank.replication.primary is set to the primary's replication address, e.g.
+ * "localhost:9090".
+ *
+ * The standby tails the primary's trade journal through its ReplicationServer, and keeps the
+ * resting orders and the reservations they hold up to date in memory, so that taking over does
+ * not replay the journal or scan the trade table. Balances, portfolios and trades are read from
+ * the database that both processes share.
+ *
+ * While it is a standby, the process serves no requests and runs no matching jobs. If nothing,
+ * not even a heartbeat, has been heard from the primary for takeover-ms, and the primary cannot
+ * be reached again, the standby takes over once it holds the PrimaryLock, which the old primary
+ * only gives up by exiting. It then becomes a primary and publishes a StandbyPromotedEvent with
+ * the resting orders it replicated, from which the order books and reservations are restored. A
+ * standby that has never reached its primary keeps waiting for it.
+ */
+@Component
+public class StandbyFollower {
+    private static final Logger log = LoggerFactory.getLogger(StandbyFollower.class);
+
+    private ApplicationEventPublisher events;
+    private PrimaryLock lock;
+    private final InetSocketAddress primary;
+    private final int takeoverMs;
+
+    private volatile boolean standby;
+    private volatile boolean stopped;
+    private RestingOrders state;
+    private long lastHeard;
+
+    public StandbyFollower(ApplicationEventPublisher events, PrimaryLock lock,
+    @Value("${ryverbank.replication.primary:}") String primary,
+    @Value("${ryverbank.replication.takeover-ms:500}") int takeoverMs) {
+        this.events = events;
+        this.lock = lock;
+        this.takeoverMs = takeoverMs;
+        if (primary == null || primary.isEmpty()) {
+            this.primary = null;
+            return;
+        }
+
+        int colon = primary.lastIndexOf(':');
+        this.primary = InetSocketAddress.createUnresolved(primary.substring(0, colon),
+            Integer.parseInt(primary.substring(colon + 1)));
+        this.standby = true;
+    }
+
+    /**
+     * Checks whether this process is a standby that has not taken over yet
+     *
+     * @return true if this process must not serve requests or match trades
+     */
+    public boolean isStandby() { return standby; }
+
+    /**
+     * Retrieves the sequence number of the last record replicated from the primary
+     *
+     * @return The sequence number, or -1 if the primary has not been reached yet
+     */
+    public synchronized long getReplicatedSeq() {
+        return state == null ? -1 : state.getLastSeq();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!standby)
+            return;
+
+        Thread follower = new Thread(this::follow, "replication-follow");
+        follower.setDaemon(true);
+        follower.start();
+        log.info("Following primary at " + primary);
+    }
+
+    // Tails the primary, reconnecting until it has been silent for takeover-ms, a reconnection
+    // has failed, and the primary lock has been released
+    private void follow() {
+        boolean fenced = false;
+        while (!stopped) {
+            long heard = lastHeard;
+            try {
+                receive();
+            } catch (IOException e) {
+                if (stopped)
+                    return;
+                // A connection that timed out after hearing from the primary is retried; only an
+                // attempt that heard nothing, not even the snapshot, shows it cannot be reached
+                boolean unreachable = lastHeard == heard;
+                if (!unreachable)
+                    fenced = false;
+                if (state != null && unreachable 
+                    && System.currentTimeMillis() - lastHeard >= takeoverMs) {
+                    if (lock.tryAcquire()) {
+                        promote();
+                        return;
+                    }
+                    if (!fenced) {
+                        log.warn("Primary at " + primary + " is silent but still holds " 
+                        + lock.getPath() + ", waiting for it to exit");
+                        fenced = true;
+                    }
+                }
+            }
+
+            try {
+                Thread.sleep(Math.max(takeoverMs / 10, 1));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Reads the primary's resting orders, and then applies its records as they arrive
+    private void receive() throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(primary.getHostString(), primary.getPort()),
+                takeoverMs);
+            // Heartbeats arrive many times within this timeout
+            socket.setSoTimeout(takeoverMs);
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+
+            byte[] snapshot = new byte[in.readInt()];
+            in.readFully(snapshot);
+            RestingOrders received = EngineSnapshotter.decode(snapshot);
+            synchronized (this) {
+                state = received;
+            }
+            lastHeard = System.currentTimeMillis();
+            log.info("Replicated " + received.getOrders().size() + " resting trades up to "
+            + "journal sequence " + received.getLastSeq());
+
+            while (!stopped) {
+                int length = in.readInt();
+                lastHeard = System.currentTimeMillis();
+                if (length == 0)
+                    continue;
+
+                byte[] frame = new byte[length + 8];
+                ByteBuffer.wrap(frame).putInt(length).putInt(in.readInt());
+                in.readFully(frame, 8, length);
+                JournalRecord record = TradeJournal.decodeFrame(ByteBuffer.wrap(frame));
+                if (record == null)
+                    throw new IOException("Corrupt journal record from primary");
+                synchronized (this) {
+                    state.apply(record);
+                }
+            }
+        }
+    }
+
+    private void promote() {
+        RestingOrders replicated;
+        synchronized (this) {
+            replicated = state;
+            standby = false;
+        }
+        log.warn("Primary at " + primary + " has been silent for " + takeoverMs
+        + "ms, taking over with " + replicated.getOrders().size() + " resting trades");
+        events.publishEvent(new StandbyPromotedEvent(replicated));
+    }
+
+    @PreDestroy
+    public void stop() {
+        stopped = true;
+    }
+}
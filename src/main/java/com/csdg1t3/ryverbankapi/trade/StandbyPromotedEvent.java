@@ -0,0 +1,15 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+/**
+ * Published when a hot standby takes over from a primary that stopped responding, with the
+ * resting orders it replicated up to the last record it received
+ */
+public class StandbyPromotedEvent {
+    private final RestingOrders state;
+
+    public StandbyPromotedEvent(RestingOrders state) {
+        this.state = state;
+    }
+
+    public RestingOrders getState() { return state; }
+}
@@ -1,6 +1,7 @@
 package com.csdg1t3.ryverbankapi.trade;
 
 import javax.persistence.*;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * POJO that stores the details of a stock
@@ -10,15 +11,16 @@ public class Stock {
     @Id
     private String symbol;
     
-    private double last_price;
+    // Prices are stored in ticks, see Price
+    private long last_price;
 
     private int bid_volume;
 
-    private double bid;
+    private long bid;
 
     private int ask_volume;
 
-    private double ask; 
+    private long ask; 
 
     /**
      * Empty constructor for class Stock.
@@ -36,41 +38,56 @@ public class Stock {
      */
     public Stock(String symbol, double last_price, int bid_volume, double bid, int ask_volume, double ask){
         this.symbol = symbol;
-        this.last_price = last_price;
+        setLast_price(last_price);
         this.bid_volume = bid_volume;
-        this.bid = bid;
+        setBid(bid);
         this.ask_volume = ask_volume;
-        this.ask = ask;
+        setAsk(ask);
     }
 
     public String getSymbol() { return symbol; }
 
-    public double getLast_price() { return last_price; }
+    public double getLast_price() { return Price.fromTicks(last_price); }
 
     public int getBid_volume() { return bid_volume; }
 
-    public double getBid() { return bid; }
+    public double getBid() { return Price.fromTicks(bid); }
 
     public int getAsk_volume() { return ask_volume; }
 
-    public double getAsk(){ return ask; }
+    public double getAsk(){ return Price.fromTicks(ask); }
+
+    @JsonIgnore
+    public long getLastPriceTicks() { return last_price; }
+
+    @JsonIgnore
+    public long getBidTicks() { return bid; }
+
+    @JsonIgnore
+    public long getAskTicks() { return ask; }
 
     public void setSymbol(String symbol) { this.symbol = symbol; }
 
-    public void setLast_price(double last_price) { this.last_price = last_price; }
+    public void setLast_price(double last_price) { this.last_price = Price.toTicks(last_price); }
 
     public void setBid_volume(int bid_volume) { this.bid_volume = bid_volume; }
 
-    public void setBid(double bid) { this.bid = bid; }
+    public void setBid(double bid) { this.bid = Price.toTicks(bid); }
 
     public void setAsk_volume(int ask_volume) { this.ask_volume = ask_volume; }
 
-    public void setAsk(double ask) { this.ask = ask; }
+    public void setAsk(double ask) { this.ask = Price.toTicks(ask); }
+
+    public void setLastPriceTicks(long last_price) { this.last_price = last_price; }
+
+    public void setBidTicks(long bid) { this.bid = bid; }
+
+    public void setAskTicks(long ask) { this.ask = ask; }
 
     @Override
     public String toString() {
         return String.format("Symbol[id=%s, Last Price=%.2f, Bid Volume=%d, Bid = %.2f, Ask Volume = %d, Ask=%.2f]", 
-        symbol, last_price, bid_volume, bid, ask_volume, ask);
+        symbol, getLast_price(), bid_volume, getBid(), ask_volume, getAsk());
     }
 
 }
@@ -4,6 +4,8 @@ import org.springframework.stereotype.Service;
 
 import java.util.*;
 
+import com.csdg1t3.ryverbankapi.cluster.*;
+
 /**
  * Service layer for stocks that helps to fetch up-to-date stock prices
  */
@@ -12,17 +14,27 @@ public class StockService {
 
     private StockRepository stockRepo;
     private TradeService tradeSvc;
+    private ClusterMembership cluster;
 
-    public StockService(StockRepository stockRepo, TradeService tradeSvc) {
+    public StockService(StockRepository stockRepo, TradeService tradeSvc, 
+    ClusterMembership cluster) {
         this.stockRepo = stockRepo;
         this.tradeSvc = tradeSvc;
+        this.cluster = cluster;
     }
 
+    /**
+     * Retrieves every stock. In a cluster, only the stocks owned by this node are updated from
+     * the order books; the others are returned as their owner last saved them.
+     * 
+     * @return The list of stocks
+     */
     public List<Stock> getAllUpdatedStocks() {
         List<Stock> stocks = stockRepo.findAll();
 
-        for (Stock stock : stocks) {
-            updateStockDetails(stock);
+        for (int i = 0; i < stocks.size(); i++) {
+            if (cluster.isLocal(stocks.get(i).getSymbol()))
+                stocks.set(i, updateStockDetails(stocks.get(i)));
         }
 
         return stocks;
@@ -33,41 +45,19 @@ public class StockService {
         if (stockOpt.isEmpty())
             return stockOpt;
         
-        Stock stock = stockOpt.get();
-        updateStockDetails(stock);
-
-        return Optional.of(stock);
+        return Optional.of(updateStockDetails(stockOpt.get()));
     }
 
     /**
-     * Updates a stock's bid volume, bid, ask volume and ask using methods from
-     * TradeService. It then saves the updated stock to the database
+     * Updates a stock's bid volume, bid, ask volume and ask from the best price levels of its
+     * order book. The stock is updated and saved on its matching thread rather than on the 
+     * request thread, so that a stale copy never overwrites the last price of a fill.
      * 
      * @param stock The stock to be updated
+     * @return The updated stock, or the stock as given if it no longer exists
      */
-    public void updateStockDetails(Stock stock) {
-        double bid, ask;
-        bid = ask = stock.getLast_price();
-        int bid_volume, ask_volume;
-        bid_volume = ask_volume = 0;
-        Trade buy = tradeSvc.getHighestBidTradeForStock(stock.getSymbol());
-        Trade sell = tradeSvc.getLowestAskTradeForStock(stock.getSymbol());
-        
-        if (buy != null) {
-            bid_volume = buy.getRemaining_quantity();
-            bid = buy.getBid();
-        }
-
-        if (sell != null) {
-            ask_volume = sell.getRemaining_quantity();
-            ask = sell.getAsk();
-        }
-
-        stock.setBid_volume(bid_volume);
-        stock.setBid(bid);
-        stock.setAsk_volume(ask_volume);
-        stock.setAsk(ask);
-
-        stockRepo.save(stock);
+    public Stock updateStockDetails(Stock stock) {
+        Stock updated = tradeSvc.updateQuote(stock.getSymbol());
+        return updated == null ? stock : updated;
     }
 }
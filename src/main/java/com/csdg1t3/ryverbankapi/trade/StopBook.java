@@ -0,0 +1,99 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import java.util.*;
+
+/**
+ * Pending stop and stop-limit trades of a single stock, waiting for the last price of the stock to
+ * reach their stop price. A buy stop is triggered once the last price rises to or above its stop
+ * price, and a sell stop once the last price falls to or below it.
+ *
+ * Stops are kept in price levels sorted by stop price, each holding its trade IDs in time order,
+ * so that a change in the last price only visits the levels it crosses: triggering costs
+ * O(log n) per level crossed, however many stops are pending. Triggered trade IDs are queued in
+ * the order they should enter the order book, i.e. nearest stop price first, then earliest first.
+ *
+ * A stop book is not thread safe, and should only be modified by the thread matching trades for
+ * its stock.
+ */
+public class StopBook {
+    // Buy stops trigger from the lowest stop price up, sell stops from the highest down
+    private final TreeMap<Long, LinkedHashSet<Long>> buyStops = new TreeMap<>();
+    private final TreeMap<Long, LinkedHashSet<Long>> sellStops =
+        new TreeMap<>(Comparator.reverseOrder());
+
+    // The stop price of each pending trade, negated for sell stops
+    private final Map<Long, Long> pending = new HashMap<>();
+    private final ArrayDeque<Long> triggered = new ArrayDeque<>();
+
+    public int size() { return pending.size(); }
+
+    public boolean contains(Long id) { return id != null && pending.containsKey(id); }
+
+    /**
+     * Adds a pending stop trade to the book
+     *
+     * @param trade The trade, which must have a stop price
+     */
+    public void add(Trade trade) {
+        long stop = trade.getStopTicks();
+        boolean buy = trade.getAction().equals("buy");
+        (buy ? buyStops : sellStops).computeIfAbsent(stop, s -> new LinkedHashSet<>())
+            .add(trade.getId());
+        pending.put(trade.getId(), buy ? stop : -stop);
+    }
+
+    /**
+     * Removes a pending stop trade from the book, e.g. when it is cancelled
+     *
+     * @param id The ID of the trade
+     * @return true if the trade was pending in the book
+     */
+    public boolean remove(Long id) {
+        Long key = pending.remove(id);
+        if (key == null)
+            return false;
+
+        TreeMap<Long, LinkedHashSet<Long>> side = key >= 0 ? buyStops : sellStops;
+        long stop = Math.abs(key);
+        LinkedHashSet<Long> level = side.get(stop);
+        level.remove(id);
+        if (level.isEmpty())
+            side.remove(stop);
+        return true;
+    }
+
+    /**
+     * Triggers every stop crossed by a new last price. Triggered trades are removed from the book
+     * and queued, to be taken with nextTriggered() once the current fill has completed.
+     *
+     * @param lastPrice The new last price of the stock, in ticks
+     * @return The number of trades triggered
+     */
+    public int trigger(long lastPrice) {
+        int count = popCrossed(buyStops.headMap(lastPrice, true));
+        return count + popCrossed(sellStops.headMap(lastPrice, true));
+    }
+
+    private int popCrossed(SortedMap<Long, LinkedHashSet<Long>> crossed) {
+        int count = 0;
+        for (LinkedHashSet<Long> level : crossed.values()) {
+            for (Long id : level) {
+                pending.remove(id);
+                triggered.add(id);
+                count++;
+            }
+        }
+        crossed.clear();
+        return count;
+    }
+
+    /**
+     * Takes the next triggered trade off the queue
+     *
+     * @return The ID of the trade, or OrderBook.NONE if no trade is waiting
+     */
+    public long nextTriggered() {
+        Long id = triggered.poll();
+        return id == null ? OrderBook.NONE : id;
+    }
+}
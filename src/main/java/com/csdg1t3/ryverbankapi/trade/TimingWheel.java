@@ -0,0 +1,158 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import java.util.*;
+import java.util.function.LongConsumer;
+
+/**
+ * Schedules trade IDs to fire at a deadline, e.g. the expiry of good-till-date trades.
+ *
+ * The wheel is hierarchical: level 0 has one slot per tick, and each slot of level n covers all
+ * the slots of level n - 1. A deadline is placed in the lowest level that reaches it, so that
+ * scheduling is O(1) however far away the deadline is. Each time a level's slot comes round, its
+ * entries are moved down to the level below, and every entry is moved at most once per level
+ * before it fires, so that firing is O(1) amortised.
+ *
+ * A cancelled ID is only forgotten, and skipped when its slot comes round. Deadlines are rounded
+ * up to the next tick, so an ID never fires early.
+ *
+ * A timing wheel is not thread safe, and should only be used by the thread matching trades for
+ * its stock.
+ */
+public class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 6;
+
+    private final long tickMs;
+    private final Bucket[][] levels = new Bucket[LEVELS][SLOTS];
+    // IDs whose deadline had already passed when they were scheduled
+    private final Bucket overdue = new Bucket();
+    // The deadline tick of each scheduled ID
+    private final Map<Long, Long> deadlines = new HashMap<>();
+    private long current;
+
+    // The IDs in a slot, in the order they were added
+    private static class Bucket {
+        long[] ids = new long[4];
+        int size;
+
+        void add(long id) {
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        long[] drain() {
+            long[] drained = Arrays.copyOf(ids, size);
+            size = 0;
+            return drained;
+        }
+    }
+
+    /**
+     * Creates an empty wheel
+     *
+     * @param tickMs The length of a tick in milliseconds
+     * @param start The current time in milliseconds
+     */
+    public TimingWheel(long tickMs, long start) {
+        this.tickMs = tickMs;
+        this.current = start / tickMs;
+        for (Bucket[] level : levels) {
+            for (int i = 0; i < SLOTS; i++)
+                level[i] = new Bucket();
+        }
+    }
+
+    public int size() { return deadlines.size(); }
+
+    public boolean contains(Long id) { return id != null && deadlines.containsKey(id); }
+
+    /**
+     * Schedules an ID to fire at a deadline. An ID that is already scheduled is moved to the new
+     * deadline.
+     *
+     * @param id The ID, e.g. of a trade
+     * @param deadline The time it should fire, in milliseconds
+     */
+    public void schedule(long id, long deadline) {
+        long tick = Math.floorDiv(deadline + tickMs - 1, tickMs);
+        deadlines.put(id, tick);
+        place(id, tick);
+    }
+
+    /**
+     * Forgets a scheduled ID, e.g. when its trade is filled or cancelled
+     *
+     * @param id The ID
+     * @return true if the ID was scheduled
+     */
+    public boolean cancel(Long id) {
+        return deadlines.remove(id) != null;
+    }
+
+    /**
+     * Moves the wheel forward to the given time, firing every ID whose deadline has passed, in
+     * deadline order. IDs with the same deadline fire in the order they were scheduled.
+     *
+     * @param now The current time in milliseconds
+     * @param fired Called with each ID that fires
+     */
+    public void advance(long now, LongConsumer fired) {
+        fire(overdue, fired);
+        long target = Math.floorDiv(now, tickMs);
+        while (current < target) {
+            current++;
+            cascade(1);
+            fire(levels[0][(int)(current & (SLOTS - 1))], fired);
+            // Entries moved down by the cascade that are due on this very tick
+            fire(overdue, fired);
+        }
+    }
+
+    // Moves the entries of the slot that has come round at a level down to the levels below,
+    // starting from the highest level whose slot has come round
+    private void cascade(int level) {
+        if (level >= LEVELS || (current & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+            return;
+
+        cascade(level + 1);
+        Bucket bucket = levels[level][(int)((current >>> (SLOT_BITS * level)) & (SLOTS - 1))];
+        for (long id : bucket.drain()) {
+            Long tick = deadlines.get(id);
+            if (tick != null)
+                place(id, tick);
+        }
+    }
+
+    private void fire(Bucket bucket, LongConsumer fired) {
+        for (long id : bucket.drain()) {
+            Long tick = deadlines.get(id);
+            if (tick == null)
+                continue;
+            if (tick > current) {
+                // Moved to a later deadline since it was placed here
+                place(id, tick);
+                continue;
+            }
+            deadlines.remove(id);
+            fired.accept(id);
+        }
+    }
+
+    private void place(long id, long tick) {
+        long delta = tick - current;
+        if (delta <= 0) {
+            overdue.add(id);
+            return;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+            level++;
+        // Deadlines beyond the top level wait in its furthest slot, and are placed again from there
+        if (level == LEVELS - 1 && delta >= 1L << (SLOT_BITS * LEVELS))
+            tick = current + (1L << (SLOT_BITS * LEVELS)) - 1;
+        levels[level][(int)((tick >>> (SLOT_BITS * level)) & (SLOTS - 1))].add(id);
+    }
+}
@@ -16,7 +16,8 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 @Entity
 public class Trade {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "trade_seq")
+    @SequenceGenerator(name = "trade_seq", sequenceName = "trade_seq", allocationSize = 50)
     private Long id;
 
     @NotNull(message = "action should not be null")
@@ -29,9 +30,24 @@ public class Trade {
     @Positive(message = "quantity should be positive")
     private int quantity;
 
-    private Double bid;
+    // Bid and ask prices are stored in ticks, see Price
+    private Long bid;
 
-    private Double ask;
+    private Long ask;
+
+    // Stop price in ticks. A trade with a stop price is held back, with status "pending", until 
+    // the last price of its stock reaches the stop price. It then enters the order book as a 
+    // market trade (stop) or as a limit trade at its bid or ask (stop-limit).
+    private Long stop;
+
+    // Time in force: "day" (the default) trades rest in the order book until they are filled or 
+    // expire, while "ioc" (immediate-or-cancel) trades cancel whatever they cannot fill at once, 
+    // and "fok" (fill-or-kill) trades are cancelled unless they can be filled in full at once
+    private String time_in_force;
+
+    // Expiry time of a good-till-date trade, in milliseconds. Trades without one are day trades, 
+    // which expire at 5pm on the day they are placed.
+    private Long expiry;
 
     private Double avg_price;
 
@@ -62,8 +78,20 @@ public class Trade {
     @JsonIgnore
     private boolean processed;
 
+    // Funds reserved for a buy trade, in cents
+    @JsonIgnore
+    private Long amtReserved;
+
+    // Funds spent on the fills of a buy trade so far, in cents. Each fill adds its own value, 
+    // rounded as it was paid, so that what is left of the reservation is exact.
     @JsonIgnore
-    private Double amtReserved;
+    private Long amtSpent;
+
+    // Set while the funds or assets reserved for a new trade are only held in memory by the risk 
+    // cache, until the matching thread writes them together with the trade
+    @Transient
+    @JsonIgnore
+    private boolean reservationPending;
 
     /**
      * Empty constructor for class Trade.
@@ -94,8 +122,8 @@ public class Trade {
         this.action = action;
         this.symbol = symbol;
         this.quantity = quantity;
-        this.bid = bid;
-        this.ask = ask;
+        setBid(bid);
+        setAsk(ask);
         this.avg_price = avg_price;
         this.filled_quantity = filled_quantity;
         this.date = date;
@@ -105,7 +133,7 @@ public class Trade {
         this.customer = customer;
         this.status = status;
         this.processed = processed;
-        this.amtReserved = amtReserved;
+        setAmtReserved(amtReserved);
     }
 
     public Long getId() { return id; }
@@ -116,9 +144,85 @@ public class Trade {
 
     public int getQuantity() { return quantity; }
 
-    public Double getBid() { return bid; }
+    public Double getBid() { return bid == null ? null : Price.fromTicks(bid); }
+
+    public Double getAsk() { return ask == null ? null : Price.fromTicks(ask); }
+
+    /**
+     * Retrieves the bid in ticks
+     * 
+     * @return The bid in ticks, or 0 if there is no bid (i.e. a market buy, or a sell trade)
+     */
+    @JsonIgnore
+    public long getBidTicks() { return bid == null ? 0 : bid; }
+
+    /**
+     * Retrieves the ask in ticks
+     * 
+     * @return The ask in ticks, or 0 if there is no ask (i.e. a market sell, or a buy trade)
+     */
+    @JsonIgnore
+    public long getAskTicks() { return ask == null ? 0 : ask; }
+
+    /**
+     * Retrieves the limit price of the trade in ticks, whichever its action
+     * 
+     * @return The bid of a buy trade or the ask of a sell trade, or 0 for a market trade
+     */
+    @JsonIgnore
+    public long getPriceTicks() { return "buy".equals(action) ? getBidTicks() : getAskTicks(); }
+
+    /**
+     * Checks whether the trade is a market trade, i.e. one that has no limit price
+     * 
+     * @return true if the trade is a market trade
+     */
+    @JsonIgnore
+    public boolean isMarket() { return getPriceTicks() == 0; }
+
+    public Double getStop() { return stop == null ? null : Price.fromTicks(stop); }
+
+    @JsonIgnore
+    public long getStopTicks() { return stop == null ? 0 : stop; }
+
+    /**
+     * Checks whether this is a stop or stop-limit trade
+     * 
+     * @return true if the trade has a stop price
+     */
+    @JsonIgnore
+    public boolean isStop() { return getStopTicks() > 0; }
+
+    /**
+     * Checks whether a last price has reached the stop price of this trade: at or above it for a
+     * buy, at or below it for a sell
+     * 
+     * @param lastPrice The last price of the stock, in ticks
+     * @return true if the stop is triggered at that price
+     */
+    @JsonIgnore
+    public boolean isStopTriggered(long lastPrice) {
+        return "buy".equals(action) ? lastPrice >= getStopTicks() : lastPrice <= getStopTicks();
+    }
+
+    public String getTime_in_force() { return time_in_force == null ? "day" : time_in_force; }
+
+    /**
+     * Checks whether the trade must be matched at once, i.e. whether it is an immediate-or-cancel
+     * or fill-or-kill trade. Such trades never rest in the order book.
+     * 
+     * @return true if the trade is an IOC or FOK trade
+     */
+    @JsonIgnore
+    public boolean isImmediate() { return "ioc".equals(time_in_force) || isFillOrKill(); }
+
+    @JsonIgnore
+    public boolean isFillOrKill() { return "fok".equals(time_in_force); }
+
+    public Long getExpiry() { return expiry; }
 
-    public Double getAsk() { return ask; }
+    @JsonIgnore
+    public boolean isGoodTillDate() { return expiry != null; }
 
     public Double getAvg_price() { return avg_price; }
 
@@ -141,10 +245,39 @@ public class Trade {
     public boolean getProcessed() { return processed; }
 
     @JsonIgnore
-    public Double getAmtReserved() { return amtReserved; }
+    public boolean isReservationPending() { return reservationPending; }
+
+    @JsonIgnore
+    public Double getAmtReserved() { return amtReserved == null ? null : Price.fromCents(amtReserved); }
 
     @JsonIgnore
-    public Double getAmtRemaining() { return amtReserved - avg_price * filled_quantity; }
+    public long getAmtReservedCents() { return amtReserved == null ? 0 : amtReserved; }
+
+    /**
+     * Retrieves the funds spent on fills so far. Trades saved before this was tracked, or created
+     * already filled, fall back to their average price.
+     * 
+     * @return The funds spent in cents
+     */
+    @JsonIgnore
+    public long getAmtSpentCents() { 
+        if (amtSpent != null)
+            return amtSpent;
+        return avg_price == null ? 0 : Price.toCents(avg_price * filled_quantity);
+    }
+
+    @JsonIgnore
+    public Double getAmtRemaining() { return Price.fromCents(getAmtRemainingCents()); }
+
+    /**
+     * Retrieves the reserved funds that have not been spent on fills yet
+     * 
+     * @return The remaining reserved funds in cents
+     */
+    @JsonIgnore
+    public long getAmtRemainingCents() { 
+        return getAmtReservedCents() - getAmtSpentCents(); 
+    }
 
     @JsonIgnore
     public boolean isFilled() { return filled_quantity == quantity; }
@@ -160,9 +293,21 @@ public class Trade {
 
     public void setQuantity(int quantity) { this.quantity = quantity; }
 
-    public void setBid(Double bid) { this.bid = bid; }
+    public void setBid(Double bid) { this.bid = bid == null ? null : Price.toTicks(bid); }
+
+    public void setAsk(Double ask) { this.ask = ask == null ? null : Price.toTicks(ask); }
+
+    public void setBidTicks(long bid) { this.bid = bid; }
+
+    public void setAskTicks(long ask) { this.ask = ask; }
 
-    public void setAsk(Double ask) { this.ask = ask; }
+    public void setStop(Double stop) { this.stop = stop == null ? null : Price.toTicks(stop); }
+
+    public void setStopTicks(long stop) { this.stop = stop; }
+
+    public void setTime_in_force(String time_in_force) { this.time_in_force = time_in_force; }
+
+    public void setExpiry(Long expiry) { this.expiry = expiry; }
 
     public void setAvg_price(double avg_price) { this.avg_price = avg_price; }
 
@@ -182,5 +327,15 @@ public class Trade {
 
     public void setProcessed(boolean processed) { this.processed = processed; }
 
-    public void setAmtReserved(double amtReserved) { this.amtReserved = amtReserved; }
+    public void setAmtReserved(Double amtReserved) { 
+        this.amtReserved = amtReserved == null ? null : Price.toCents(amtReserved); 
+    }
+
+    public void setAmtReservedCents(long amtReserved) { this.amtReserved = amtReserved; }
+
+    public void setAmtSpentCents(long amtSpent) { this.amtSpent = amtSpent; }
+
+    public void setReservationPending(boolean reservationPending) { 
+        this.reservationPending = reservationPending; 
+    }
 }
\ No newline at end of file
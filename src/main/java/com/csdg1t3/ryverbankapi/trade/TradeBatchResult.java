@@ -0,0 +1,42 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * POJO that stores the outcome of one trade in a batch of trades. A trade that was accepted holds
+ * the trade as processed, and a trade that was rejected holds the reason it was rejected.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TradeBatchResult {
+    private int index;
+    private Trade trade;
+    private String error;
+
+    /**
+     * Full field constructor for class TradeBatchResult
+     * @param index The position of the trade in the batch
+     * @param trade The trade created, or null if it was rejected
+     * @param error The reason the trade was rejected, or null if it was accepted
+     */
+    public TradeBatchResult(int index, Trade trade, String error) {
+        this.index = index;
+        this.trade = trade;
+        this.error = error;
+    }
+
+    public static TradeBatchResult accepted(int index, Trade trade) {
+        return new TradeBatchResult(index, trade, null);
+    }
+
+    public static TradeBatchResult rejected(int index, String error) {
+        return new TradeBatchResult(index, null, error);
+    }
+
+    public int getIndex() { return index; }
+
+    public Trade getTrade() { return trade; }
+
+    public String getError() { return error; }
+
+    public boolean isAccepted() { return trade != null; }
+}
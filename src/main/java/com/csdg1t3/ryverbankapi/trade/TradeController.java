@@ -1,11 +1,13 @@
  package com.csdg1t3.ryverbankapi.trade;
 
 import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -14,6 +16,8 @@ import com.csdg1t3.ryverbankapi.account.*;
 import com.csdg1t3.ryverbankapi.security.UserAuthenticator;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 
 /**
@@ -25,16 +29,23 @@ public class TradeController {
     private TradeService tradeSvc;
     private StockRepository stockRepo;
     private AccountRepository accountRepo;
-    private AssetRepository assetRepo;
+    private RiskCache risk;
+    private PriceBands bands;
     private UserAuthenticator uAuth;
 
+    private static final List<String> VALID_STATUSES = 
+        Arrays.asList("open", "partial-filled", "pending");
+    private static final List<String> TIMES_IN_FORCE = Arrays.asList("day", "ioc", "fok");
+
     public TradeController (TradeRepository tradeRepo, TradeService tradeSvc, 
-    AccountRepository accountRepo, StockRepository stockRepo, AssetRepository assetRepo, UserAuthenticator uAuth) {
+    AccountRepository accountRepo, StockRepository stockRepo, RiskCache risk, PriceBands bands,
+    UserAuthenticator uAuth) {
         this.tradeRepo = tradeRepo;
         this.tradeSvc = tradeSvc;
         this.stockRepo = stockRepo;
         this.accountRepo = accountRepo;
-        this.assetRepo = assetRepo;
+        this.risk = risk;
+        this.bands = bands;
         this.uAuth = uAuth;
     }
 
@@ -79,12 +90,18 @@ public class TradeController {
      * 1. Verify that the customer_id of the trade matches the id of the current authenticated user
      * 2. Verify that the account_id of the trade is valid, and is owned by the authenticated user
      * 3. Verify that action is "buy" or "sell", and check bid or ask accordingly
-     * 4. Verify that stock symbol is valid
+     * 4. Verify that stock symbol is valid, that trading in the stock is not halted, and that the 
+     * bid or ask lies within the stock's static price band
      * 5. Verify that quantity is a multiple of 100
      * 6. Verify sufficient funds in account (buy) or sufficient assets (sell)
      * 7. Populate the 'avg_price', 'filled_quantity', 'date' and 'status fields' 
      * 
-     * The method then saves the trade and passes it to to tradeService for further processing.
+     * Accounts, stocks, balances and assets are checked against the risk cache, which reserves the
+     * funds or assets in memory without touching the database. The method then saves the trade 
+     * and passes it to to tradeService for further processing, which writes the reservation. If
+     * that processing fails, the trade is saved as "rejected" instead. In a cluster, the funds of
+     * a buy trade are checked again against the database when the reservation is written, as
+     * other nodes reserve from the same accounts, and the trade is rejected if they fall short.
      * 
      * This method is only authorised for ROLE_USER, as configured in SecurityConfig
      * 
@@ -95,19 +112,171 @@ public class TradeController {
     @ResponseStatus(HttpStatus.CREATED)
     @PostMapping("/api/trades")
     public Trade createTrade(@RequestBody Trade trade) {
-        if (!uAuth.idMatchesAuthenticatedUser(trade.getCustomer_id()))
+        Trade processed = tradeSvc.makeTrade(acceptTrade(trade));
+        if (processed.getStatus().equals("rejected"))
+            throw new TradeNotValidException("Insufficient funds for trade");
+        return processed;
+    }
+
+    /**
+     * Creates a new trade without waiting for it to be matched. The trade goes through the same 
+     * validation and reservation steps as createTrade(), and is saved with status "open". It is
+     * then queued on the matching engine, and the method returns immediately. Clients can poll 
+     * "/api/trades/{id}" to follow the trade as it is filled.
+     * 
+     * This method is only authorised for ROLE_USER, as configured in SecurityConfig
+     * 
+     * @param trade The trade to be created.
+     * @return The trade as accepted, before matching.
+     * @throws TradeNotValidException If trade conditions are not met.
+     */
+    @ResponseStatus(HttpStatus.ACCEPTED)
+    @PostMapping(value = "/api/trades", params = "async=true")
+    public Trade createTradeAsync(@RequestBody Trade trade) {
+        Trade accepted = acceptTrade(trade);
+        // Respond with a copy, as the matching thread may update the trade while it is serialised
+        Trade response = new Trade(accepted.getId(), accepted.getAction(), accepted.getSymbol(), 
+        accepted.getQuantity(), accepted.getBid(), accepted.getAsk(), accepted.getAvg_price(), 
+        accepted.getFilled_quantity(), accepted.getDate(), accepted.getAccount(), 
+        accepted.getCustomer(), accepted.getStatus(), accepted.getProcessed(), 
+        accepted.getAmtReserved());
+        response.setStop(accepted.getStop());
+        response.setTime_in_force(accepted.getTime_in_force());
+        response.setExpiry(accepted.getExpiry());
+        tradeSvc.submitTrade(accepted);
+        return response;
+    }
+
+    /**
+     * Validates a new trade, reserves the funds or assets that it needs, and saves it
+     * 
+     * @param trade The trade to be accepted.
+     * @return The trade saved in database.
+     * @throws TradeNotValidException If trade conditions are not met.
+     */
+    private Trade acceptTrade(Trade trade) {
+        validateAndReserve(trade, uAuth.getAuthenticatedUser(), new HashMap<>());
+        try {
+            Trade saved = tradeRepo.save(trade);
+            saved.setReservationPending(true);
+            return saved;
+        } catch (RuntimeException e) {
+            release(trade);
+            throw e;
+        }
+    } 
+
+    /**
+     * Creates several trades for the authenticated user in a single request. Each trade is 
+     * validated as in createTrade(), and funds and assets are reserved in the risk cache in the 
+     * order the trades are given. The accepted trades are saved with one saveAll(), and matched 
+     * together, one task per stock, which writes their reservations. The method returns once 
+     * they have been processed.
+     * 
+     * A trade that fails validation, e.g. one that can no longer be afforded after the trades 
+     * before it, is rejected without affecting the rest of the batch. If the trades of a stock
+     * cannot be processed, each of them is reported as rejected, while the trades of other stocks
+     * are processed as usual.
+     * 
+     * This method is only authorised for ROLE_USER, as configured in SecurityConfig
+     * 
+     * @param trades The trades to be created.
+     * @return The result of each trade, in the order given.
+     */
+    @ResponseStatus(HttpStatus.OK)
+    @PostMapping("/api/trades/batch")
+    public List<TradeBatchResult> createTrades(@RequestBody List<Trade> trades) {
+        User cust = uAuth.getAuthenticatedUser();
+        Map<String, Long> marketPrices = new HashMap<>();
+
+        TradeBatchResult[] results = new TradeBatchResult[trades.size()];
+        List<Trade> accepted = new ArrayList<>();
+        List<Integer> acceptedIdx = new ArrayList<>();
+        for (int i = 0; i < trades.size(); i++) {
+            Trade trade = trades.get(i);
+            try {
+                validateAndReserve(trade, cust, marketPrices);
+                accepted.add(trade);
+                acceptedIdx.add(i);
+            } catch (TradeNotValidException e) {
+                results[i] = TradeBatchResult.rejected(i, e.getMessage());
+            }
+        }
+
+        if (!accepted.isEmpty()) {
+            List<Trade> saved;
+            try {
+                saved = tradeRepo.saveAll(accepted);
+            } catch (RuntimeException e) {
+                accepted.forEach(this::release);
+                throw e;
+            }
+            saved.forEach(trade -> trade.setReservationPending(true));
+
+            List<CompletableFuture<Trade>> processed = tradeSvc.submitTrades(saved);
+            for (int j = 0; j < processed.size(); j++) {
+                int idx = acceptedIdx.get(j);
+                try {
+                    Trade trade = processed.get(j).join();
+                    results[idx] = trade.getStatus().equals("rejected")
+                        ? TradeBatchResult.rejected(idx, "Insufficient funds for trade")
+                        : TradeBatchResult.accepted(idx, trade);
+                } catch (CompletionException e) {
+                    results[idx] = TradeBatchResult.rejected(idx, "Trade could not be processed");
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Validates a new trade of the authenticated user, and reserves the funds or assets that it
+     * needs in the risk cache. The trade is then populated as a new open trade, but not saved.
+     * 
+     * @param trade The trade to be validated.
+     * @param cust The authenticated user.
+     * @param marketPrices Reservation prices of market buy trades already looked up, by symbol.
+     * @throws TradeNotValidException If trade conditions are not met.
+     */
+    private void validateAndReserve(Trade trade, User cust, Map<String, Long> marketPrices) {
+        if (!Objects.equals(cust.getId(), trade.getCustomer_id()))
             throw new TradeNotValidException("You cannot post a trade for another user");
-        
-        if (!accountRepo.existsById(trade.getAccount_id()))
+
+        Account acc = risk.account(trade.getAccount_id());
+        if (acc == null)
             throw new TradeNotValidException("Account_id is invalid");
-        
-        Account acc = accountRepo.findById(trade.getAccount_id()).get();
-        User cust = uAuth.getAuthenticatedUser();
-        if (acc.getCustomer_id() != trade.getCustomer_id())
+        if (!Objects.equals(cust.getId(), acc.getCustomer_id()))
             throw new TradeNotValidException("Trade must be made with your own account");
         trade.setAccount(acc);
         trade.setCustomer(cust);
-        
+        validateOrder(trade);
+
+        if (!risk.isListed(trade.getSymbol()))
+            throw new TradeNotValidException("Stock symbol is invalid");
+        checkPriceBands(trade.getSymbol(), trade.getPriceTicks());
+
+        // Set amount of funds to be reserved for a buy trade
+        if (trade.getAction().equals("buy")) {
+            long price = trade.getBidTicks() > 0 ? trade.getBidTicks() 
+                : trade.isStop() ? trade.getStopTicks()
+                : marketPrices.computeIfAbsent(trade.getSymbol(), this::marketPriceTicks);
+            trade.setAmtReservedCents(Price.valueInCents(price, trade.getQuantity()));
+        }
+
+        reserve(trade);
+        open(trade);
+    }
+
+    /**
+     * Validates the action, price, quantity, stop price, time in force and expiry of a trade
+     * 
+     * @param trade The trade to be validated.
+     * @throws TradeNotValidException If trade conditions are not met.
+     */
+    private void validateOrder(Trade trade) {
+        if (trade.getAction() == null)
+            throw new TradeNotValidException("Trade action can only be 'buy' or 'sell'");
+
         switch (trade.getAction()) {
             case "buy":
                 if (trade.getBid() == null) 
@@ -127,76 +296,111 @@ public class TradeController {
                 throw new TradeNotValidException("Trade action can only be 'buy' or 'sell'");
         }
 
-        if (!stockRepo.existsBySymbol(trade.getSymbol()))
-            throw new TradeNotValidException("Stock symbol is invalid");
-
         if (trade.getQuantity() % 100 != 0)
             throw new TradeNotValidException("Quantity must be a multiple of 100");
 
+        if (trade.getStop() != null && trade.getStop() <= 0)
+            throw new TradeNotValidException("Stop price should be positive");
 
-        // Set amount of funds to be reserved for a buy trade
-        if (trade.getAction().equals("buy")) {
-            if (trade.getBid() > 0)
-                trade.setAmtReserved(trade.getBid() * trade.getQuantity());
-            else if (trade.getBid() == 0) {
-                Trade marketSell = tradeSvc.getLowestAskTradeForStock(trade.getSymbol());
-                if (marketSell != null) {
-                    trade.setAmtReserved(marketSell.getAsk() * trade.getQuantity());
-                } else {
-                    Stock stock = stockRepo.findBySymbol(trade.getSymbol()).get();
-                    trade.setAmtReserved(stock.getLast_price() * trade.getQuantity());
-                }
-            }
+        if (!TIMES_IN_FORCE.contains(trade.getTime_in_force()))
+            throw new TradeNotValidException("Time in force can only be 'day', 'ioc' or 'fok'");
+
+        if (trade.isGoodTillDate()) {
+            if (trade.isImmediate())
+                throw new TradeNotValidException("Immediate trades cannot have an expiry");
+            if (trade.getExpiry() <= System.currentTimeMillis())
+                throw new TradeNotValidException("Expiry must be in the future");
         }
+    }
 
+    /**
+     * Checks that trading in a stock is not halted, and that a limit price lies within its static
+     * price band
+     * 
+     * @param symbol The symbol of the stock
+     * @param price The bid or ask in ticks, or 0 for a market trade
+     * @throws TradeNotValidException If the stock is halted or the price is outside the band.
+     */
+    private void checkPriceBands(String symbol, long price) {
+        if (bands.isHalted(symbol))
+            throw new TradeNotValidException("Trading in " + symbol + " is halted");
+        if (price > 0 && !bands.withinStaticBand(symbol, price))
+            throw new TradeNotValidException("Price is outside the price band of " + symbol);
+    }
+
+    /**
+     * Retrieves the price at which funds are reserved for a market buy trade: the lowest ask in
+     * the stock's order book or, if there is none, the last price of the stock
+     * 
+     * @param symbol The symbol of the stock
+     * @return The price in ticks
+     */
+    private long marketPriceTicks(String symbol) {
+        long ask = tradeSvc.getLowestAskTicks(symbol);
+        if (ask > 0)
+            return ask;
+        return stockRepo.findBySymbol(symbol).get().getLastPriceTicks();
+    }
+
+    /**
+     * Reserves the funds that a buy trade needs, or the assets that a sell trade needs, in the 
+     * risk cache. The reservation is written to the database when the trade is matched.
+     * 
+     * @param trade The trade.
+     * @throws TradeNotValidException If the customer cannot afford the trade, or does not hold 
+     * enough of the stock.
+     */
+    private void reserve(Trade trade) {
         if (trade.getAction().equals("buy")) {
-            Double avail = acc.getAvailable_balance();
-            Double needed = trade.getAmtReserved();
-            if (avail < needed)
+            if (!risk.reserveFunds(trade.getAccount_id(), trade.getAmtReservedCents()))
                 throw new TradeNotValidException("Insufficient funds for trade");
-            
-            acc.setAvailable_balance(avail - needed);
-            accountRepo.save(acc);
-        } else if (trade.getAction().equals("sell")) {
-            Optional<Asset> result = assetRepo.findByPortfolioCustomerIdAndCode(
-                cust.getId(), trade.getSymbol());
-            if (!result.isPresent()) 
-                throw new TradeNotValidException("No assets of the required stock found");
-            
-            Asset asset = result.get();
-            int avail = asset.getAvailable_quantity();
-            int needed = trade.getQuantity();
-            if (avail < needed)
-                throw new TradeNotValidException("Insufficient quantity of assets for trade");
-            asset.setAvailable_quantity(avail - needed);
-            assetRepo.save(asset);
+            return;
         }
 
+        if (!risk.holds(trade.getCustomer_id(), trade.getSymbol())) 
+            throw new TradeNotValidException("No assets of the required stock found");
+        if (!risk.reserveAssets(trade.getCustomer_id(), trade.getSymbol(), trade.getQuantity()))
+            throw new TradeNotValidException("Insufficient quantity of assets for trade");
+    }
+
+    // Takes back the reservation of a trade that could not be saved
+    private void release(Trade trade) {
+        if (trade.getAction().equals("buy"))
+            risk.releaseFunds(trade.getAccount_id(), trade.getAmtReservedCents());
+        else
+            risk.releaseAssets(trade.getCustomer_id(), trade.getSymbol(), trade.getQuantity());
+    }
+
+    // Populates the fields of a newly accepted trade
+    private void open(Trade trade) {
         trade.setAvg_price(0);
         trade.setFilled_quantity(0);
         trade.setDate(System.currentTimeMillis());
         trade.setStatus("open");
-
-        return tradeSvc.makeTrade(tradeRepo.save(trade));
-    } 
+    }
 
     /**
-     * Cancels an existing trade. Only open trades can be cancelled.
+     * Cancels or amends an existing trade. Only open trades can be cancelled or amended, and 
+     * pending stop trades can be cancelled.
      * 
      * The method does the following:
      * 1. Retrieve the trade at the specified id. Otherwise, throw a TradeNotFoundException
      * 2. Verify that the current authenticated user is the owner of the trade. Otherwise, throw a
      * TradeNotValidException 
-     * 3. Verify that the trade's current status is "open". Otherwise, throw a
-     * TradeNotValidException
-     * 4. Verify that the new status in tradeDetails is "cancelled". Otherwise, throw a 
-     * TradeNotValidException
+     * 3. Verify that the trade's current status is "open", "partial-filled" or "pending". 
+     * Otherwise, throw a TradeNotValidException
+     * 4. If the new status in tradeDetails is "cancelled", cancel the trade
+     * 5. Otherwise, amend the trade to the quantity and/or bid or ask in tradeDetails. Fields 
+     * that are not given are left unchanged. Otherwise, throw a TradeNotValidException
+     * 
+     * A trade that is only reduced in quantity keeps its place in the order book. A trade whose
+     * price is changed or whose quantity is increased loses its place, and is matched again.
      * 
      * This method is only authorised for ROLE_USER, as configured in SecurityConfig
      * 
-     * @param id The ID of the trade to be cancelled. 
-     * @param tradeDetails The trade to be cancelled.
-     * @return The cancelled trade.
+     * @param id The ID of the trade to be cancelled or amended. 
+     * @param tradeDetails The new status, or the new quantity and price, of the trade.
+     * @return The cancelled or amended trade.
      */
     @ResponseStatus(HttpStatus.OK)
     @PutMapping("/api/trades/{id}")
@@ -209,13 +413,86 @@ public class TradeController {
         if (!uAuth.idMatchesAuthenticatedUser(trade.getCustomer_id()))
             throw new TradeNotValidException("You cannot modify another user's trade");
         
-        if (!trade.getStatus().equals("open"))
+        if (!VALID_STATUSES.contains(trade.getStatus()))
             throw new TradeNotValidException("You can only modify an open trade");
         
-        if (tradeDetails.getStatus() == null || !tradeDetails.getStatus().equals("cancelled"))
-            throw new TradeNotValidException("Only trade cancellation is supported");
+        if (tradeDetails.getStatus() != null && tradeDetails.getStatus().equals("cancelled"))
+            return tradeSvc.processCancelTrade(trade);
+
+        Double price = trade.getAction().equals("buy") ? tradeDetails.getBid() 
+            : tradeDetails.getAsk();
+        if ((tradeDetails.getStatus() != null && !tradeDetails.getStatus().equals("open"))
+            || (price == null && tradeDetails.getQuantity() == 0))
+            throw new TradeNotValidException("Only trade cancellation and amendment are supported");
         
-        tradeSvc.processCancelTrade(trade);
-        return trade;
+        return amendTrade(trade, tradeDetails.getQuantity(), price);
+    }
+
+    /**
+     * Validates an amendment of a trade, and passes it to tradeService
+     * 
+     * @param trade The trade to be amended.
+     * @param quantity The new quantity, or 0 to keep the current quantity.
+     * @param price The new bid or ask, or null to keep the current price.
+     * @return The amended trade.
+     * @throws TradeNotValidException If the amendment is not valid.
+     */
+    private Trade amendTrade(Trade trade, int quantity, Double price) {
+        if (trade.isMarket())
+            throw new TradeNotValidException("Market trades cannot be amended");
+        if (trade.getStatus().equals("pending"))
+            throw new TradeNotValidException("Pending stop trades cannot be amended");
+
+        if (quantity == 0)
+            quantity = trade.getQuantity();
+        if (quantity < 0 || quantity % 100 != 0)
+            throw new TradeNotValidException("Quantity must be a multiple of 100");
+
+        long priceTicks = price == null ? trade.getPriceTicks() : Price.toTicks(price);
+        if (priceTicks <= 0)
+            throw new TradeNotValidException("Amended price must be positive");
+        checkPriceBands(trade.getSymbol(), priceTicks);
+
+        return tradeSvc.processAmendTrade(trade, quantity, priceTicks);
+    }
+
+    /**
+     * Cancels every open, partial-filled or pending stop trade of the authenticated user at once, e.g. as a kill
+     * switch during volatile trading. The trades cancelled can be narrowed down to those of a 
+     * single stock, a single account, or both. Unspent reservations of the cancelled trades are 
+     * released in one update per account and per asset.
+     * 
+     * This method is only authorised for ROLE_USER, as configured in SecurityConfig
+     * 
+     * @param symbol The symbol of the stock whose trades are to be cancelled, or null for all
+     * @param accountId The ID of the account whose trades are to be cancelled, or null for all
+     * @return The cancelled trades.
+     * @throws TradeNotValidException If the account is not owned by the authenticated user.
+     */
+    @ResponseStatus(HttpStatus.OK)
+    @DeleteMapping("/api/trades")
+    public List<Trade> cancelTrades(@RequestParam(required = false) String symbol, 
+    @RequestParam(value = "account_id", required = false) Long accountId) {
+        User cust = uAuth.getAuthenticatedUser();
+
+        List<Trade> trades;
+        if (accountId != null) {
+            Optional<Account> acc = accountRepo.findById(accountId);
+            if (!acc.isPresent() || !cust.getId().equals(acc.get().getCustomer_id()))
+                throw new TradeNotValidException("You can only cancel trades of your own account");
+
+            trades = tradeRepo.findByAccountIdAndStatusIn(accountId, VALID_STATUSES);
+            if (symbol != null)
+                trades.removeIf(trade -> !symbol.equals(trade.getSymbol()));
+        } else if (symbol != null) {
+            trades = tradeRepo.findByCustomerIdAndSymbolAndStatusIn(cust.getId(), symbol, 
+            VALID_STATUSES);
+        } else {
+            trades = tradeRepo.findByCustomerIdAndStatusIn(cust.getId(), VALID_STATUSES);
+        }
+
+        if (trades.isEmpty())
+            return trades;
+        return tradeSvc.processCancelTrades(trades);
     }
 }
@@ -0,0 +1,405 @@
+package com.csdg1t3.ryverbankapi.trade;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Sequenced, append-only journal of order and fill events, stored in a memory-mapped file.
+ *
+ * Each record is written as its length, a CRC32 checksum and the encoded JournalRecord. Appending
+ * only copies the record into the mapped file; a background thread forces the file to disk every
+ * few milliseconds, so many records share the cost of a single fsync. When reading the journal
+ * back, a zero length or a checksum mismatch marks the end of the log, which discards any record
+ * torn by a crash.
+ *
+ * The journal also keeps the resting orders described by its records up to date in memory, so
+ * that a snapshot can be taken at an exact sequence number. Taking a snapshot rolls the journal:
+ * the current file is archived under the name "[path].[last sequence number]", and new records
+ * go to a fresh file. Archived files are kept for audits, but recovery only needs to read the
+ * files written after the latest snapshot.
+ *
+ * Followers, e.g. a hot standby, can subscribe to the journal, and are then handed every record
+ * appended, in the same framing as the file.
+ *
+ * The journal can be disabled with ryverbank.journal.enabled=false, in which case all methods do
+ * nothing.
+ */
+@Component
+public class TradeJournal {
+    private static final Logger log = LoggerFactory.getLogger(TradeJournal.class);
+
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 512;
+    private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private final boolean enabled;
+    private final Path path;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long nextSeq = 1;
+    private volatile boolean dirty;
+    private RestingOrders state = new RestingOrders();
+
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+    private ScheduledExecutorService syncer;
+    private final List<Consumer<byte[]>> followers = new CopyOnWriteArrayList<>();
+
+    public TradeJournal(@Value("${ryverbank.journal.enabled:true}") boolean enabled,
+    @Value("${ryverbank.journal.path:./data/journal/trades.journal}") String path,
+    @Value("${ryverbank.journal.sync-interval-ms:10}") long syncIntervalMs) {
+        this.enabled = enabled;
+        this.path = path == null ? null : Paths.get(path).toAbsolutePath();
+        if (!enabled)
+            return;
+
+        try {
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open trade journal at " + path, e);
+        }
+
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::sync, syncIntervalMs, syncIntervalMs,
+        TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    /**
+     * Retrieves the sequence number of the last record written
+     *
+     * @return The last sequence number, or 0 if the journal is empty
+     */
+    public synchronized long getLastSeq() { return nextSeq - 1; }
+
+    // Maps the journal file, and scans it to find where the next record should be written
+    private void open() throws IOException {
+        Files.createDirectories(path.getParent());
+        for (long archived : archivedSeqs())
+            nextSeq = Math.max(nextSeq, archived + 1);
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+        map(Math.max(SEGMENT_SIZE, channel.size()));
+
+        ByteBuffer view = buffer.duplicate();
+        scan(view, record -> nextSeq = record.getSeq() + 1);
+        buffer.position(view.position());
+    }
+
+    private void map(long size) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private Path archivePath(long lastSeq) {
+        return path.resolveSibling(path.getFileName() + "." + lastSeq);
+    }
+
+    // Retrieves the last sequence number of every archived journal file, in ascending order
+    private List<Long> archivedSeqs() throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        String prefix = path.getFileName() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path.getParent(), prefix + "*")) {
+            for (Path file : files) {
+                try {
+                    seqs.add(Long.parseLong(file.getFileName().toString().substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // Not an archived journal file
+                }
+            }
+        }
+        Collections.sort(seqs);
+        return seqs;
+    }
+
+    /**
+     * Reads every intact record in a buffer, leaving the buffer positioned after the last one
+     */
+    private void scan(ByteBuffer buf, Consumer<JournalRecord> consumer) {
+        CRC32 check = new CRC32();
+        while (buf.remaining() >= HEADER_SIZE) {
+            int start = buf.position();
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length <= 0 || length > buf.remaining()) {
+                buf.position(start);
+                return;
+            }
+
+            ByteBuffer body = buf.slice();
+            body.limit(length);
+            check.reset();
+            check.update(body.duplicate());
+            if ((int)check.getValue() != checksum) {
+                buf.position(start);
+                return;
+            }
+
+            consumer.accept(JournalRecord.readFrom(body));
+            buf.position(start + HEADER_SIZE + length);
+        }
+    }
+
+    /**
+     * Appends a record to the journal, assigning it the next sequence number
+     *
+     * @param record The record to be appended
+     */
+    public synchronized void append(JournalRecord record) {
+        if (!enabled)
+            return;
+
+        record.setSeq(nextSeq);
+        record.setTimestamp(System.currentTimeMillis());
+        scratch.clear();
+        record.writeTo(scratch);
+        scratch.flip();
+        crc.reset();
+        crc.update(scratch.duplicate());
+
+        try {
+            if (buffer.remaining() < HEADER_SIZE + scratch.remaining()) {
+                int position = buffer.position();
+                buffer.force();
+                map(buffer.capacity() + SEGMENT_SIZE);
+                buffer.position(position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not extend trade journal", e);
+        }
+
+        if (!followers.isEmpty()) {
+            byte[] frame = new byte[HEADER_SIZE + scratch.remaining()];
+            ByteBuffer.wrap(frame).putInt(scratch.remaining()).putInt((int)crc.getValue())
+                .put(scratch.duplicate());
+            for (Consumer<byte[]> follower : followers)
+                follower.accept(frame);
+        }
+
+        buffer.putInt(scratch.remaining());
+        buffer.putInt((int)crc.getValue());
+        buffer.put(scratch);
+        nextSeq++;
+        dirty = true;
+        state.apply(record);
+    }
+
+    public void orderAccepted(Trade trade) { append(JournalRecord.accepted(trade)); }
+
+    public void expireAll() { append(JournalRecord.expireAll()); }
+
+    /**
+     * Appends several records in order, holding the journal for the whole batch rather than once
+     * per record, e.g. the records of a unit of work once it has been committed
+     *
+     * @param records The records to be appended
+     */
+    public synchronized void appendAll(Collection<JournalRecord> records) {
+        for (JournalRecord record : records)
+            append(record);
+    }
+
+    /**
+     * Reads every record in the journal, including archived files, from oldest to newest
+     *
+     * @param consumer The consumer that each record is passed to
+     */
+    public void replay(Consumer<JournalRecord> consumer) {
+        replayAfter(0, consumer);
+    }
+
+    /**
+     * Reads the records that may follow a given sequence number, from oldest to newest. This
+     * includes every archived file that ends after that sequence number, followed by the current
+     * file. Records at or before the sequence number may still be passed to the consumer, and
+     * should be skipped by it.
+     *
+     * @param seq The sequence number to read from, e.g. that of the latest snapshot
+     * @param consumer The consumer that each record is passed to
+     */
+    public void replayAfter(long seq, Consumer<JournalRecord> consumer) {
+        if (!enabled)
+            return;
+
+        try {
+            for (long archived : archivedSeqs()) {
+                if (archived <= seq)
+                    continue;
+                try (FileChannel file = FileChannel.open(archivePath(archived),
+                StandardOpenOption.READ)) {
+                    scan(file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()), consumer);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read archived trade journal", e);
+        }
+
+        ByteBuffer view;
+        synchronized (this) {
+            view = buffer.duplicate();
+            view.flip();
+        }
+        scan(view, consumer);
+    }
+
+    /**
+     * Subscribes a follower to the journal. The follower is handed each record appended from now
+     * on, as its length, its CRC32 checksum and the encoded record, on the thread that appends it,
+     * so it should only queue the record.
+     *
+     * @param follower The follower
+     * @return A copy of the resting orders up to the last record already written
+     */
+    public synchronized RestingOrders follow(Consumer<byte[]> follower) {
+        followers.add(follower);
+        RestingOrders copy = state.copy();
+        copy.setLastSeq(nextSeq - 1);
+        return copy;
+    }
+
+    /**
+     * Unsubscribes a follower from the journal
+     *
+     * @param follower The follower
+     */
+    public void unfollow(Consumer<byte[]> follower) {
+        followers.remove(follower);
+    }
+
+    /**
+     * Decodes a record in the framing handed to followers
+     *
+     * @param frame The length, checksum and encoded record
+     * @return The record, or null if the frame is torn or its checksum does not match
+     */
+    static JournalRecord decodeFrame(ByteBuffer frame) {
+        if (frame.remaining() < HEADER_SIZE)
+            return null;
+        int length = frame.getInt();
+        int checksum = frame.getInt();
+        if (length <= 0 || length != frame.remaining())
+            return null;
+
+        CRC32 check = new CRC32();
+        check.update(frame.duplicate());
+        return (int)check.getValue() == checksum ? JournalRecord.readFrom(frame) : null;
+    }
+
+    /**
+     * Replaces the resting orders tracked by the journal, e.g. after recovering them from a
+     * snapshot and the journal files that follow it
+     *
+     * @param recovered The recovered resting orders
+     */
+    public synchronized void restoreState(RestingOrders recovered) {
+        state = recovered.copy();
+    }
+
+    /**
+     * Rolls the journal over to a new file, and returns the resting orders as of the last record
+     * of the old file. Records are never lost: the old file is kept as an archive.
+     *
+     * @return A copy of the resting orders at the time of the roll
+     */
+    public synchronized RestingOrders roll() {
+        if (!enabled)
+            return new RestingOrders();
+
+        long lastSeq = nextSeq - 1;
+        if (buffer.position() > 0) {
+            try {
+                buffer.force();
+                channel.truncate(buffer.position());
+                channel.close();
+                Files.move(path, archivePath(lastSeq), StandardCopyOption.ATOMIC_MOVE);
+                channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+                map(SEGMENT_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not roll trade journal", e);
+            }
+        }
+
+        RestingOrders copy = state.copy();
+        copy.setLastSeq(lastSeq);
+        return copy;
+    }
+
+    /**
+     * Forces records written since the last sync to disk. This is called periodically by a
+     * background thread, so that a single fsync covers many records.
+     */
+    public void sync() {
+        if (!enabled || !dirty)
+            return;
+
+        MappedByteBuffer toSync;
+        synchronized (this) {
+            dirty = false;
+            toSync = buffer;
+        }
+        try {
+            toSync.force();
+        } catch (Exception e) {
+            dirty = true;
+            log.error("Failed to sync trade journal", e);
+        }
+    }
+
+    /**
+     * Discards all records, including archived files, e.g. when the market is initialised from
+     * scratch
+     */
+    public synchronized void reset() {
+        if (!enabled)
+            return;
+
+        try {
+            for (long archived : archivedSeqs())
+                Files.deleteIfExists(archivePath(archived));
+            channel.truncate(0);
+            map(SEGMENT_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not reset trade journal", e);
+        }
+        nextSeq = 1;
+        dirty = true;
+        state = new RestingOrders();
+    }
+
+    @PreDestroy
+    public void close() {
+        if (!enabled)
+            return;
+
+        syncer.shutdown();
+        sync();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Failed to close trade journal", e);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.csdg1t3.ryverbankapi.trade;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.*;
@@ -19,6 +22,7 @@ public interface TradeRepository extends JpaRepository<Trade, Long>{
     List<Trade> findByCustomerId(Long id);
     List<Trade> findByAccountId(Long id);
     List<Trade> findByStatusIn(Collection<String> statuses);
+    List<Trade> findBySymbolAndStatusIn(String symbol, Collection<String> statuses);
     List<Trade> findByActionAndSymbolAndStatusIn(String action, String symbol, 
     Collection<String> statuses);
     List<Trade> findByActionAndSymbolAndBidAndStatusIn(String action, String symbol, Double bid, 
@@ -30,6 +34,38 @@ public interface TradeRepository extends JpaRepository<Trade, Long>{
     List<Trade> findByActionAndAccountIdAndBidAndStatusIn(String action, Long id, Double bid, 
     Collection<String> statuses);
     List<Trade> findByProcessed(boolean processed);
+    List<Trade> findByCustomerIdAndStatusIn(Long id, Collection<String> statuses);
+    List<Trade> findByCustomerIdAndSymbolAndStatusIn(Long id, String symbol, 
+    Collection<String> statuses);
+    List<Trade> findByAccountIdAndStatusIn(Long id, Collection<String> statuses);
+    List<Trade> findByStatusInAndExpiryNotNull(Collection<String> statuses);
+    List<Trade> findByStatusInAndExpiryGreaterThan(Collection<String> statuses, Long time);
     boolean existsById(Long id);
+
+    /**
+     * Sets the status of every trade with one of the given statuses to "expired", in a single
+     * statement. Market maker trades (account ID 0) and good-till-date trades that expire after
+     * the given time are left as they are.
+     * 
+     * @param statuses The statuses of the trades to expire
+     * @param time The current time in milliseconds
+     * @return The number of trades expired
+     */
+    @Modifying
+    @Query("UPDATE Trade t SET t.status = 'expired' WHERE t.status IN :statuses "
+    + "AND t.account_id <> 0 AND (t.expiry IS NULL OR t.expiry <= :time)")
+    int expireAll(@Param("statuses") Collection<String> statuses, @Param("time") long time);
+
+    /**
+     * Sets the status of the given trades to "rejected", in a single statement, unless they no
+     * longer have one of the given statuses
+     * 
+     * @param ids The IDs of the trades to reject
+     * @param statuses The statuses of the trades that can still be rejected
+     * @return The number of trades rejected
+     */
+    @Modifying
+    @Query("UPDATE Trade t SET t.status = 'rejected' WHERE t.id IN :ids AND t.status IN :statuses")
+    int rejectAll(@Param("ids") Collection<Long> ids, @Param("statuses") Collection<String> statuses);
 }
 
@@ -1,87 +1,403 @@
 package com.csdg1t3.ryverbankapi.trade;
 
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import com.csdg1t3.ryverbankapi.account.*;
+import com.csdg1t3.ryverbankapi.cluster.*;
 
 /**
  * Service layer that aids in trade processing
  */
 @Service
 public class TradeService {
+    private static final Logger log = LoggerFactory.getLogger(TradeService.class);
+
     private TradeRepository tradeRepo;
     private AccountRepository accountRepo;
     private TransferRepository transferRepo;
     private AssetRepository assetRepo;
     private PortfolioRepository portfolioRepo;
     private StockRepository stockRepo;
+    private OrderBookManager orderBooks;
+    private MatchingEngine engine;
+    private TradeJournal journal;
+    private MarketSession session;
+    private RiskCache risk;
+    private PriceBands bands;
+    private ClusterMembership cluster;
+    private StandbyFollower standby;
+
+    // The unit of work of the trade being matched on the current matching thread, if any
+    private final ThreadLocal<MatchUnitOfWork> unitOfWork = new ThreadLocal<>();
     
     private static final List<String> VALID_STATUSES = Arrays.asList("open", "partial-filled");
+    // Statuses of trades that still hold reservations, including stops that have not triggered
+    private static final List<String> OPEN_STATUSES = 
+        Arrays.asList("open", "partial-filled", "pending");
 
     public TradeService(TradeRepository tradeRepo, AccountRepository accountRepo, 
     TransferRepository transferRepo, PortfolioRepository portfolioRepo, AssetRepository assetRepo, 
-    StockRepository stockRepo) {
+    StockRepository stockRepo, OrderBookManager orderBooks, MatchingEngine engine, 
+    TradeJournal journal, MarketSession session, RiskCache risk, PriceBands bands,
+    ClusterMembership cluster, StandbyFollower standby) {
         this.tradeRepo = tradeRepo;
         this.accountRepo = accountRepo;
         this.transferRepo = transferRepo;
         this.portfolioRepo = portfolioRepo;
         this.assetRepo = assetRepo;
         this.stockRepo = stockRepo;
+        this.orderBooks = orderBooks;
+        this.engine = engine;
+        this.journal = journal;
+        this.session = session;
+        this.risk = risk;
+        this.bands = bands;
+        this.cluster = cluster;
+        this.standby = standby;
     }
 
     /**
      * Scheduler method that runs at 9am daily. The method retrieves all trades that have not 
      * been processed yet. These are trades that have been placed after 5pm on the previous day
-     * or before 9am on the current day. These trades will enter the system and be matched from
-     * earliest to latest
+     * or before 9am on the current day. 
+     * 
+     * Instead of being matched one at a time, the trades of each stock enter an opening auction
+     * together with the trades already resting in its order book, and are executed at a single
+     * equilibrium price. Each stock's auction runs on its own matching thread, and the auctions of
+     * stocks on different matching threads run in parallel. The method returns once every auction
+     * has finished.
+     * 
+     * The session is opened before the auctions run, so that stop trades they trigger, and trades
+     * accepted while they run, are matched rather than queued for an auction that has already
+     * taken place.
+     * 
+     * Nothing is done on holidays, so that trades wait for the open of the next trading day. In a
+     * cluster, each node only runs the auctions of the stocks it owns.
      */
     @Scheduled(cron = "0 0 9 ? * MON-FRI", zone = "GMT+8")
 	public void processUnprocessedTrades() {
+        session.open();
+        if (session.isHoliday() || standby.isStandby())
+            return;
+
         List<Trade> unprocessedTrades = tradeRepo.findByProcessed(false);
         
         unprocessedTrades.sort(new TradeTimeComparator());
-        for (Trade trade : unprocessedTrades) 
-            makeTrade(trade);
+        Map<String, List<Trade>> bySymbol = new LinkedHashMap<>();
+        for (Trade trade : unprocessedTrades) {
+            if (cluster.isLocal(trade.getSymbol()))
+                bySymbol.computeIfAbsent(trade.getSymbol(), s -> new ArrayList<>()).add(trade);
+        }
+
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (Map.Entry<String, List<Trade>> entry : bySymbol.entrySet()) {
+            pending.add(engine.submit(entry.getKey(), () -> inUnitOfWork(() -> {
+                runOpeningAuction(entry.getKey(), entry.getValue());
+                return null;
+            })));
+        }
+        joinAll(pending);
+    }
+
+    /**
+     * Runs the opening auction of a stock. Unprocessed trades are added to the order book in
+     * time priority, the equilibrium price of the book is computed, and the executable volume is
+     * then filled at that price: buys from the highest bid down, against sells from the lowest 
+     * ask up, with market orders ahead of limit orders on each side. Trades left unfilled rest in 
+     * the book, and all unprocessed trades are marked as processed. Stop trades that the last
+     * price has not reached are held in the stop book instead of entering the auction.
+     * 
+     * @param symbol The symbol of the stock
+     * @param unprocessed The unprocessed trades of the stock, from earliest to latest
+     */
+    private void runOpeningAuction(String symbol, List<Trade> unprocessed) {
+        OrderBook book = orderBooks.getBook(symbol);
+        MatchUnitOfWork uow = unitOfWork.get();
+        Optional<Stock> stock = stockRepo.findBySymbol(symbol);
+        long lastPrice = stock.isPresent() ? stock.get().getLastPriceTicks() : 0;
+        for (Trade trade : unprocessed) {
+            if (!book.contains(trade.getId()) && !trade.isFilled() 
+                && VALID_STATUSES.contains(trade.getStatus())) {
+                if (trade.isStop() && !trade.isStopTriggered(lastPrice)) {
+                    holdStop(trade);
+                    continue;
+                }
+                uow.journal(JournalRecord.accepted(trade));
+                book.add(trade);
+            }
+            uow.save(trade);
+        }
+
+        OpeningAuction auction = OpeningAuction.uncross(book, lastPrice);
+        
+        if (auction.getVolume() > 0) {
+            long price = auction.getPriceTicks();
+            List<Trade> buys = resting(book.getMarketBuys());
+            buys.addAll(resting(book.getBids(price)));
+            List<Trade> sells = resting(book.getMarketSells());
+            sells.addAll(resting(book.getAsks(price)));
+
+            int remaining = auction.getVolume();
+            int first = 0;
+            for (Trade buy : buys) {
+                for (int i = first; i < sells.size() && remaining > 0 && !buy.isFilled(); i++) {
+                    Trade sell = sells.get(i);
+                    if (sell.isFilled()) {
+                        if (i == first)
+                            first++;
+                        continue;
+                    }
+                    if (Objects.equals(buy.getCustomer_id(), sell.getCustomer_id()))
+                        continue;
+
+                    int toFill = Math.min(remaining, 
+                        Math.min(buy.getRemaining_quantity(), sell.getRemaining_quantity()));
+                    if (buy.isMarket()) {
+                        toFill = Math.min(toFill, 
+                            Price.affordableLots(buy.getAmtRemainingCents(), price));
+                        if (toFill <= 0)
+                            break;
+                    }
+
+                    fillTrades(buy, sell, price, toFill);
+                    remaining -= toFill;
+                }
+            }
+        }
+
+        for (Trade trade : unprocessed)
+            trade.setProcessed(true);
+        runTriggeredStops(symbol);
     }
 
     /**
-     * Scheduler method that runs at 5pm daily. The method retrieves all trades that are either open
-     * or partial-filled, and expires them.
+     * Scheduler method that runs at 5pm daily. The method expires all trades that are either open
+     * or partial-filled, and all stop trades that have not been triggered, except those of the 
+     * market maker and good-till-date trades that expire later.
+     * 
+     * Rather than loading and expiring each trade, the trades are expired in bulk, with a fixed 
+     * number of statements however many trades are open: one releasing the reserved balance of
+     * every account with open buy trades, one returning the remaining quantity of open sell trades
+     * to their assets, and one marking the trades as expired. A single record is written to the 
+     * trade journal, and the order books are then discarded on their matching threads, to be 
+     * rebuilt from the database with only the trades that remain open. Accounts with buy trades 
+     * that remain open are left out of the bulk release, and have the unspent reservations of 
+     * their expiring trades released with a relative update instead.
+     * 
+     * Good-till-date trades are otherwise expired by expireDueTrades() as their expiry passes.
+     * 
+     * The session is closed first, whether or not MarketSession has already refreshed, so that 
+     * trades are no longer matched. The statements then run while every matching thread is held,
+     * after the tasks already queued on it, and the threads are only released once the expiry has
+     * committed. No trade can therefore be filled, cancelled or amended half-way through the 
+     * expiry, and tasks that run afterwards read the expired trades from the database.
+     * 
+     * Nothing is done on holidays, as no trades were matched since the last close. In a cluster,
+     * only the leader expires the trades, as the statements cover every stock; the other nodes
+     * discard their books shortly afterwards, in refreshBooksAfterClose().
      */
     @Scheduled(cron = "0 0 17 ? * MON-FRI", zone = "GMT+8")
     public void expireTrades() {
-        List<Trade> toExpire = tradeRepo.findByStatusIn(VALID_STATUSES);
+        if (session.isHoliday() || !cluster.isLeader() || standby.isStandby())
+            return;
+
+        session.close();
+        long now = session.millis();
+        int expired = engine.fence(() -> {
+            accountRepo.releaseReservations(OPEN_STATUSES, now);
+            assetRepo.releaseReservations(OPEN_STATUSES, now);
+            releaseForRemainingTrades(now);
+            return tradeRepo.expireAll(OPEN_STATUSES, now);
+        });
+        risk.invalidateAll();
+        log.info("Expired " + expired + " trades");
+
+        // The expiry has committed by now, so books rebuilt from the database no longer hold the
+        // expired trades
+        journal.expireAll();
+        evictBooks();
+    }
+
+    /**
+     * Scheduler method that runs five minutes after the close on the nodes of a cluster other than
+     * the leader. By then the leader has expired the trades of every stock, so the books of this
+     * node are discarded, to be rebuilt from the database with only the trades that remain open.
+     */
+    @Scheduled(cron = "0 5 17 ? * MON-FRI", zone = "GMT+8")
+    public void refreshBooksAfterClose() {
+        if (session.isHoliday() || cluster.isLeader() || standby.isStandby())
+            return;
 
-        for (Trade trade : toExpire)
-            processExpiredTrade(trade);
+        risk.invalidateAll();
+        journal.expireAll();
+        evictBooks();
+    }
+
+    /**
+     * Releases the unspent reservations of the buy trades expiring at the close, for each account 
+     * with good-till-date buy trades that remain open after it. Must be called before the trades
+     * are expired. The funds are added to the available balance with a relative update, so that 
+     * transfers written at the same time are not overwritten.
+     * 
+     * @param now The time of the close, in milliseconds
+     */
+    private void releaseForRemainingTrades(long now) {
+        Set<Long> accountIds = new HashSet<>();
+        for (Trade trade : tradeRepo.findByStatusInAndExpiryGreaterThan(OPEN_STATUSES, now)) {
+            if (trade.getAction().equals("buy") && trade.getAccount_id() != 0)
+                accountIds.add(trade.getAccount_id());
+        }
+
+        for (Long id : accountIds) {
+            long released = 0;
+            for (Trade trade : tradeRepo.findByAccountIdAndStatusIn(id, OPEN_STATUSES)) {
+                if (trade.getAction().equals("buy") 
+                    && (trade.getExpiry() == null || trade.getExpiry() <= now))
+                    released += trade.getAmtRemainingCents();
+            }
+            if (released != 0)
+                accountRepo.adjustBalances(id, 0, released);
+        }
+    }
+
+    /**
+     * Scheduler method that expires good-till-date trades once their expiry has passed, instead of
+     * waiting for a close. Each stock's expiry wheel is advanced on its matching thread, with one 
+     * task for all the stocks of a matching thread, and the trades that are due are expired in a 
+     * single unit of work. Trades that were filled or closed in the meantime are skipped.
+     */
+    @Scheduled(fixedDelayString = "${ryverbank.expiry.tick-ms:1000}")
+    public void expireDueTrades() {
+        if (standby.isStandby())
+            return;
+
+        long now = session.millis();
+        Map<Integer, List<String>> byShard = new HashMap<>();
+        for (String symbol : orderBooks.getExpirySymbols())
+            byShard.computeIfAbsent(engine.shardOf(symbol), s -> new ArrayList<>()).add(symbol);
+
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (List<String> symbols : byShard.values()) {
+            pending.add(engine.submit(symbols.get(0), () -> inUnitOfWork(() -> {
+                for (String symbol : symbols)
+                    orderBooks.getExpiries(symbol, now).advance(now, this::expireDueTrade);
+                return null;
+            })));
+        }
+        joinAll(pending);
+    }
+
+    private void expireDueTrade(long id) {
+        Trade trade = unitOfWork.get().trade(id);
+        if (trade != null && trade.getAccount_id() != 0 
+            && OPEN_STATUSES.contains(trade.getStatus()))
+            close(trade, "expired");
+    }
+
+    /**
+     * Schedules the expiry of the open good-till-date trades in the database when the application
+     * starts, as expiry wheels are not rebuilt lazily. In a cluster, only the trades of the stocks
+     * this node owns are scheduled. A hot standby schedules them when it takes over.
+     */
+    @EventListener({ApplicationReadyEvent.class, StandbyPromotedEvent.class})
+    public void scheduleExpiries() {
+        if (standby.isStandby())
+            return;
+        scheduleExpiries(cluster::isLocal);
+    }
+
+    /**
+     * Hands over the stocks that this node gained or lost when a node joined or left the cluster.
+     * The order book, stop book and expiry wheel of each such stock are discarded on its matching
+     * thread, after the work already queued for it. Books of a lost stock would otherwise go
+     * stale, and books of a gained stock are rebuilt from the database with what the previous 
+     * owner committed. The expiries of the good-till-date trades of gained stocks are then 
+     * scheduled again.
+     *
+     * @param event The change to the nodes of the cluster
+     */
+    @EventListener
+    public void rebalance(ClusterChangedEvent event) {
+        Set<String> symbols = orderBooks.getSymbols();
+        symbols.addAll(orderBooks.getExpirySymbols());
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (String symbol : symbols) {
+            if (!event.moved(symbol))
+                continue;
+            pending.add(engine.submit(symbol, () -> {
+                orderBooks.release(symbol);
+                return null;
+            }));
+        }
+        joinAll(pending);
+        scheduleExpiries(event::gained);
+    }
+
+    private void scheduleExpiries(Predicate<String> owned) {
+        long now = session.millis();
+        Map<String, List<Trade>> bySymbol = new HashMap<>();
+        for (Trade trade : tradeRepo.findByStatusInAndExpiryNotNull(OPEN_STATUSES)) {
+            if (owned.test(trade.getSymbol()))
+                bySymbol.computeIfAbsent(trade.getSymbol(), s -> new ArrayList<>()).add(trade);
+        }
+
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (Map.Entry<String, List<Trade>> entry : bySymbol.entrySet()) {
+            pending.add(engine.submit(entry.getKey(), () -> {
+                TimingWheel wheel = orderBooks.getExpiries(entry.getKey(), now);
+                for (Trade trade : entry.getValue())
+                    wheel.schedule(trade.getId(), trade.getExpiry());
+                return null;
+            }));
+        }
+        joinAll(pending);
+    }
+
+    private void evictBooks() {
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (String symbol : orderBooks.getSymbols()) {
+            pending.add(engine.submit(symbol, () -> {
+                orderBooks.evict(symbol);
+                return null;
+            }));
+        }
+        joinAll(pending);
     }
 
     /**
      * Processes an expired trade. If the trade's account ID is 0, it is a market maker trade,
-     * and will not be expired
+     * and will not be expired. The trade is read again on the matching thread of its stock, and 
+     * only expired if it is still open, releasing only what it still reserves.
      * @param trade The trade to expire
      */
     public void processExpiredTrade(Trade trade) {
         if (trade.getAccount_id() == 0)
             return;
 
-        if (trade.getAction().equals("buy")) {
-            Account acc = accountRepo.findById(trade.getAccount_id()).get();
-            acc.setAvailable_balance(acc.getBalance());
-            accountRepo.save(acc);
-        } else if (trade.getAction().equals("sell")) {
-            Asset asset = assetRepo.findByPortfolioCustomerIdAndCode(
-                trade.getCustomer_id(), trade.getSymbol()).get();
-            asset.setAvailable_quantity(asset.getAvailable_quantity() + trade.getQuantity() 
-            - trade.getFilled_quantity());
-            assetRepo.save(asset);
-        }
+        engine.call(trade.getSymbol(), () -> inUnitOfWork(() -> {
+            expireTrade(trade);
+            return null;
+        }));
+    }
 
-        trade.setStatus("expired");
-        tradeRepo.save(trade);
+    private void expireTrade(Trade trade) {
+        Trade current = unitOfWork.get().trade(trade.getId());
+        if (current != null && OPEN_STATUSES.contains(current.getStatus()))
+            close(current, "expired");
     }
 
     /**
@@ -105,7 +421,8 @@ public class TradeService {
     }
 
     /**
-     * Retrieves an open or partial-filled sell trade with the lowest ask price.
+     * Retrieves an open or partial-filled sell trade with the lowest ask price from the stock's
+     * order book.
      * - If multiple trades are found, returns the trade which was placed the earliest.
      * - If no trades are found, return null
      * 
@@ -113,27 +430,12 @@ public class TradeService {
      * @return The trade with lowest ask price.
      */
     public Trade getLowestAskTradeForStock(String symbol) {
-        List<Trade> validTrades = listValidSellTradesForStock(symbol);
-        
-        if (validTrades == null || validTrades.isEmpty()) {
-            return null;
-        }
-        
-        Trade lowest = validTrades.get(0);
-        for (Trade trade : validTrades) {
-            if (trade.getAsk() < lowest.getAsk() ||
-                trade.getAsk() == lowest.getAsk() && trade.getDate() < lowest.getDate()) 
-                lowest = trade;
-        }
-
-        if (lowest.getAsk() == 0)
-            return null;
-
-        return lowest;
+        return engine.call(symbol, () -> findResting(orderBooks.getBook(symbol).bestAsk()));
     }
 
     /**
-     * Retrieves an open or partial-filled buy trade with the highest bid price.
+     * Retrieves an open or partial-filled buy trade with the highest bid price from the stock's
+     * order book.
      * - If multiple trades are found, returns the trade which was placed the earliest
      * - If no trades are found, return null
      * 
@@ -141,23 +443,121 @@ public class TradeService {
      * @return The trade with highest bid price.
      */
     public Trade getHighestBidTradeForStock(String symbol) {
-        List<Trade> validTrades = listValidBuyTradesForStock(symbol);
-        
-        if (validTrades == null || validTrades.isEmpty()) {
-            return null;
-        }
-        
-        Trade highest = validTrades.get(0);
-        for (Trade trade : validTrades) {
-            if (trade.getBid() > highest.getBid() ||
-                trade.getBid() == highest.getBid() && trade.getDate() < highest.getDate()) 
-                highest = trade;
+        return engine.call(symbol, () -> findResting(orderBooks.getBook(symbol).bestBid()));
+    }
+
+    /**
+     * Retrieves the lowest ask price in the stock's order book, without reading the trade that
+     * holds it
+     * 
+     * @param symbol The symbol of the stock
+     * @return The lowest ask in ticks, or 0 if there are no limit sell trades
+     */
+    public long getLowestAskTicks(String symbol) {
+        return engine.call(symbol, () -> {
+            OrderBook book = orderBooks.getBook(symbol);
+            long id = book.bestAsk();
+            return id == OrderBook.NONE ? 0L : book.getPriceTicks(id);
+        });
+    }
+
+    /**
+     * Updates a stock's bid volume, bid, ask volume and ask from the best price levels of its
+     * order book, so that the volumes are the total remaining quantity at the best prices. Without
+     * a level on a side, its price is the last price and its volume 0.
+     * 
+     * The stock is read and saved on its matching thread, in a unit of work, so that the quote 
+     * never overwrites a last price written by a fill.
+     * 
+     * @param symbol The symbol of the stock
+     * @return The updated stock, or null if it does not exist
+     */
+    public Stock updateQuote(String symbol) {
+        return engine.call(symbol, () -> inUnitOfWork(() -> {
+            MatchUnitOfWork uow = unitOfWork.get();
+            Stock stock = uow.stock(symbol, () -> stockRepo.findBySymbol(symbol).orElse(null));
+            if (stock == null)
+                return null;
+
+            OrderBook book = orderBooks.getBook(symbol);
+            OrderBook.PriceLevel bestBid = book.getBestBidLevel();
+            OrderBook.PriceLevel bestAsk = book.getBestAskLevel();
+            stock.setBid_volume(bestBid == null ? 0 : bestBid.getQuantity());
+            stock.setBidTicks(bestBid == null ? stock.getLastPriceTicks() : bestBid.getPriceTicks());
+            stock.setAsk_volume(bestAsk == null ? 0 : bestAsk.getQuantity());
+            stock.setAskTicks(bestAsk == null ? stock.getLastPriceTicks() : bestAsk.getPriceTicks());
+            uow.save(stock);
+            return stock;
+        }));
+    }
+
+    private Trade findResting(long id) {
+        return id == OrderBook.NONE ? null : tradeRepo.findById(id).orElse(null);
+    }
+
+    /**
+     * Loads the resting trades of an order book through the current unit of work. Trades that no
+     * longer exist in the database, or are no longer open or partial-filled, are left out.
+     * 
+     * @param ids The IDs of the resting trades
+     * @return The resting trades, in the same order
+     */
+    private List<Trade> resting(long[] ids) {
+        List<Trade> result = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            Trade trade = unitOfWork.get().trade(id);
+            if (isResting(trade))
+                result.add(trade);
         }
+        return result;
+    }
 
-        if (highest.getBid() == 0)
-            return null;
+    private boolean isResting(Trade trade) {
+        return trade != null && VALID_STATUSES.contains(trade.getStatus());
+    }
 
-        return highest;
+    /**
+     * Loads the earliest limit sell trade at the lowest ask in an order book, if it is priced at 
+     * or below a limit. Only the book is read to compare prices, so trades are loaded from the 
+     * database only once they are about to be filled. Trades that no longer exist in the 
+     * database, or are no longer open or partial-filled, are dropped from the book.
+     * 
+     * @param book The order book of the stock
+     * @param excludedCustomer The customer whose trades should be skipped
+     * @param maxPrice The highest ask to accept, in ticks
+     * @return The sell trade, or null if there is none within the limit
+     */
+    private Trade bestAsk(OrderBook book, Long excludedCustomer, long maxPrice) {
+        long id;
+        while ((id = book.bestAsk(excludedCustomer)) != OrderBook.NONE 
+            && book.getPriceTicks(id) <= maxPrice) {
+            Trade trade = unitOfWork.get().trade(id);
+            if (isResting(trade))
+                return trade;
+            book.remove(id);
+        }
+        return null;
+    }
+
+    /**
+     * Loads the earliest limit buy trade at the highest bid in an order book, if it is priced at 
+     * or above a limit, as described in bestAsk(OrderBook, Long, long)
+     * 
+     * @param book The order book of the stock
+     * @param excludedCustomer The customer whose trades should be skipped
+     * @param minPrice The lowest bid to accept, in ticks
+     * @return The buy trade, or null if there is none within the limit
+     */
+    private Trade bestBid(OrderBook book, Long excludedCustomer, long minPrice) {
+        long id;
+        while ((id = book.bestBid(excludedCustomer)) != OrderBook.NONE 
+            && book.getPriceTicks(id) >= minPrice) {
+            Trade trade = unitOfWork.get().trade(id);
+            if (isResting(trade))
+                return trade;
+            book.remove(id);
+        }
+        return null;
     }
 
     /**
@@ -165,63 +565,498 @@ public class TradeService {
      * is a buy or sell, and whether it is made at market price, the method will call different 
      * processing functions.
      * 
-     * If the current time is before 9am or after 5pm, the trade will not be processed
+     * A stop or stop-limit trade whose stop price has not been reached by the last price of its 
+     * stock is held in the stop book of the stock instead, until a fill triggers it.
+     * 
+     * If the market session is not open (e.g. before 9am, after 5pm, or on a holiday), the trade 
+     * will not be processed.
+     * 
+     * Trades that are not filled after processing rest in the stock's order book, except 
+     * immediate-or-cancel trades, whose unfilled quantity is cancelled, and fill-or-kill trades, 
+     * which are cancelled unless they can be filled in full. Trades entering the engine for the
+     * first time are recorded in the trade journal. The trade is processed on the matching thread
+     * of its stock, so that trades on the same stock are never matched concurrently.
+     * 
+     * If processing a newly accepted trade fails, the trade is rejected, as described in 
+     * rejectNewTrades().
      * 
      * @param trade The trade to be made.
      * @return The processed trade.
      */
     public Trade makeTrade(Trade trade) {
-        Calendar now = Calendar.getInstance();
-        
-        if (now.get(now.DAY_OF_WEEK) == 7 || now.get(now.DAY_OF_WEEK) == 1 || 
-            now.get(now.HOUR_OF_DAY) < 9 || now.get(now.HOUR_OF_DAY) > 16) {
+        return engine.call(trade.getSymbol(), () -> inUnitOfWork(() -> matchTrade(trade)),
+            compensation(Arrays.asList(trade)));
+    }
+
+    /**
+     * Queues several newly created trades, to be processed as described in makeTrade(). The trades
+     * of each stock are matched in the order given, in a single task and unit of work on the 
+     * matching thread of that stock, and the trades of different stocks are matched in parallel.
+     * 
+     * If the task of a stock fails, its newly accepted trades are rejected, and the futures of all 
+     * its trades complete with the failure, while the trades of other stocks are unaffected.
+     * 
+     * @param trades The trades to be made.
+     * @return A future for each trade, in the order given, that completes with the processed trade.
+     */
+    public List<CompletableFuture<Trade>> submitTrades(List<Trade> trades) {
+        Map<String, List<Trade>> bySymbol = new LinkedHashMap<>();
+        for (Trade trade : trades)
+            bySymbol.computeIfAbsent(trade.getSymbol(), s -> new ArrayList<>()).add(trade);
+
+        Map<String, CompletableFuture<Void>> pending = new HashMap<>();
+        for (Map.Entry<String, List<Trade>> entry : bySymbol.entrySet()) {
+            CompletableFuture<Void> task = engine.submit(entry.getKey(), () -> inUnitOfWork(() -> {
+                for (Trade trade : entry.getValue())
+                    matchTrade(trade);
+                return null;
+            }), compensation(entry.getValue()));
+            pending.put(entry.getKey(), task.whenComplete((result, e) -> {
+                if (e != null)
+                    log.error("Failed to process the trades of " + entry.getKey(), e);
+            }));
+        }
+
+        List<CompletableFuture<Trade>> processed = new ArrayList<>(trades.size());
+        for (Trade trade : trades)
+            processed.add(pending.get(trade.getSymbol()).thenApply(result -> trade));
+        return processed;
+    }
+
+    /**
+     * Waits for tasks queued on the matching engine to complete. If a task failed, its exception
+     * is rethrown once every task has completed.
+     * 
+     * @param pending The futures of the tasks
+     * @return The results of the tasks, in the same order
+     */
+    private static <T> List<T> joinAll(List<CompletableFuture<T>> pending) {
+        List<T> results = new ArrayList<>(pending.size());
+        RuntimeException failure = null;
+        for (CompletableFuture<T> future : pending) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException 
+                        ? (RuntimeException)e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null)
+            throw failure;
+        return results;
+    }
+
+    /**
+     * Queues a newly created trade on the matching thread of its stock, without waiting for it to
+     * be processed. Failures are logged, as there is no caller left to report them to.
+     * 
+     * @param trade The trade to be made.
+     * @return A future that completes with the processed trade.
+     */
+    public CompletableFuture<Trade> submitTrade(Trade trade) {
+        return engine.submit(trade.getSymbol(), () -> inUnitOfWork(() -> matchTrade(trade)),
+            compensation(Arrays.asList(trade))).whenComplete((result, e) -> {
+                if (e != null)
+                    log.error("Failed to process trade " + trade.getId(), e);
+            });
+    }
+
+    // Rejects the newly accepted trades among the given trades if their matching task fails
+    private Runnable compensation(List<Trade> trades) {
+        List<Trade> accepted = new ArrayList<>();
+        for (Trade trade : trades) {
+            if (trade.isReservationPending())
+                accepted.add(trade);
+        }
+        return accepted.isEmpty() ? null : () -> rejectNewTrades(accepted);
+    }
+
+    /**
+     * Rejects newly accepted trades whose matching task failed. Each trade was saved as an open 
+     * trade when it was accepted, but the reservation of its funds or assets is only written by 
+     * its matching task, and so was rolled back with it. Left open, the trade would be loaded into
+     * the rebuilt order book and filled without anything reserved for it.
+     * 
+     * This runs on the matching thread of the trades' stock right after the failed task, before 
+     * the order book is rebuilt. Reservations that the risk cache still holds for the trades are
+     * taken back.
+     * 
+     * @param trades The newly accepted trades
+     */
+    private void rejectNewTrades(List<Trade> trades) {
+        List<Long> ids = new ArrayList<>();
+        for (Trade trade : trades) {
+            if (trade.isReservationPending()) {
+                if (trade.getAction().equals("buy"))
+                    risk.releaseFunds(trade.getAccount_id(), trade.getAmtReservedCents());
+                else
+                    risk.releaseAssets(trade.getCustomer_id(), trade.getSymbol(), 
+                    trade.getQuantity());
+                trade.setReservationPending(false);
+            }
+            trade.setStatus("rejected");
+            ids.add(trade.getId());
+        }
+        tradeRepo.rejectAll(ids, OPEN_STATUSES);
+        log.warn("Rejected trades " + ids + " after matching failed");
+    }
+
+    /**
+     * Runs matching work in a unit of work, which collects the entities modified by every fill and
+     * writes them once the work is done. If a unit of work is already open on this thread, the 
+     * work joins it.
+     * 
+     * Order books, stop books and price bands change as fills are made, before anything is 
+     * written. If the work fails, or its transaction does not commit, they no longer match the 
+     * database, and are discarded by discardShardState(). Trades rejected by validation are the 
+     * exception, as they are rejected before anything changes.
+     * 
+     * @param work The matching work to be run
+     * @return The result of the work
+     */
+    private <T> T inUnitOfWork(Supplier<T> work) {
+        if (unitOfWork.get() != null)
+            return work.get();
+
+        MatchUnitOfWork uow = new MatchUnitOfWork(tradeRepo, accountRepo, transferRepo, assetRepo,
+        portfolioRepo, stockRepo, risk, journal);
+        unitOfWork.set(uow);
+        DiscardOnRollback rollback = null;
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            rollback = new DiscardOnRollback();
+            TransactionSynchronizationManager.registerSynchronization(rollback);
+        }
+        try {
+            T result = work.get();
+            uow.flush();
+            return result;
+        } catch (RuntimeException e) {
+            if (e instanceof TradeNotValidException) {
+                if (rollback != null)
+                    rollback.rejected = true;
+            } else if (rollback == null) {
+                discardShardState();
+            }
+            throw e;
+        } finally {
+            unitOfWork.remove();
+        }
+    }
+
+    // Discards the state of the current matching thread if its transaction is rolled back
+    private class DiscardOnRollback implements TransactionSynchronization {
+        boolean rejected;
+
+        @Override
+        public void afterCompletion(int status) {
+            if (status != STATUS_COMMITTED && !rejected)
+                discardShardState();
+        }
+    }
+
+    /**
+     * Discards the order book, stop book and expiry wheel of every stock matched on the current 
+     * matching thread, and moves their dynamic price bands back to their last prices, after work 
+     * on the thread failed. Books are rebuilt from the database when they are next accessed, and
+     * expiry wheels, which are not rebuilt lazily, are rebuilt at once.
+     * 
+     * Every stock of the thread is discarded rather than only those the failed work touched, as 
+     * failures are rare, and a task may match several stocks.
+     */
+    private void discardShardState() {
+        int shard = engine.currentShard();
+        if (shard < 0)
+            return;
+
+        Set<String> withExpiries = orderBooks.getExpirySymbols();
+        Set<String> symbols = orderBooks.getSymbols();
+        symbols.addAll(withExpiries);
+        Set<String> discarded = new HashSet<>();
+        boolean hadExpiries = false;
+        for (String symbol : symbols) {
+            if (engine.shardOf(symbol) != shard)
+                continue;
+            hadExpiries |= withExpiries.contains(symbol);
+            orderBooks.release(symbol);
+            bands.restore(symbol);
+            discarded.add(symbol);
+        }
+        log.warn("Discarded the order books of " + discarded + " after matching failed");
+        if (!hadExpiries)
+            return;
+
+        long now = session.millis();
+        for (Trade trade : tradeRepo.findByStatusInAndExpiryNotNull(OPEN_STATUSES)) {
+            if (discarded.contains(trade.getSymbol())) {
+                orderBooks.getExpiries(trade.getSymbol(), now)
+                    .schedule(trade.getId(), trade.getExpiry());
+            }
+        }
+    }
+
+    private Trade matchTrade(Trade trade) {
+        if (trade.isReservationPending() && !writeReservation(trade))
+            return trade;
+
+        OrderBook book = orderBooks.getBook(trade.getSymbol());
+        if (trade.isGoodTillDate() && !book.contains(trade.getId())) {
+            orderBooks.getExpiries(trade.getSymbol(), session.millis())
+                .schedule(trade.getId(), trade.getExpiry());
+        }
+        if (trade.isStop() && !book.contains(trade.getId()) 
+            && !trade.isStopTriggered(lastPriceTicks(trade.getSymbol()))) {
+            holdStop(trade);
+            return trade;
+        }
+
+        if (!book.contains(trade.getId()))
+            unitOfWork.get().journal(JournalRecord.accepted(trade));
+        match(trade, book);
+        runTriggeredStops(trade.getSymbol());
+        return trade;
+    }
+
+    /**
+     * Writes the funds or assets that the risk cache reserved for a new trade when it was 
+     * accepted, as part of the trade's unit of work. Assets are written on the matching thread of
+     * their stock, like every other change to them.
+     * 
+     * In a cluster, an account may be reserved from by the risk cache of every node, each of 
+     * which only knows of its own reservations. Funds are therefore written at once, and only if
+     * the available balance in the database still covers them. Otherwise the trade is rejected,
+     * and the account is read again by this node's risk cache. Assets need no such check, as the
+     * trades of a stock, and so the reservations of its assets, are only accepted by its owner.
+     * 
+     * @param trade The new trade
+     * @return false if the trade was rejected
+     */
+    private boolean writeReservation(Trade trade) {
+        MatchUnitOfWork uow = unitOfWork.get();
+        if (trade.getAction().equals("buy")) {
+            long cents = trade.getAmtReservedCents();
+            if (!cluster.isEnabled()) {
+                uow.reserve(trade.getAccount(), cents);
+            } else if (accountRepo.reserveFunds(trade.getAccount_id(), cents) == 0) {
+                risk.releaseFunds(trade.getAccount_id(), cents);
+                risk.invalidateAccount(trade.getAccount_id());
+                trade.setReservationPending(false);
+                trade.setStatus("rejected");
+                uow.save(trade);
+                return false;
+            }
+            risk.settleFunds(trade.getAccount_id(), cents);
+        } else {
+            Optional<Portfolio> portfolio = uow.portfolio(trade.getCustomer_id());
+            if (portfolio.isPresent()) {
+                for (Asset asset : portfolio.get().getAssets()) {
+                    if (asset.getCode().equals(trade.getSymbol()))
+                        uow.reserve(asset, trade.getQuantity());
+                }
+            }
+            risk.settleAssets(trade.getCustomer_id(), trade.getSymbol(), trade.getQuantity());
+        }
+        trade.setReservationPending(false);
+        return true;
+    }
+
+    private long lastPriceTicks(String symbol) {
+        return unitOfWork.get().stock(symbol, () -> stockRepo.findBySymbol(symbol).get())
+            .getLastPriceTicks();
+    }
+
+    /**
+     * Holds a stop trade whose stop price has not been reached in the stop book of its stock. The
+     * trade is saved with status "pending", and does not enter the order book or the trade journal
+     * until it is triggered.
+     * 
+     * @param trade The stop trade
+     */
+    private void holdStop(Trade trade) {
+        trade.setStatus("pending");
+        trade.setProcessed(true);
+        orderBooks.getStops(trade.getSymbol()).add(trade);
+        unitOfWork.get().save(trade);
+    }
+
+    /**
+     * Matches the stop trades triggered by fills of a stock, one at a time, as if they had just 
+     * been placed. Fills of triggered trades can trigger further stops, which are matched in 
+     * turn.
+     * 
+     * @param symbol The symbol of the stock
+     */
+    private void runTriggeredStops(String symbol) {
+        StopBook stops = orderBooks.getStops(symbol);
+        OrderBook book = orderBooks.getBook(symbol);
+        long id;
+        while ((id = stops.nextTriggered()) != OrderBook.NONE) {
+            Trade trade = unitOfWork.get().trade(id);
+            if (trade == null || !trade.getStatus().equals("pending"))
+                continue;
+            // Stops triggered by the fills before a halt wait for the next fill after it
+            if (bands.isHalted(symbol)) {
+                stops.add(trade);
+                continue;
+            }
+
+            trade.setStatus("open");
+            unitOfWork.get().journal(JournalRecord.accepted(trade));
+            match(trade, book);
+        }
+    }
+
+    private Trade match(Trade trade, OrderBook book) {
+        if (!session.isOpen() && trade.isImmediate()) {
+            trade.setProcessed(true);
+            close(trade, "cancelled");
+            return trade;
+        }
+        if (!session.isOpen()) {
             trade.setProcessed(false);
-            tradeRepo.save(trade);
+            unitOfWork.get().save(trade);
+            book.add(trade);
             return trade;
         }
 
+        if (bands.isHalted(trade.getSymbol()) 
+            || trade.isFillOrKill() && !canFillInFull(trade, book)) {
+            trade.setProcessed(true);
+            close(trade, "cancelled");
+            return trade;
+        }
         
         if (trade.getAction().equals("buy")) {
-            if (trade.getBid() == 0)
+            if (trade.isMarket())
                 processMarketBuy(trade);
             else 
                 processBuy(trade);
         } else if (trade.getAction().equals("sell")) {
-            if (trade.getAsk() == 0)
+            if (trade.isMarket())
                 processMarketSell(trade);
             else 
                 processSell(trade);
         }
         trade.setProcessed(true);
+        unitOfWork.get().save(trade);
+        // A trade that breached the price bands of its stock is cancelled rather than left to rest
+        if (!trade.isFilled() && (trade.isImmediate() || bands.isHalted(trade.getSymbol())))
+            close(trade, "cancelled");
+        else if (!trade.isFilled())
+            book.add(trade);
         return trade;
     }
 
+    /**
+     * Checks whether a fill-or-kill trade could be filled in full at once. The aggregated quantity
+     * of the price levels it would match against is checked first, which rejects a trade against 
+     * a thin book without visiting any order. As that quantity includes the customer's own 
+     * trades, which are never matched, the orders are then visited to confirm it.
+     * 
+     * Resting market buys are not counted for a limit sell, as the book does not know how much 
+     * each of them can afford.
+     * 
+     * Only the price levels up to the first that would breach the price bands are counted, 
+     * following the dynamic band as each fill would move it, so that a fill-or-kill trade is 
+     * cancelled untouched rather than filled in part and then halted.
+     * 
+     * @param trade The fill-or-kill trade
+     * @param book The order book of its stock
+     * @return true if the remaining quantity of the trade can be filled
+     */
+    private boolean canFillInFull(Trade trade, OrderBook book) {
+        int needed = trade.getRemaining_quantity();
+        return fillableQuantity(trade, book, null) >= needed 
+            && fillableQuantity(trade, book, trade.getCustomer_id()) >= needed;
+    }
+
+    private int fillableQuantity(Trade trade, OrderBook book, Long customer) {
+        int needed = trade.getRemaining_quantity();
+        String symbol = trade.getSymbol();
+        if (trade.getAction().equals("buy")) {
+            if (trade.isMarket()) {
+                long limit = bands.sweepLimit(symbol, book.askPrices(Long.MAX_VALUE));
+                return book.affordableAskDepth(trade.getAmtRemainingCents(), limit, customer, 
+                    needed);
+            }
+
+            // Market sells are filled at the bid, after every ask up to it
+            List<Long> prices = new ArrayList<>(book.askPrices(trade.getBidTicks()));
+            prices.add(trade.getBidTicks());
+            long limit = bands.sweepLimit(symbol, prices);
+            int limits = book.askDepth(limit, customer, needed);
+            if (limit < trade.getBidTicks())
+                return limits;
+            return limits + book.marketSellDepth(customer, needed - limits);
+        }
+
+        long limit = bands.sweepLimit(symbol, book.bidPrices(trade.getAskTicks()));
+        return limit == 0 ? 0 : book.bidDepth(limit, customer, needed);
+    }
+
+    /**
+     * Closes a trade that has not been filled, on the matching thread of its stock, and releases 
+     * the funds or assets it still reserves. Used for the unfilled remainder of immediate-or-cancel
+     * and fill-or-kill trades, and for good-till-date trades whose expiry has passed.
+     * 
+     * @param trade The trade to be closed
+     * @param status The new status of the trade, either "cancelled" or "expired"
+     */
+    private void close(Trade trade, String status) {
+        MatchUnitOfWork uow = unitOfWork.get();
+        if (trade.getAction().equals("buy")) {
+            uow.adjust(trade.getAccount(), 0, trade.getAmtRemainingCents());
+        } else {
+            Optional<Portfolio> portfolio = uow.portfolio(trade.getCustomer_id());
+            if (portfolio.isPresent()) {
+                for (Asset asset : portfolio.get().getAssets()) {
+                    if (asset.getCode().equals(trade.getSymbol())) {
+                        asset.setAvailable_quantity(
+                            asset.getAvailable_quantity() + trade.getRemaining_quantity());
+                        uow.save(asset);
+                    }
+                }
+            }
+        }
+
+        trade.setStatus(status);
+        uow.journal(JournalRecord.closed(
+            status.equals("expired") ? JournalRecord.EXPIRE : JournalRecord.CANCEL, trade));
+        orderBooks.getBook(trade.getSymbol()).remove(trade.getId());
+        orderBooks.getStops(trade.getSymbol()).remove(trade.getId());
+        uow.save(trade);
+    }
+
     /**
      * Processes a buy trade. The method tries to match with the lowest ask available, until the 
      * quantity is filled, there are no more sell trades, or the lowest ask exceeds the bid. 
      * It then matches with market
-     * sell trades, if any.
+     * sell trades, if any. Matching stops at once if a fill would breach the price bands of the
+     * stock.
      * 
      * @param buy The buy trade to be made.
      */
     public void processBuy(Trade buy) {
-        Trade sell = getLowestAskTradeForStock(buy.getSymbol());
-        while (!buy.isFilled() && sell != null && sell.getAsk() <= buy.getBid()) {
+        OrderBook book = orderBooks.getBook(buy.getSymbol());
+        Trade sell = bestAsk(book, buy.getCustomer_id(), buy.getBidTicks());
+        while (!buy.isFilled() && sell != null) {
 
             int needed = buy.getRemaining_quantity();
             int avail = sell.getRemaining_quantity();
             int toFill = Math.min(needed, avail);
-            Double price = Math.min(buy.getBid(), sell.getAsk());
+            long price = Math.min(buy.getBidTicks(), sell.getAskTicks());
+            if (!bands.allowsFill(buy.getSymbol(), price))
+                return;
             
             fillTrades(buy, sell, price, toFill);
 
             if (sell.isFilled())
-                sell = getLowestAskTradeForStock(buy.getSymbol());
+                sell = bestAsk(book, buy.getCustomer_id(), buy.getBidTicks());
         }
 
-        List<Trade> marketSells = tradeRepo.findByActionAndSymbolAndBidAndStatusIn("sell", buy.getSymbol(), 
-        Double.valueOf(0), VALID_STATUSES);
-        marketSells.sort(new TradeTimeComparator());
+        List<Trade> marketSells = 
+            buy.isFilled() ? new ArrayList<>() : resting(book.getMarketSells());
         int idx = 0;
 
         while (!buy.isFilled() && idx < marketSells.size()) {
@@ -229,8 +1064,10 @@ public class TradeService {
             int needed = buy.getRemaining_quantity();
             int avail = marketSell.getRemaining_quantity();
             int toFill = Math.min(needed, avail);
+            if (!bands.allowsFill(buy.getSymbol(), buy.getBidTicks()))
+                return;
             
-            fillTrades(buy, marketSell, buy.getBid(), toFill);
+            fillTrades(buy, marketSell, buy.getBidTicks(), toFill);
             idx++;
         }
     }
@@ -247,34 +1084,37 @@ public class TradeService {
      * @param sell The sell trade to be made.
      */
     public void processSell(Trade sell) {
-        Trade buy = getHighestBidTradeForStock(sell.getSymbol());
-        while (!sell.isFilled() && buy != null && buy.getBid() >= sell.getAsk()) {
+        OrderBook book = orderBooks.getBook(sell.getSymbol());
+        Trade buy = bestBid(book, sell.getCustomer_id(), sell.getAskTicks());
+        while (!sell.isFilled() && buy != null) {
 
             int needed = sell.getRemaining_quantity();
             int avail = buy.getRemaining_quantity();
             int toFill = Math.min(needed, avail);
-            Double price = Math.max(sell.getAsk(), buy.getBid());
+            long price = Math.max(sell.getAskTicks(), buy.getBidTicks());
+            if (!bands.allowsFill(sell.getSymbol(), price))
+                return;
             
             fillTrades(buy, sell, price, toFill);
 
             if (buy.isFilled())
-                buy = getLowestAskTradeForStock(sell.getSymbol());
+                buy = bestBid(book, sell.getCustomer_id(), sell.getAskTicks());
         }
 
-        List<Trade> marketBuys = tradeRepo.findByActionAndSymbolAndBidAndStatusIn("buy", sell.getSymbol(), 
-        Double.valueOf(0), VALID_STATUSES);
-        marketBuys.sort(new TradeTimeComparator());
+        List<Trade> marketBuys = 
+            sell.isFilled() ? new ArrayList<>() : resting(book.getMarketBuys());
         int idx = 0;
         while (!sell.isFilled() && idx < marketBuys.size()) {
             Trade marketBuy = marketBuys.get(idx);
             int needed = sell.getRemaining_quantity();
-            int qty_affordable = (int)Math.round(
-                marketBuy.getAmtRemaining() / (sell.getAsk() * 100)
-                ) * 100;
+            int qty_affordable = 
+                Price.affordableLots(marketBuy.getAmtRemainingCents(), sell.getAskTicks());
             int avail = Math.min(qty_affordable, marketBuy.getRemaining_quantity());
             int toFill =  Math.min(needed, avail);
+            if (!bands.allowsFill(sell.getSymbol(), sell.getAskTicks()))
+                return;
 
-            fillTrades(marketBuy, sell, sell.getAsk(), toFill);
+            fillTrades(marketBuy, sell, sell.getAskTicks(), toFill);
 
             idx++;
         }
@@ -288,16 +1128,20 @@ public class TradeService {
      * @param buy The buy trade to be made.
      */
     public void processMarketBuy(Trade buy) {
-        Trade sell = getLowestAskTradeForStock(buy.getSymbol());
-        while (!buy.isFilled() && sell != null && buy.getAmtRemaining() >= sell.getAsk() * 100) {
+        OrderBook book = orderBooks.getBook(buy.getSymbol());
+        Trade sell = bestAsk(book, buy.getCustomer_id(), Long.MAX_VALUE);
+        while (!buy.isFilled() && sell != null 
+            && Price.affordableLots(buy.getAmtRemainingCents(), sell.getAskTicks()) > 0) {
             int avail = sell.getRemaining_quantity();
-            int affordable = (int)Math.floor(buy.getAmtRemaining() / (sell.getAsk() * 100)) * 100;
+            int affordable = Price.affordableLots(buy.getAmtRemainingCents(), sell.getAskTicks());
             int toFill = Math.min(avail, affordable);
+            if (!bands.allowsFill(buy.getSymbol(), sell.getAskTicks()))
+                return;
 
-            fillTrades(buy, sell, sell.getAsk(), toFill);
+            fillTrades(buy, sell, sell.getAskTicks(), toFill);
 
             if (sell.isFilled())
-                sell = getLowestAskTradeForStock(buy.getSymbol());
+                sell = bestAsk(book, buy.getCustomer_id(), Long.MAX_VALUE);
         }
     }
 
@@ -309,16 +1153,19 @@ public class TradeService {
      * @param sell The sell trade to be made.
      */
     public void processMarketSell(Trade sell) {
-        Trade buy = getHighestBidTradeForStock(sell.getSymbol());
+        OrderBook book = orderBooks.getBook(sell.getSymbol());
+        Trade buy = bestBid(book, sell.getCustomer_id(), 0);
         while (!sell.isFilled() && buy != null) {
             int needed = sell.getRemaining_quantity();
             int avail = buy.getRemaining_quantity();
             int toFill = needed <= avail ? needed : avail;
+            if (!bands.allowsFill(sell.getSymbol(), buy.getBidTicks()))
+                return;
 
-            fillTrades(buy, sell, buy.getBid(), toFill);
+            fillTrades(buy, sell, buy.getBidTicks(), toFill);
 
             if (buy.isFilled())
-                buy = getHighestBidTradeForStock(sell.getSymbol());
+                buy = bestBid(book, sell.getCustomer_id(), 0);
         }
     }
 
@@ -337,7 +1184,14 @@ public class TradeService {
      * 3. Update filled_quantity for each of the trades, and set status as needed 
      * (partial-filled or filled)
      * 
-     * 4. Update last price of the associated stock 
+     * 4. Update last price and dynamic price band of the associated stock, and trigger the stop 
+     * trades whose stop price it reaches. Triggered trades are matched once the current trade has finished matching.
+     * 
+     * 5. Record the fill in the trade journal, and reduce the remaining quantity of trades resting
+     * in the order book, removing those that have been filled
+     * 
+     * Modified entities are written when the current unit of work finishes, or before returning if
+     * there is none.
      * 
      * @param buy The buy trade to be filled.
      * @param sell The sell trade to be filled.
@@ -345,49 +1199,81 @@ public class TradeService {
      * @param qty The quantity of stocks to be traded.
      */
     public void fillTrades(Trade buy, Trade sell, Double price, int qty) {
-        if (buy.getCustomer_id() == sell.getCustomer_id())
+        fillTrades(buy, sell, Price.toTicks(price), qty);
+    }
+
+    /**
+     * Fills a buy-sell trade pair at a price in ticks, as described in 
+     * fillTrades(Trade, Trade, Double, int)
+     * 
+     * @param buy The buy trade to be filled.
+     * @param sell The sell trade to be filled.
+     * @param price The price of the trade, in ticks.
+     * @param qty The quantity of stocks to be traded.
+     */
+    public void fillTrades(Trade buy, Trade sell, long price, int qty) {
+        if (Objects.equals(buy.getCustomer_id(), sell.getCustomer_id()))
             return;
 
+        inUnitOfWork(() -> {
+            fill(buy, sell, price, qty);
+            return null;
+        });
+    }
+
+    private void fill(Trade buy, Trade sell, long price, int qty) {
+        MatchUnitOfWork uow = unitOfWork.get();
+
         Transfer transfer = new Transfer();
         transfer.setSender(buy.getAccount());
         transfer.setReceiver(sell.getAccount());
         transfer.setFrom(buy.getAccount_id());
         transfer.setTo(sell.getAccount_id());
-        transfer.setAmount(price * qty);
+        transfer.setAmount(Price.fromCents(Price.valueInCents(price, qty)));
 
         createTradeTransfer(transfer, buy.getAccount(), sell.getAccount());
 
-        Optional<Portfolio> sellerPortfolioOpt = portfolioRepo.findByCustomerId(sell.getCustomer_id());
-        Optional<Portfolio> buyerPortfolioOpt = portfolioRepo.findByCustomerId(buy.getCustomer_id());
+        Optional<Portfolio> sellerPortfolioOpt = uow.portfolio(sell.getCustomer_id());
+        Optional<Portfolio> buyerPortfolioOpt = uow.portfolio(buy.getCustomer_id());
 
         if (sellerPortfolioOpt.isPresent()) {
             updatePortfolioAsset(sellerPortfolioOpt.get(), sell.getSymbol(),
-            price, -qty);
+            Price.fromTicks(price), -qty);
         }
 
         if (buyerPortfolioOpt.isPresent()) {
             updatePortfolioAsset(buyerPortfolioOpt.get(), buy.getSymbol(), 
-            price, qty);
+            Price.fromTicks(price), qty);
         }
 
-        Stock stock = stockRepo.findBySymbol(buy.getSymbol()).get();
-        stock.setLast_price(price);
-        stockRepo.save(stock);
+        Stock stock = uow.stock(buy.getSymbol(), 
+            () -> stockRepo.findBySymbol(buy.getSymbol()).get());
+        stock.setLastPriceTicks(price);
+        uow.save(stock);
+        bands.filled(buy.getSymbol(), price);
+        orderBooks.getStops(buy.getSymbol()).trigger(price);
 
 
         buy.setAvg_price(
-            averageOf(buy.getAvg_price(), buy.getFilled_quantity(), price, qty));
+            averageOf(buy.getAvg_price(), buy.getFilled_quantity(), Price.fromTicks(price), qty));
         buy.setFilled_quantity(buy.getFilled_quantity() + qty);
+        buy.setAmtSpentCents(buy.getAmtSpentCents() + Price.valueInCents(price, qty));
         String buyStatus = buy.isFilled() ? "filled" : "partial-filled";
         buy.setStatus(buyStatus);
-        tradeRepo.save(buy);
+        uow.save(buy);
 
         sell.setAvg_price(
-            averageOf(sell.getAvg_price(), sell.getFilled_quantity(), price, qty));
+            averageOf(sell.getAvg_price(), sell.getFilled_quantity(), Price.fromTicks(price), qty));
         sell.setFilled_quantity(sell.getFilled_quantity() + qty);
         String sellStatus = sell.isFilled() ? "filled" : "partial-filled";
         sell.setStatus(sellStatus);
-        tradeRepo.save(sell);
+        uow.save(sell);
+
+        uow.journal(JournalRecord.fill(buy, sell, price, qty));
+
+        OrderBook book = orderBooks.getBook(buy.getSymbol());
+        book.reduce(buy.getId(), qty);
+        book.reduce(sell.getId(), qty);
     }
 
     
@@ -403,24 +1289,27 @@ public class TradeService {
      * If the sender or receiver account is null, that account is associated with a market maker
      * trade, and hence no account operations will occur
      * 
+     * Balances are changed relative to their values in the database when the current unit of work
+     * is flushed, as the same account may be credited or debited by fills on other matching threads.
+     * 
      * @param transfer The transfer to be made
      * @param sender The sender of the transfer
      * @param receiver The receiver of the transfer
      * @return Created transfer
      */
     public Transfer createTradeTransfer(Transfer transfer, Account sender, Account receiver) {
-        if (sender != null) {
-            sender.setBalance(sender.getBalance() - transfer.getAmount());
-            accountRepo.save(sender);
-        }
-        
-        if (receiver != null) {
-            receiver.setAvailable_balance(receiver.getAvailable_balance() + transfer.getAmount());
-            receiver.setBalance(receiver.getBalance() + transfer.getAmount());
-            accountRepo.save(receiver);
-        }
+        return inUnitOfWork(() -> {
+            MatchUnitOfWork uow = unitOfWork.get();
+            long amount = Price.toCents(transfer.getAmount());
+            if (sender != null)
+                uow.adjust(sender, -amount, 0);
+            
+            if (receiver != null)
+                uow.adjust(receiver, amount, amount);
 
-        return transferRepo.save(transfer);
+            uow.save(transfer);
+            return transfer;
+        });
     }
 
     /**
@@ -443,6 +1332,13 @@ public class TradeService {
      * @param qty The change in quantity of stock (positive or negative)
      */
     public void updatePortfolioAsset(Portfolio portfolio, String symbol, Double price, int qty) {
+        inUnitOfWork(() -> {
+            updateAsset(portfolio, symbol, price, qty);
+            return null;
+        });
+    }
+
+    private void updateAsset(Portfolio portfolio, String symbol, Double price, int qty) {
         List<Asset> assets = portfolio.getAssets();
 
         boolean assetFound = false;
@@ -457,38 +1353,179 @@ public class TradeService {
         if (assetFound) {
             if (qty < 0) {
                 Double change = (price - toUpdate.getAvg_price()) * -qty;
-                portfolio.setRealized_gain_loss(portfolio.getRealized_gain_loss() + change);
+                unitOfWork.get().adjustRealizedGain(portfolio, change);
             } else if (qty > 0) {
                 toUpdate.setAvg_price(
                     (toUpdate.getAvg_price() * toUpdate.getQuantity() + price * qty) / (toUpdate.getQuantity() + qty));
                 toUpdate.setAvailable_quantity(toUpdate.getAvailable_quantity() + qty);
             }
             toUpdate.setQuantity(toUpdate.getQuantity() + qty);
+            unitOfWork.get().save(toUpdate);
             
         } else {
             Asset newAsset = new Asset(null, symbol, portfolio, qty, qty, price, 0);
-            assetRepo.save(newAsset);
+            unitOfWork.get().saveNew(newAsset);
         }
     }
 
     /**
      * Cancels a trade. Operations performed are largely similar to the process of trade expiry.
+     * The trade is cancelled in a unit of work on the matching thread of its stock, where it is
+     * read again, so that fills since it was last read are kept. A trade that was filled or 
+     * closed in the meantime is left as it is. Only what the trade still reserves is released:
+     * the unspent funds of a buy trade, or the remaining quantity of a sell trade.
      * 
      * @param trade The trade to be cancelled.
+     * @return The trade as read on the matching thread, cancelled unless it was no longer open.
+     */
+    public Trade processCancelTrade(Trade trade) {
+        return engine.call(trade.getSymbol(), 
+            () -> inUnitOfWork(() -> cancelTrade(trade.getId())));
+    }
+
+    /**
+     * Cancels several open, partial-filled or pending stop trades at once, e.g. every resting 
+     * trade of a customer. The trades of each stock are cancelled in one task on the matching thread of that
+     * stock, where they are read again, so that trades filled or closed in the meantime are 
+     * skipped. 
+     * 
+     * The trades of a stock are cancelled in a single unit of work, so the unspent reservations 
+     * of its cancelled buy trades are added up and released with one relative update per account,
+     * and the remaining quantities of its cancelled sell trades written once per asset. The 
+     * cancellations are journalled together, and the trades saved with one saveAll().
+     * 
+     * @param trades The trades to be cancelled.
+     * @return The trades that were cancelled.
      */
-    public void processCancelTrade(Trade trade) {
+    public List<Trade> processCancelTrades(List<Trade> trades) {
+        Map<String, List<Long>> bySymbol = new LinkedHashMap<>();
+        for (Trade trade : trades)
+            bySymbol.computeIfAbsent(trade.getSymbol(), s -> new ArrayList<>()).add(trade.getId());
+
+        List<CompletableFuture<List<Trade>>> pending = new ArrayList<>();
+        for (Map.Entry<String, List<Long>> entry : bySymbol.entrySet()) {
+            pending.add(engine.submit(entry.getKey(), 
+                () -> inUnitOfWork(() -> cancelTrades(entry.getValue()))));
+        }
+
+        List<Trade> cancelled = new ArrayList<>();
+        for (List<Trade> result : joinAll(pending))
+            cancelled.addAll(result);
+        return cancelled;
+    }
+
+    private List<Trade> cancelTrades(List<Long> ids) {
+        List<Trade> cancelled = new ArrayList<>();
+        for (Trade trade : tradeRepo.findAllById(ids)) {
+            if (OPEN_STATUSES.contains(trade.getStatus())) {
+                close(trade, "cancelled");
+                cancelled.add(trade);
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Amends the price or quantity of a resting limit trade in place, instead of cancelling it and
+     * placing a new trade. The trade is amended on the matching thread of its stock, where it is 
+     * read again, so that fills since it was last read are taken into account.
+     * 
+     * - If only the quantity is reduced, the trade keeps its time priority, and its remaining
+     * quantity in the order book is reduced.
+     * 
+     * - If the price is changed or the quantity is increased, the trade loses its time priority. 
+     * It is taken out of the order book and matched again as if it had just been placed, and 
+     * rests at the back of its new price level if it is not filled.
+     * 
+     * Only the difference in reservation is applied: the funds needed by the remaining quantity
+     * of a buy trade at its new price are compared with those at its old price, and the remaining
+     * quantity of a sell trade with its old remaining quantity.
+     * 
+     * @param trade The trade to be amended.
+     * @param quantity The new total quantity of the trade.
+     * @param price The new limit price of the trade, in ticks.
+     * @return The amended trade.
+     * @throws TradeNotValidException If the trade can no longer be amended, or the customer 
+     * cannot afford the amendment.
+     */
+    public Trade processAmendTrade(Trade trade, int quantity, long price) {
+        return engine.call(trade.getSymbol(), 
+            () -> inUnitOfWork(() -> amendTrade(trade.getId(), trade.getSymbol(), quantity, price)));
+    }
+
+    private Trade amendTrade(Long id, String symbol, int quantity, long price) {
+        MatchUnitOfWork uow = unitOfWork.get();
+        OrderBook book = orderBooks.getBook(symbol);
+        Trade trade = uow.trade(id);
+        if (trade == null || !book.contains(id) || !VALID_STATUSES.contains(trade.getStatus()))
+            throw new TradeNotValidException("Trade is no longer resting in the order book");
+
+        int oldRemaining = trade.getRemaining_quantity();
+        long oldPrice = trade.getPriceTicks();
+        int remaining = quantity - trade.getFilled_quantity();
+        if (remaining <= 0)
+            throw new TradeNotValidException("Quantity must exceed the quantity already filled");
+        if (remaining == oldRemaining && price == oldPrice)
+            return trade;
+
+        long reservedDelta = 0;
         if (trade.getAction().equals("buy")) {
-            Account acc = accountRepo.findById(trade.getAccount_id()).get();
-            acc.setAvailable_balance(acc.getBalance());
-            accountRepo.save(acc);
-        } else if (trade.getAction().equals("sell")) {
-            Asset asset = assetRepo.findByPortfolioCustomerIdAndCode(
-                trade.getCustomer_id(), trade.getSymbol()).get();
-            asset.setAvailable_quantity(asset.getAvailable_quantity() + trade.getQuantity());
-            assetRepo.save(asset);
+            reservedDelta = Price.valueInCents(price, remaining) 
+                - Price.valueInCents(oldPrice, oldRemaining);
+            Account acc = trade.getAccount();
+            if (reservedDelta > 0) {
+                if (!risk.reserveFunds(acc.getId(), reservedDelta))
+                    throw new TradeNotValidException("Insufficient funds for trade");
+                uow.reserve(acc, reservedDelta);
+                risk.settleFunds(acc.getId(), reservedDelta);
+            } else {
+                uow.adjust(acc, 0, -reservedDelta);
+            }
+            trade.setAmtReservedCents(trade.getAmtReservedCents() + reservedDelta);
+            trade.setBidTicks(price);
+        } else {
+            int delta = remaining - oldRemaining;
+            if (delta > 0 && !risk.reserveAssets(trade.getCustomer_id(), symbol, delta))
+                throw new TradeNotValidException("Insufficient quantity of assets for trade");
+
+            Optional<Portfolio> portfolio = delta == 0 ? Optional.empty() 
+                : uow.portfolio(trade.getCustomer_id());
+            if (portfolio.isPresent()) {
+                for (Asset asset : portfolio.get().getAssets()) {
+                    if (!asset.getCode().equals(symbol))
+                        continue;
+                    if (delta > 0) {
+                        uow.reserve(asset, delta);
+                    } else {
+                        asset.setAvailable_quantity(asset.getAvailable_quantity() - delta);
+                        uow.save(asset);
+                    }
+                }
+            }
+            if (delta > 0)
+                risk.settleAssets(trade.getCustomer_id(), symbol, delta);
+            trade.setAskTicks(price);
+        }
+        trade.setQuantity(quantity);
+
+        boolean requeue = price != oldPrice || remaining > oldRemaining;
+        uow.journal(JournalRecord.amend(trade, reservedDelta, requeue));
+        if (!requeue) {
+            book.reduce(id, oldRemaining - remaining);
+            uow.save(trade);
+            return trade;
         }
 
-        trade.setStatus("cancelled");
-        tradeRepo.save(trade);
+        book.remove(id);
+        match(trade, book);
+        runTriggeredStops(symbol);
+        return trade;
+    }
+
+    private Trade cancelTrade(Long id) {
+        Trade trade = unitOfWork.get().trade(id);
+        if (trade != null && OPEN_STATUSES.contains(trade.getStatus()))
+            close(trade, "cancelled");
+        return trade;
     }
 }
\ No newline at end of file
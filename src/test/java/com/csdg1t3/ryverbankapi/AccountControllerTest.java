@@ -4,6 +4,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -13,6 +14,7 @@ import com.csdg1t3.ryverbankapi.account.*;
 import com.csdg1t3.ryverbankapi.user.*;
 import com.csdg1t3.ryverbankapi.security.*;
 import com.csdg1t3.ryverbankapi.trade.TradeRepository;
+import com.csdg1t3.ryverbankapi.trade.RiskCache;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -32,6 +34,9 @@ public class AccountControllerTest {
     @Mock
     private TransferRepository transferRepo;
 
+    @Mock
+    private RiskCache risk;
+
     @Mock
     private UserAuthenticator uAuth;
 
@@ -170,6 +175,7 @@ public class AccountControllerTest {
         when(accountRepo.findById(id1)).thenReturn(Optional.of(newAccount));
         when(accountRepo.findById(id2)).thenReturn(Optional.of(account2));
         when(uAuth.getAuthenticatedUser()).thenReturn(user);
+        when(risk.reserveFunds(id1, 5000L)).thenReturn(true);
 
         Transfer savedTransfer = accountController.createTransfer(id1, transfer);
 
@@ -178,6 +184,11 @@ public class AccountControllerTest {
         verify(accountRepo).findById(id2);
         verify(transferRepo).save(transfer);
         verify(uAuth).getAuthenticatedUser();
+        verify(accountRepo).adjustBalances(id1, -5000L, -5000L);
+        verify(accountRepo).adjustBalances(id2, 5000L, 5000L);
+        verify(accountRepo, never()).save(any(Account.class));
+        verify(risk).settleFunds(id1, 5000L);
+        verify(risk).invalidateAccount(id2);
     }
 
     @Test
@@ -244,6 +255,7 @@ public class AccountControllerTest {
 
         when(accountRepo.findById(id1)).thenReturn(Optional.of(newAccount));
         when(uAuth.getAuthenticatedUser()).thenReturn(user);
+        when(risk.reserveFunds(id1, 110000L)).thenReturn(false);
 
         assertThrows(TransferNotValidException.class, () -> accountController.createTransfer(id1, transfer), "Insufficient funds in account for transfer");
         verify(accountRepo).findById(id1);
@@ -261,12 +273,14 @@ public class AccountControllerTest {
 
         when(accountRepo.findById(id1)).thenReturn(Optional.of(newAccount));
         when(uAuth.getAuthenticatedUser()).thenReturn(user);
+        when(risk.reserveFunds(id1, 5000L)).thenReturn(true);
         when(accountRepo.findById(id2)).thenReturn(Optional.empty());
 
         assertThrows(AccountNotFoundException.class, () -> accountController.createTransfer(id1, transfer), transfer.getTo() + "");
         verify(accountRepo).findById(id1);
         verify(uAuth).getAuthenticatedUser();
         verify(accountRepo).findById(id2);
+        verify(risk).releaseFunds(id1, 5000L);
     }
 
     @Test
@@ -0,0 +1,79 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+import com.csdg1t3.ryverbankapi.cluster.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ClusterMembershipTest {
+    @TempDir
+    Path dir;
+
+    // assert that a joining node only takes symbols over, and takes roughly its share of them
+    @Test
+    void ownerOf_nodeJoins_onlyMovedSymbolsGoToNewNode() {
+        HashRing before = new HashRing(Arrays.asList("node-1", "node-2"), 64);
+        HashRing after = new HashRing(Arrays.asList("node-1", "node-2", "node-3"), 64);
+
+        int moved = 0;
+        for (int i = 0; i < 3000; i++) {
+            String symbol = "S" + i;
+            if (!before.ownerOf(symbol).equals(after.ownerOf(symbol))) {
+                assertEquals("node-3", after.ownerOf(symbol));
+                moved++;
+            }
+        }
+        assertTrue(moved > 600 && moved < 1400);
+    }
+
+    // assert that a node discovers another node's heartbeat and publishes the new ring
+    @Test
+    void heartbeat_nodeJoins_publishClusterChangedEvent() throws Exception {
+        List<Object> events = new ArrayList<>();
+        ClusterMembership node1 = new ClusterMembership(events::add, true, "node-1",
+            "http://localhost:8081", dir.toString(), 60000, 64);
+        ClusterMembership node2 = new ClusterMembership(events::add, true, "node-2",
+            "http://localhost:8082", dir.toString(), 60000, 64);
+        node1.join();
+        assertEquals(Collections.singleton("node-1"), node1.getNodes());
+
+        node2.join();
+        node1.heartbeat();
+
+        assertEquals(1, events.size());
+        assertEquals(new TreeSet<>(Arrays.asList("node-1", "node-2")), node1.getNodes());
+        assertEquals("http://localhost:8082", node1.urlOf("node-2"));
+        assertTrue(node1.isLeader());
+        assertFalse(node2.isLeader());
+        String symbol = "A17U";
+        assertEquals(node1.ownerOf(symbol), node2.ownerOf(symbol));
+        assertTrue(node1.isLocal(symbol) != node2.isLocal(symbol));
+    }
+
+    // assert that a node whose heartbeat has timed out is treated as having left
+    @Test
+    void heartbeat_staleHeartbeat_nodeLeaves() throws Exception {
+        List<Object> events = new ArrayList<>();
+        ClusterMembership node1 = new ClusterMembership(events::add, true, "node-1",
+            "http://localhost:8081", dir.toString(), 3000, 64);
+        Files.write(dir.resolve("node-2.node"), "http://localhost:8082".getBytes());
+        node1.join();
+        assertEquals(2, node1.getNodes().size());
+
+        Files.setLastModifiedTime(dir.resolve("node-2.node"),
+            FileTime.fromMillis(System.currentTimeMillis() - 10000));
+        node1.heartbeat();
+
+        assertEquals(Collections.singleton("node-1"), node1.getNodes());
+        assertTrue(node1.isLocal("A17U"));
+        assertEquals(1, events.size());
+    }
+}
@@ -0,0 +1,80 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.csdg1t3.ryverbankapi.user.*;
+import com.csdg1t3.ryverbankapi.account.*;
+import com.csdg1t3.ryverbankapi.trade.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class EngineSnapshotterTest {
+    @TempDir
+    Path dir;
+
+    private User buyer = new User((long) 1, "Test User", "S9926201Z", "92307743", "23 Hume Rd", "testUser", "testing", "ROLE_USER", true);
+    private User seller = new User((long) 2, "Other User", "S9926202Z", "92307744", "24 Hume Rd", "otherUser", "testing", "ROLE_USER", true);
+    private Account buyerAcc = new Account((long) 1, buyer, buyer.getId(), 1000.00, 1000.00);
+    private Account sellerAcc = new Account((long) 2, seller, seller.getId(), 1000.00, 1000.00);
+    private Trade buy = new Trade((long) 1, "buy", "A17U", 300, 3.30, null, 0.0, 0, 1, buyerAcc, buyer, "open", true, 990.0);
+    private Trade sell = new Trade((long) 2, "sell", "A17U", 100, null, 3.20, 0.0, 0, 2, sellerAcc, seller, "open", true, 0.0);
+    private Trade other = new Trade((long) 3, "sell", "A17U", 500, null, 3.40, 0.0, 0, 3, sellerAcc, seller, "open", true, 0.0);
+
+    private TradeJournal journal() {
+        return new TradeJournal(true, dir.resolve("journal").resolve("trades.journal").toString(), 1000);
+    }
+
+    // assert that the latest snapshot plus the journal tail rebuilds the same state as a full replay
+    @Test
+    void loadLatest_snapshotAndJournalTail_matchFullReplay() throws Exception {
+        TradeJournal journal = journal();
+        EngineSnapshotter snapshotter = new EngineSnapshotter(journal, dir.resolve("snapshots").toString(), 2);
+        journal.orderAccepted(buy);
+        journal.orderAccepted(sell);
+        snapshotter.snapshot();
+        journal.appendAll(List.of(JournalRecord.fill(buy, sell, 3200, 100)));
+        journal.orderAccepted(other);
+        journal.close();
+
+        TradeJournal reopened = journal();
+        RestingOrders state = snapshotter.loadLatest().get();
+        assertEquals(2, state.getLastSeq());
+        List<JournalRecord> tail = new ArrayList<>();
+        reopened.replayAfter(state.getLastSeq(), tail::add);
+        tail.forEach(state::apply);
+
+        RestingOrders full = new RestingOrders();
+        reopened.replay(full::apply);
+        reopened.close();
+
+        assertEquals(2, tail.size());
+        assertEquals(full.getLastSeq(), state.getLastSeq());
+        assertEquals(full.reservedFunds(), state.reservedFunds());
+        assertEquals(full.reservedAssets(), state.reservedAssets());
+        assertEquals(200, state.getOrders().iterator().next().getRemaining());
+    }
+
+    // assert that a corrupt snapshot is skipped in favour of the previous one
+    @Test
+    void loadLatest_corruptLatestSnapshot_returnPreviousSnapshot() throws Exception {
+        TradeJournal journal = journal();
+        EngineSnapshotter snapshotter = new EngineSnapshotter(journal, dir.resolve("snapshots").toString(), 2);
+        journal.orderAccepted(buy);
+        snapshotter.snapshot();
+        journal.orderAccepted(sell);
+        Path latest = snapshotter.snapshot();
+        journal.close();
+
+        byte[] data = Files.readAllBytes(latest);
+        data[data.length / 2] ^= 0xFF;
+        Files.write(latest, data);
+
+        RestingOrders state = snapshotter.loadLatest().get();
+        assertEquals(1, state.getLastSeq());
+        assertEquals(1, state.getOrders().size());
+    }
+}
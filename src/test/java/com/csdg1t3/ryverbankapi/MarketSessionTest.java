@@ -0,0 +1,75 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.csdg1t3.ryverbankapi.trade.*;
+
+import java.time.*;
+
+import org.junit.jupiter.api.Test;
+
+public class MarketSessionTest {
+    private static final ZoneId ZONE = ZoneId.of("GMT+8");
+
+    private MarketSession sessionAt(String time, String holidays) {
+        return new MarketSession(Clock.fixed(LocalDateTime.parse(time).atZone(ZONE).toInstant(), 
+        ZONE), holidays);
+    }
+
+    // assert that a weekday is pre-open before 9am, open until 5pm, and closed afterwards
+    @Test
+    void stateAt_tradingDay_followSessionHours() {
+        MarketSession session = sessionAt("2020-11-09T10:00:00", "");
+
+        assertTrue(session.isOpen());
+        assertEquals(MarketSession.State.PRE_OPEN, 
+            session.stateAt(LocalDateTime.parse("2020-11-09T08:59:59").atZone(ZONE)));
+        assertEquals(MarketSession.State.OPEN, 
+            session.stateAt(LocalDateTime.parse("2020-11-09T16:59:59").atZone(ZONE)));
+        assertEquals(MarketSession.State.CLOSED, 
+            session.stateAt(LocalDateTime.parse("2020-11-09T17:00:00").atZone(ZONE)));
+    }
+
+    // assert that opening a pre-open session holds until the next refresh recomputes it
+    @Test
+    void open_preOpenSession_openUntilRefresh() {
+        MarketSession session = sessionAt("2020-11-09T08:59:59", "");
+
+        session.open();
+        assertTrue(session.isOpen());
+
+        session.refresh();
+        assertEquals(MarketSession.State.PRE_OPEN, session.getState());
+    }
+
+    // assert that a holiday is not opened ahead of the refresh
+    @Test
+    void open_holiday_notOpen() {
+        MarketSession session = sessionAt("2020-11-13T09:00:00", "2020-11-13");
+
+        session.open();
+        assertEquals(MarketSession.State.HOLIDAY, session.getState());
+    }
+
+    // assert that closing an open session holds until the next refresh recomputes it
+    @Test
+    void close_openSession_closedUntilRefresh() {
+        MarketSession session = sessionAt("2020-11-09T10:00:00", "");
+
+        session.close();
+        assertEquals(MarketSession.State.CLOSED, session.getState());
+
+        session.refresh();
+        assertTrue(session.isOpen());
+    }
+
+    // assert that the market stays shut on weekends and listed holidays
+    @Test
+    void refresh_weekendOrHoliday_notOpen() {
+        assertEquals(MarketSession.State.CLOSED, sessionAt("2020-11-07T10:00:00", "").getState());
+
+        MarketSession holiday = sessionAt("2020-11-13T10:00:00", "2020-11-13, 2020-12-25");
+        assertTrue(holiday.isHoliday());
+    }
+}
@@ -0,0 +1,490 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import com.csdg1t3.ryverbankapi.account.*;
+import com.csdg1t3.ryverbankapi.cluster.*;
+import com.csdg1t3.ryverbankapi.trade.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deterministic harness that feeds a stream of orders through TradeService at full speed and
+ * reports the resulting fills, along with throughput and latency statistics.
+ *
+ * The engine runs against a clock fixed during trading hours, and its repositories are replaced
+ * with in-memory stand-ins, so that only matching is measured: trades are kept in a map, stocks
+ * are created when first traded, and account, portfolio and transfer writes are discarded. The
+ * order stream is either generated from a seed, or read from a trade journal, e.g. one recorded
+ * over a real trading day.
+ *
+ * The fill log lists the fills of each stock in the order they happened, with stocks sorted by
+ * symbol. As the stocks are independent, the log does not depend on the number of matching
+ * threads, so runs before and after a change to the engine can be compared line by line.
+ *
+ * Usage:
+ * - MatchingSimulation generate [symbols] [orders] [depth] [seed] [threads] [fill log file]
+ * - MatchingSimulation journal [journal file] [threads] [fill log file]
+ */
+public class MatchingSimulation {
+    // Monday 9 November 2020, 10am in Singapore
+    public static final Clock TRADING_HOURS =
+        Clock.fixed(Instant.parse("2020-11-09T02:00:00Z"), ZoneId.of("GMT+8"));
+
+    private static final List<String> VALID_STATUSES = Arrays.asList("open", "partial-filled");
+    private static final long BALANCE = Long.MAX_VALUE / 4;
+
+    /**
+     * A single event of the order stream
+     */
+    public static class Order {
+        public enum Kind { NEW, CANCEL, AMEND, EXPIRE_ALL }
+
+        private final Kind kind;
+        private final long id;
+        private final String symbol;
+        private final String action;
+        private final long price;
+        private final int quantity;
+        private final long customerId;
+        private final long accountId;
+        private final long amtReserved;
+
+        private Order(Kind kind, long id, String symbol, String action, long price, int quantity,
+        long customerId, long accountId, long amtReserved) {
+            this.kind = kind;
+            this.id = id;
+            this.symbol = symbol;
+            this.action = action;
+            this.price = price;
+            this.quantity = quantity;
+            this.customerId = customerId;
+            this.accountId = accountId;
+            this.amtReserved = amtReserved;
+        }
+
+        /**
+         * Creates a new limit or market order
+         *
+         * @param price The limit price in ticks, or 0 for a market order
+         * @param amtReserved The funds reserved by a buy order, in cents
+         */
+        public static Order place(long id, String symbol, String action, long price, int quantity,
+        long customerId, long accountId, long amtReserved) {
+            return new Order(Kind.NEW, id, symbol, action, price, quantity, customerId, accountId,
+            amtReserved);
+        }
+
+        public static Order cancel(long id, String symbol) {
+            return new Order(Kind.CANCEL, id, symbol, null, 0, 0, 0, 0, 0);
+        }
+
+        public static Order amend(long id, String symbol, long price, int quantity) {
+            return new Order(Kind.AMEND, id, symbol, null, price, quantity, 0, 0, 0);
+        }
+
+        public static Order expireAll() {
+            return new Order(Kind.EXPIRE_ALL, 0, "", null, 0, 0, 0, 0, 0);
+        }
+
+        public Kind getKind() { return kind; }
+
+        public long getId() { return id; }
+
+        public String getSymbol() { return symbol; }
+    }
+
+    /**
+     * The outcome of a simulation run
+     */
+    public static class Result {
+        private final List<String> fills;
+        private final int orders;
+        private final int rejected;
+        private final long elapsedNanos;
+        private final long[] latencies;
+
+        private Result(List<String> fills, int orders, int rejected, long elapsedNanos,
+        long[] latencies) {
+            this.fills = fills;
+            this.orders = orders;
+            this.rejected = rejected;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            Arrays.sort(this.latencies);
+        }
+
+        public List<String> getFills() { return fills; }
+
+        public int getOrders() { return orders; }
+
+        public int getRejected() { return rejected; }
+
+        public double getOrdersPerSecond() { return orders * 1e9 / Math.max(1, elapsedNanos); }
+
+        /**
+         * Retrieves a percentile of the time taken to process an order, from the moment it was
+         * handed to the engine
+         *
+         * @param percentile The percentile, between 0 and 100
+         * @return The latency in microseconds
+         */
+        public double getLatencyMicros(double percentile) {
+            if (latencies.length == 0)
+                return 0;
+            int idx = (int)Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(idx, latencies.length - 1))] / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d orders (%d rejected), %d fills in %.1f ms: %.0f orders/s, "
+                + "latency p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us",
+                orders, rejected, fills.size(), elapsedNanos / 1e6, getOrdersPerSecond(),
+                getLatencyMicros(50), getLatencyMicros(99), getLatencyMicros(99.9),
+                getLatencyMicros(100));
+        }
+    }
+
+    /**
+     * An order stream read from a trade journal, with the fills that were recorded alongside it
+     */
+    public static class Recording {
+        private final List<Order> orders;
+        private final List<String> fills;
+
+        private Recording(List<Order> orders, List<String> fills) {
+            this.orders = orders;
+            this.fills = fills;
+        }
+
+        public List<Order> getOrders() { return orders; }
+
+        public List<String> getFills() { return fills; }
+    }
+
+    /**
+     * Generates a reproducible order stream. Each stock's book is first seeded with a resting
+     * order at each of the given number of price levels on either side of a reference price,
+     * followed by random limit and market orders, cancels and amends across all stocks.
+     *
+     * @param symbols The number of stocks
+     * @param orders The number of orders after the books are seeded
+     * @param depth The number of price levels seeded on each side of every book
+     * @param seed The seed of the random generator
+     * @return The order stream
+     */
+    public static List<Order> generate(int symbols, int orders, int depth, long seed) {
+        Random random = new Random(seed);
+        List<Order> stream = new ArrayList<>();
+        String[] names = new String[symbols];
+        long[] refs = new long[symbols];
+        long id = 1;
+
+        for (int s = 0; s < symbols; s++) {
+            names[s] = String.format("SIM%04d", s);
+            refs[s] = 1000 + random.nextInt(20000);
+            for (int level = 1; level <= depth; level++) {
+                long bid = Math.max(1, refs[s] - level * 10);
+                stream.add(Order.place(id++, names[s], "buy", bid, 1000, 1, 1,
+                Price.valueInCents(bid, 1000)));
+                stream.add(Order.place(id++, names[s], "sell", refs[s] + level * 10, 1000, 1, 1, 0));
+            }
+        }
+
+        List<Order> placed = new ArrayList<>();
+        for (int i = 0; i < orders; i++) {
+            int s = random.nextInt(symbols);
+            int roll = random.nextInt(100);
+            if (roll < 5 && !placed.isEmpty()) {
+                Order target = placed.get(random.nextInt(placed.size()));
+                stream.add(Order.cancel(target.getId(), target.getSymbol()));
+                continue;
+            }
+            if (roll < 10 && !placed.isEmpty()) {
+                Order target = placed.get(random.nextInt(placed.size()));
+                if (target.price > 0) {
+                    stream.add(Order.amend(target.getId(), target.getSymbol(),
+                    Math.max(1, target.price + (random.nextInt(5) - 2) * 10), target.quantity));
+                    continue;
+                }
+            }
+
+            String action = random.nextBoolean() ? "buy" : "sell";
+            long price = random.nextInt(10) == 0 ? 0
+                : Math.max(1, refs[s] + (random.nextInt(2 * depth + 1) - depth) * 10);
+            int quantity = 100 * (1 + random.nextInt(10));
+            long customer = 2 + random.nextInt(100);
+            long reserved = action.equals("sell") ? 0
+                : Price.valueInCents(price == 0 ? refs[s] * 2 : price, quantity);
+            Order order = Order.place(id++, names[s], action, price, quantity, customer, customer,
+            reserved);
+            stream.add(order);
+            placed.add(order);
+        }
+        return stream;
+    }
+
+    /**
+     * Reads the order stream and the recorded fills of a trade journal, including its archived
+     * files. The journal is copied before it is read, so that the recording is left untouched.
+     *
+     * @param file The journal file
+     * @return The recorded order stream and fills
+     * @throws IOException If the journal cannot be copied
+     */
+    public static Recording fromJournal(Path file) throws IOException {
+        Path dir = Files.createTempDirectory("simulation");
+        String name = file.getFileName().toString();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(file.getParent(), name + "*")) {
+            for (Path source : files)
+                Files.copy(source, dir.resolve(source.getFileName()));
+        }
+
+        List<Order> orders = new ArrayList<>();
+        List<String> fills = new ArrayList<>();
+        Map<Long, String> symbolOf = new HashMap<>();
+        TradeJournal journal = new TradeJournal(true, dir.resolve(name).toString(), 1000);
+        journal.replay(record -> {
+            switch (record.getType()) {
+                case JournalRecord.ACCEPTED:
+                    symbolOf.put(record.getOrderId(), record.getSymbol());
+                    orders.add(Order.place(record.getOrderId(), record.getSymbol(),
+                    record.getAction(), record.getPrice(), record.getQuantity(),
+                    record.getCustomerId(), record.getAccountId(), record.getAmtReserved()));
+                    break;
+                case JournalRecord.FILL:
+                    fills.add(fillLine(record.getSymbol(), record.getBuyId(), record.getSellId(),
+                    record.getPrice(), record.getQuantity()));
+                    break;
+                case JournalRecord.AMEND:
+                    orders.add(Order.amend(record.getOrderId(), symbolOf.get(record.getOrderId()),
+                    record.getPrice(), record.getQuantity()));
+                    break;
+                case JournalRecord.EXPIRE_ALL:
+                    orders.add(Order.expireAll());
+                    break;
+                default:
+                    orders.add(Order.cancel(record.getOrderId(), symbolOf.get(record.getOrderId())));
+            }
+        });
+        journal.close();
+        return new Recording(orders, sortBySymbol(fills));
+    }
+
+    /**
+     * Runs an order stream through a new matching engine
+     *
+     * @param orders The order stream
+     * @param threads The number of matching threads
+     * @return The fills and statistics of the run
+     */
+    public static Result run(List<Order> orders, int threads) {
+        return run(orders, threads, null);
+    }
+
+    /**
+     * Runs an order stream through a new matching engine, recording the run in a trade journal
+     *
+     * @param orders The order stream
+     * @param threads The number of matching threads
+     * @param journalPath The journal file to record the run in, or null to not record it
+     * @return The fills and statistics of the run
+     */
+    public static Result run(List<Order> orders, int threads, Path journalPath) {
+        Map<Long, Trade> trades = new ConcurrentHashMap<>();
+        Map<Long, Account> accounts = new ConcurrentHashMap<>();
+        Map<String, Stock> stocks = new ConcurrentHashMap<>();
+        Map<String, List<String>> fills = new ConcurrentHashMap<>();
+
+        TradeRepository tradeRepo = tradeRepository(trades);
+        StockRepository stockRepo = mock(StockRepository.class, withSettings().stubOnly());
+        when(stockRepo.findBySymbol(any())).thenAnswer(invocation -> Optional.of(
+            stocks.computeIfAbsent(invocation.getArgument(0),
+            symbol -> new Stock(symbol, 1.0, 0, 1.0, 0, 1.0))));
+        AssetRepository assetRepo = mock(AssetRepository.class, withSettings().stubOnly());
+        when(assetRepo.findByPortfolioCustomerIdAndCode(any(), any())).thenAnswer(invocation ->
+            Optional.of(new Asset(null, invocation.getArgument(1), null, Integer.MAX_VALUE / 2,
+            Integer.MAX_VALUE / 2, 0.0, 0)));
+
+        TradeJournal journal = new TradeJournal(journalPath != null,
+        journalPath == null ? null : journalPath.toString(), 1000) {
+            @Override
+            public synchronized void appendAll(Collection<JournalRecord> records) {
+                super.appendAll(records);
+                for (JournalRecord record : records) {
+                    if (record.getType() != JournalRecord.FILL)
+                        continue;
+                    fills.computeIfAbsent(record.getSymbol(), symbol -> new ArrayList<>())
+                        .add(fillLine(record.getSymbol(), record.getBuyId(), record.getSellId(),
+                        record.getPrice(), record.getQuantity()));
+                }
+            }
+        };
+        MatchingEngine engine = new MatchingEngine(null, threads, 1024);
+        MarketSession session = new MarketSession(TRADING_HOURS, "");
+        TradeService tradeSvc = new TradeService(tradeRepo,
+            mock(AccountRepository.class, withSettings().stubOnly()),
+            mock(TransferRepository.class, withSettings().stubOnly()),
+            mock(PortfolioRepository.class, withSettings().stubOnly()), assetRepo, stockRepo,
+            new OrderBookManager(tradeRepo), engine, journal, session,
+            mock(RiskCache.class, withSettings().stubOnly()),
+            new PriceBands(stockRepo, session, 0, 0, 0),
+            new ClusterMembership(null, false, "simulation", "", "", 0, 0),
+            mock(StandbyFollower.class, withSettings().stubOnly()));
+
+        long[] latencies = new long[orders.size()];
+        List<CompletableFuture<Trade>> pending = new ArrayList<>();
+        int rejected = 0;
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < orders.size(); i++) {
+                Order order = orders.get(i);
+                long sent = System.nanoTime();
+                if (order.getKind() == Order.Kind.NEW) {
+                    Trade trade = newTrade(order, accounts);
+                    trades.put(trade.getId(), trade);
+                    int idx = i;
+                    pending.add(tradeSvc.submitTrade(trade)
+                        .whenComplete((result, e) -> latencies[idx] = System.nanoTime() - sent));
+                    continue;
+                }
+
+                try {
+                    Trade trade = trades.get(order.getId());
+                    if (order.getKind() == Order.Kind.EXPIRE_ALL)
+                        tradeSvc.expireTrades();
+                    else if (trade == null)
+                        rejected++;
+                    else if (order.getKind() == Order.Kind.CANCEL)
+                        tradeSvc.processCancelTrades(Collections.singletonList(trade));
+                    else
+                        tradeSvc.processAmendTrade(trade, order.quantity, order.price);
+                } catch (TradeNotValidException e) {
+                    rejected++;
+                }
+                latencies[i] = System.nanoTime() - sent;
+            }
+            for (CompletableFuture<Trade> future : pending)
+                future.join();
+        } finally {
+            engine.shutdown();
+            journal.close();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        List<String> log = new ArrayList<>();
+        for (String symbol : new TreeSet<>(fills.keySet()))
+            log.addAll(fills.get(symbol));
+        return new Result(log, orders.size(), rejected, elapsed, latencies);
+    }
+
+    private static Trade newTrade(Order order, Map<Long, Account> accounts) {
+        Trade trade = new Trade();
+        trade.setId(order.getId());
+        trade.setAction(order.action);
+        trade.setSymbol(order.getSymbol());
+        trade.setQuantity(order.quantity);
+        if (order.action.equals("buy"))
+            trade.setBidTicks(order.price);
+        else
+            trade.setAskTicks(order.price);
+        trade.setAvg_price(0);
+        trade.setDate(order.getId());
+        trade.setCustomer_id(order.customerId);
+        trade.setAccount_id(order.accountId);
+        trade.setAccount(accounts.computeIfAbsent(order.accountId,
+            id -> new Account(id, null, order.customerId, Price.fromCents(BALANCE),
+            Price.fromCents(BALANCE))));
+        trade.setStatus("open");
+        trade.setAmtReservedCents(order.amtReserved);
+        return trade;
+    }
+
+    // Backs the trade repository with a map, for the queries made by the matching engine
+    private static TradeRepository tradeRepository(Map<Long, Trade> trades) {
+        TradeRepository tradeRepo = mock(TradeRepository.class, withSettings().stubOnly());
+        when(tradeRepo.findById(any())).thenAnswer(
+            invocation -> Optional.ofNullable(trades.get(invocation.getArgument(0))));
+        when(tradeRepo.findAllById(any())).thenAnswer(invocation -> {
+            List<Trade> found = new ArrayList<>();
+            for (Long id : (Iterable<Long>)invocation.getArgument(0)) {
+                if (trades.containsKey(id))
+                    found.add(trades.get(id));
+            }
+            return found;
+        });
+        when(tradeRepo.findBySymbolAndStatusIn(any(), any())).thenAnswer(invocation -> {
+            List<Trade> found = new ArrayList<>();
+            for (Trade trade : trades.values()) {
+                if (trade.getSymbol().equals(invocation.getArgument(0))
+                    && ((Collection<?>)invocation.getArgument(1)).contains(trade.getStatus()))
+                    found.add(trade);
+            }
+            return found;
+        });
+        when(tradeRepo.expireAll(any(), anyLong())).thenAnswer(invocation -> {
+            int expired = 0;
+            for (Trade trade : trades.values()) {
+                if (trade.getAccount_id() != 0 && VALID_STATUSES.contains(trade.getStatus())) {
+                    trade.setStatus("expired");
+                    expired++;
+                }
+            }
+            return expired;
+        });
+        return tradeRepo;
+    }
+
+    private static String fillLine(String symbol, long buyId, long sellId, long price, int qty) {
+        return symbol + " " + buyId + " " + sellId + " " + price + " " + qty;
+    }
+
+    // Orders fill lines by symbol, keeping the order of the fills of each symbol
+    private static List<String> sortBySymbol(List<String> fills) {
+        List<String> sorted = new ArrayList<>(fills);
+        sorted.sort(Comparator.comparing(line -> line.substring(0, line.indexOf(' '))));
+        return sorted;
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Order> orders;
+        List<String> recorded = null;
+        int next;
+        if (args.length >= 2 && args[0].equals("journal")) {
+            Recording recording = fromJournal(Paths.get(args[1]));
+            orders = recording.getOrders();
+            recorded = recording.getFills();
+            next = 2;
+        } else if (args.length >= 5 && args[0].equals("generate")) {
+            orders = generate(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+            Integer.parseInt(args[3]), Long.parseLong(args[4]));
+            next = 5;
+        } else {
+            System.err.println("Usage: MatchingSimulation generate [symbols] [orders] [depth] "
+                + "[seed] [threads] [fill log file]");
+            System.err.println("       MatchingSimulation journal [journal file] [threads] "
+                + "[fill log file]");
+            return;
+        }
+
+        int threads = args.length > next ? Integer.parseInt(args[next])
+            : Runtime.getRuntime().availableProcessors();
+        Result result = run(orders, threads);
+        System.out.println(result);
+        if (recorded != null) {
+            System.out.println(recorded.equals(result.getFills())
+                ? "Fills match the recording" : "Fills differ from the recording");
+        }
+        if (args.length > next + 1)
+            Files.write(Paths.get(args[next + 1]), result.getFills());
+    }
+}
@@ -0,0 +1,41 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MatchingSimulationTest {
+    @TempDir
+    Path dir;
+
+    // assert that a generated stream produces the same fills however many matching threads run it
+    @Test
+    void run_generatedStream_sameFillsForAnyThreadCount() {
+        List<MatchingSimulation.Order> orders = MatchingSimulation.generate(8, 5000, 10, 42);
+
+        MatchingSimulation.Result single = MatchingSimulation.run(orders, 1);
+        MatchingSimulation.Result sharded = MatchingSimulation.run(orders, 4);
+
+        assertNotEquals(0, single.getFills().size());
+        assertEquals(single.getFills(), sharded.getFills());
+    }
+
+    // assert that replaying a recorded journal reproduces the fills recorded in it
+    @Test
+    void fromJournal_recordedRun_reproduceRecordedFills() throws Exception {
+        Path journal = dir.resolve("trades.journal");
+        MatchingSimulation.Result recorded =
+            MatchingSimulation.run(MatchingSimulation.generate(4, 2000, 5, 7), 2, journal);
+
+        MatchingSimulation.Recording recording = MatchingSimulation.fromJournal(journal);
+        MatchingSimulation.Result replayed = MatchingSimulation.run(recording.getOrders(), 2);
+
+        assertEquals(recorded.getFills(), recording.getFills());
+        assertEquals(recorded.getFills(), replayed.getFills());
+    }
+}
@@ -0,0 +1,212 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.csdg1t3.ryverbankapi.user.*;
+import com.csdg1t3.ryverbankapi.account.*;
+import com.csdg1t3.ryverbankapi.trade.*;
+
+import org.junit.jupiter.api.Test;
+
+public class OrderBookTest {
+    private User user = new User((long) 1, "Test User", "S9926201Z", "92307743", "23 Hume Rd", "testUser", "testing", "ROLE_USER", true);
+    private User otherUser = new User((long) 2, "Other User", "S9926202Z", "92307744", "24 Hume Rd", "otherUser", "testing", "ROLE_USER", true);
+    private Account account = new Account((long) 1, user, user.getId(), 1000.00, 1000.00);
+    private Account otherAccount = new Account((long) 2, otherUser, otherUser.getId(), 1000.00, 1000.00);
+
+    private Trade trade(long id, String action, Double price, long date, Account acc, User cust) {
+        Double bid = action.equals("buy") ? price : null;
+        Double ask = action.equals("sell") ? price : null;
+        return new Trade(id, action, "A17U", 1000, bid, ask, 0.0, 0, date, acc, cust, "open", true, 0.0);
+    }
+
+    // assert that the lowest ask is returned, with earlier trades taking priority at the same price
+    @Test
+    void bestAsk_multipleLevels_returnLowestEarliestAsk() {
+        OrderBook book = new OrderBook("A17U");
+        Trade high = trade(1, "sell", 3.30, 1, account, user);
+        Trade lowLate = trade(2, "sell", 3.25, 3, account, user);
+        Trade lowEarly = trade(3, "sell", 3.25, 2, account, user);
+        book.add(high);
+        book.add(lowEarly);
+        book.add(lowLate);
+
+        assertEquals(3, book.bestAsk());
+        book.remove(lowEarly.getId());
+        assertEquals(2, book.bestAsk());
+        book.remove(lowLate.getId());
+        assertEquals(1, book.bestAsk());
+    }
+
+    // assert that the highest bid is returned
+    @Test
+    void bestBid_multipleLevels_returnHighestBid() {
+        OrderBook book = new OrderBook("A17U");
+        Trade low = trade(1, "buy", 3.10, 1, account, user);
+        Trade high = trade(2, "buy", 3.20, 2, account, user);
+        book.add(low);
+        book.add(high);
+
+        assertEquals(2, book.bestBid());
+    }
+
+    // assert that market orders do not count towards the best bid or ask
+    @Test
+    void bestAsk_onlyMarketOrders_returnNull() {
+        OrderBook book = new OrderBook("A17U");
+        Trade marketSell = trade(1, "sell", 0.0, 1, account, user);
+        book.add(marketSell);
+
+        assertEquals(OrderBook.NONE, book.bestAsk());
+        assertEquals(1, book.getMarketSells().length);
+    }
+
+    // assert that a customer's own trades are skipped
+    @Test
+    void bestAsk_excludedCustomer_returnOtherCustomersAsk() {
+        OrderBook book = new OrderBook("A17U");
+        Trade own = trade(1, "sell", 3.20, 1, account, user);
+        Trade other = trade(2, "sell", 3.25, 2, otherAccount, otherUser);
+        book.add(own);
+        book.add(other);
+
+        assertEquals(2, book.bestAsk(user.getId()));
+    }
+
+    // assert that adding a resting trade again does not move it to the back of its level
+    @Test
+    void add_tradeAlreadyResting_keepPriority() {
+        OrderBook book = new OrderBook("A17U");
+        Trade first = trade(1, "buy", 3.20, 1, account, user);
+        Trade second = trade(2, "buy", 3.20, 2, account, user);
+        book.add(first);
+        book.add(second);
+        book.add(first);
+
+        assertEquals(2, book.size());
+        assertEquals(1, book.bestBid());
+    }
+
+    // assert that partial fills reduce the quantity of the level, and filled orders leave the book
+    @Test
+    void reduce_partialThenFullFill_updateLevelAndRemoveOrder() {
+        OrderBook book = new OrderBook("A17U");
+        book.add(trade(1, "sell", 3.25, 1, account, user));
+        book.add(trade(2, "sell", 3.25, 2, otherAccount, otherUser));
+
+        book.reduce(1, 400);
+        assertEquals(600, book.getRemaining(1));
+        assertEquals(1600, book.getAskLevels().get(3250L));
+
+        book.reduce(1, 600);
+        assertEquals(1, book.size());
+        assertEquals(2, book.bestAsk());
+        assertEquals(1000, book.getAskLevels().get(3250L));
+    }
+
+    // assert that the best level keeps its total quantity and order count through adds, partial
+    // fills and removals
+    @Test
+    void getBestBidLevel_addFillRemove_aggregateQuantityAndCount() {
+        OrderBook book = new OrderBook("A17U");
+        book.add(trade(1, "buy", 3.20, 1, account, user));
+        book.add(trade(2, "buy", 3.20, 2, otherAccount, otherUser));
+        book.add(trade(3, "buy", 3.10, 3, otherAccount, otherUser));
+
+        OrderBook.PriceLevel best = book.getBestBidLevel();
+        assertEquals(3200, best.getPriceTicks());
+        assertEquals(2000, best.getQuantity());
+        assertEquals(2, best.getOrders());
+
+        book.reduce(1, 300);
+        assertEquals(1700, book.getBestBidLevel().getQuantity());
+        assertEquals(2, book.getBestBidLevel().getOrders());
+
+        book.remove(2L);
+        book.reduce(1, 700);
+        best = book.getBestBidLevel();
+        assertEquals(3100, best.getPriceTicks());
+        assertEquals(1000, best.getQuantity());
+        assertEquals(1, best.getOrders());
+        assertEquals(1, book.getBidDepth(5).size());
+        assertNull(book.getBestAskLevel());
+    }
+
+    // assert that slots freed by removed orders are reused without disturbing other orders
+    @Test
+    void add_afterManyRemovals_keepPriorityOfRemainingOrders() {
+        OrderBook book = new OrderBook("A17U");
+        for (long id = 1; id <= 500; id++)
+            book.add(trade(id, "buy", 3.00 + (id % 5) / 100.0, id, account, user));
+        for (long id = 1; id <= 500; id++) {
+            if (id % 3 != 0)
+                book.remove(id);
+        }
+        for (long id = 501; id <= 600; id++)
+            book.add(trade(id, "buy", 3.04, id, account, user));
+
+        assertEquals(266, book.size());
+        assertEquals(9, book.bestBid());
+        assertEquals(3040, book.getPriceTicks(600));
+    }
+
+    // assert that the auction price maximises volume, breaking ties by closeness to the last price
+    @Test
+    void uncross_crossedBook_returnEquilibriumPriceAndVolume() {
+        OrderBook book = new OrderBook("A17U");
+        book.add(trade(1, "buy", 3.30, 1, account, user));
+        book.add(trade(2, "buy", 3.25, 2, account, user));
+        book.add(trade(3, "sell", 3.20, 3, otherAccount, otherUser));
+        book.add(trade(4, "sell", 3.28, 4, otherAccount, otherUser));
+
+        OpeningAuction auction = OpeningAuction.uncross(book, 3260);
+
+        assertEquals(3250, auction.getPriceTicks());
+        assertEquals(1000, auction.getVolume());
+    }
+
+    // assert that a book whose bids are all below its asks does not execute
+    @Test
+    void uncross_uncrossedBook_returnZeroVolume() {
+        OrderBook book = new OrderBook("A17U");
+        book.add(trade(1, "buy", 3.20, 1, account, user));
+        book.add(trade(2, "sell", 3.25, 2, otherAccount, otherUser));
+
+        OpeningAuction auction = OpeningAuction.uncross(book, 3220);
+
+        assertEquals(0, auction.getPriceTicks());
+        assertEquals(0, auction.getVolume());
+    }
+
+    // assert that depth is read from level quantities, and that orders of an excluded customer 
+    // are not counted
+    @Test
+    void askDepth_ownOrdersInRange_excludeOwnQuantity() {
+        OrderBook book = new OrderBook("A17U");
+        book.add(trade(1, "sell", 3.25, 1, account, user));
+        book.add(trade(2, "sell", 3.26, 2, otherAccount, otherUser));
+        book.add(trade(3, "sell", 3.30, 3, otherAccount, otherUser));
+
+        assertEquals(2000, book.askDepth(Price.toTicks(3.26), null, 5000));
+        assertEquals(1500, book.askDepth(Price.toTicks(3.26), null, 1500));
+        assertEquals(1000, book.askDepth(Price.toTicks(3.26), user.getId(), 5000));
+        assertEquals(1500, book.askDepth(Price.toTicks(3.30), user.getId(), 1500));
+
+        book.reduce(1, 600);
+        assertEquals(2400, book.askDepth(Price.toTicks(3.30), null, 5000));
+        assertEquals(2000, book.askDepth(Price.toTicks(3.30), user.getId(), 5000));
+        assertEquals(400, book.askDepth(Price.toTicks(3.25), otherUser.getId(), 5000));
+    }
+
+    // assert that a market buy can only fill what its budget pays for, from the lowest ask up
+    @Test
+    void affordableAskDepth_limitedBudget_stopAtBudget() {
+        OrderBook book = new OrderBook("A17U");
+        book.add(trade(1, "sell", 2.00, 1, otherAccount, otherUser));
+        book.add(trade(2, "sell", 4.00, 2, otherAccount, otherUser));
+
+        assertEquals(1500, book.affordableAskDepth(Price.toCents(4000.00), Long.MAX_VALUE, null, 2000));
+        assertEquals(2000, book.affordableAskDepth(Price.toCents(6000.00), Long.MAX_VALUE, null, 2000));
+    }
+}
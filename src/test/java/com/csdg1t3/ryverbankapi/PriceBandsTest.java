@@ -0,0 +1,93 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.csdg1t3.ryverbankapi.trade.*;
+
+import java.time.*;
+import java.util.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class PriceBandsTest {
+    private static final ZoneId ZONE = ZoneId.of("GMT+8");
+
+    @Mock
+    private StockRepository stockRepo;
+
+    private Stock stock = new Stock("A17U", 3.00, 500, 3.00, 500, 3.00);
+    private PriceBands bands;
+
+    @BeforeEach
+    void setUp() {
+        MarketSession session = new MarketSession(Clock.fixed(
+            LocalDateTime.parse("2020-11-09T10:00:00").atZone(ZONE).toInstant(), ZONE), "");
+        bands = new PriceBands(stockRepo, session, 10, 5, 60000);
+        when(stockRepo.findBySymbol("A17U")).thenReturn(Optional.of(stock));
+    }
+
+    // assert that limit prices are checked against a static band around the reference price
+    @Test
+    void withinStaticBand_priceAroundReference_rejectOutsideBand() {
+        assertTrue(bands.withinStaticBand("A17U", Price.toTicks(3.30)));
+        assertTrue(bands.withinStaticBand("A17U", Price.toTicks(2.70)));
+        assertFalse(bands.withinStaticBand("A17U", Price.toTicks(3.31)));
+        assertFalse(bands.withinStaticBand("A17U", Price.toTicks(30.0)));
+    }
+
+    // assert that the dynamic band follows fills, so prices can move step by step
+    @Test
+    void allowsFill_fillsWithinDynamicBand_moveBand() {
+        assertTrue(bands.allowsFill("A17U", Price.toTicks(3.15)));
+        bands.filled("A17U", Price.toTicks(3.15));
+
+        assertTrue(bands.allowsFill("A17U", Price.toTicks(3.30)));
+        assertFalse(bands.isHalted("A17U"));
+    }
+
+    // assert that a fill breaching the dynamic band halts the stock for the cooldown
+    @Test
+    void allowsFill_fillBreachesDynamicBand_haltTrading() {
+        assertFalse(bands.allowsFill("A17U", Price.toTicks(3.20)));
+        assertTrue(bands.isHalted("A17U"));
+        assertFalse(bands.allowsFill("A17U", Price.toTicks(3.00)));
+    }
+
+    // assert that once a halt ends, the first fill reopens the stock and re-centres the dynamic 
+    // band on its price, so that trading resumes instead of halting again
+    @Test
+    void allowsFill_haltEnded_reopenAndRecentreBand() {
+        MarketSession session = mock(MarketSession.class);
+        PriceBands halting = new PriceBands(stockRepo, session, 10, 5, 60000);
+        when(session.millis()).thenReturn(0L, 0L, 60000L);
+
+        assertFalse(halting.allowsFill("A17U", Price.toTicks(3.20)));
+        assertTrue(halting.isHalted("A17U"));
+
+        assertTrue(halting.allowsFill("A17U", Price.toTicks(3.20)));
+        halting.filled("A17U", Price.toTicks(3.20));
+        assertTrue(halting.allowsFill("A17U", Price.toTicks(3.30)));
+        assertFalse(halting.isHalted("A17U"));
+    }
+
+    // assert that a sweep follows the dynamic band from fill to fill, and stops at the first price
+    // that would breach it, without changing the bands
+    @Test
+    void sweepLimit_sweepOutrunsDynamicBand_stopBeforeBreach() {
+        List<Long> prices = Arrays.asList(Price.toTicks(3.10), Price.toTicks(3.25), 
+            Price.toTicks(3.45), Price.toTicks(3.50));
+
+        assertEquals(Price.toTicks(3.25), bands.sweepLimit("A17U", prices));
+        assertEquals(0, bands.sweepLimit("A17U", Arrays.asList(Price.toTicks(3.20))));
+        assertTrue(bands.allowsFill("A17U", Price.toTicks(3.15)));
+    }
+}
@@ -0,0 +1,65 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.csdg1t3.ryverbankapi.trade.*;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+public class RingBufferTest {
+    // assert that items are consumed in the order they were published
+    @Test
+    void poll_publishedItems_returnInOrder() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        for (int i = 0; i < 10; i++) {
+            buffer.publish(i);
+            assertEquals(i, buffer.poll());
+        }
+        assertNull(buffer.poll());
+    }
+
+    // assert that every item from concurrent producers is consumed exactly once
+    @Test
+    void publish_multipleProducers_consumeAllItems() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(8);
+        int producers = 4;
+        int perProducer = 10000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int offset = p * perProducer;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++)
+                    buffer.publish(offset + i);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        boolean[] seen = new boolean[producers * perProducer];
+        int count = 0;
+        while (count < seen.length) {
+            Integer item = buffer.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(false, seen[item]);
+            seen[item] = true;
+            count++;
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(buffer.poll());
+    }
+
+    // assert that the capacity must be a power of 2
+    @Test
+    void constructor_invalidCapacity_throwIllegalArgumentException() {
+        assertThrows(IllegalArgumentException.class, () -> new RingBuffer<Integer>(3));
+    }
+}
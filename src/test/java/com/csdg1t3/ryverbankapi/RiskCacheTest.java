@@ -0,0 +1,75 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.csdg1t3.ryverbankapi.user.*;
+import com.csdg1t3.ryverbankapi.account.*;
+import com.csdg1t3.ryverbankapi.trade.*;
+
+import java.util.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class RiskCacheTest {
+    @Mock
+    private AccountRepository accountRepo;
+
+    @Mock
+    private AssetRepository assetRepo;
+
+    @Mock
+    private StockRepository stockRepo;
+
+    private RiskCache risk;
+
+    private User user = new User((long) 1, "Test User", "S9926201Z", "92307743", "23 Hume Rd", "testUser", "testing", "ROLE_USER", true);
+    private Account account = new Account((long) 1, user, user.getId(), 1000.00, 1000.00);
+
+    @BeforeEach
+    void setUp() {
+        risk = new RiskCache(accountRepo, assetRepo, stockRepo);
+    }
+
+    // assert that funds are reserved in memory until the available balance runs out
+    @Test
+    void reserveFunds_repeatedReservations_rejectOnceExhausted() {
+        when(accountRepo.findById(account.getId())).thenReturn(Optional.of(account));
+
+        assertTrue(risk.reserveFunds(account.getId(), 60000));
+        assertTrue(risk.reserveFunds(account.getId(), 40000));
+        assertFalse(risk.reserveFunds(account.getId(), 1));
+        verify(accountRepo, times(1)).findById(account.getId());
+    }
+
+    // assert that a balance read again while a reservation is pending does not count it twice
+    @Test
+    void invalidateAccount_reservationPending_keepPendingReservation() {
+        when(accountRepo.findById(account.getId())).thenReturn(Optional.of(account));
+
+        assertTrue(risk.reserveFunds(account.getId(), 60000));
+        risk.invalidateAccount(account.getId());
+        assertFalse(risk.reserveFunds(account.getId(), 60000));
+
+        risk.releaseFunds(account.getId(), 60000);
+        assertTrue(risk.reserveFunds(account.getId(), 60000));
+    }
+
+    // assert that a customer without the stock cannot reserve any of it
+    @Test
+    void holds_noAsset_rejectReservation() {
+        when(assetRepo.findByPortfolioCustomerIdAndCode(user.getId(), "A17U"))
+            .thenReturn(Optional.empty());
+
+        assertFalse(risk.holds(user.getId(), "A17U"));
+        assertFalse(risk.reserveAssets(user.getId(), "A17U", 100));
+    }
+}
@@ -0,0 +1,104 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.csdg1t3.ryverbankapi.user.*;
+import com.csdg1t3.ryverbankapi.account.*;
+import com.csdg1t3.ryverbankapi.trade.*;
+
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class StandbyFollowerTest {
+    @TempDir
+    Path dir;
+
+    private User buyer = new User((long) 1, "Test User", "S9926201Z", "92307743", "23 Hume Rd", "testUser", "testing", "ROLE_USER", true);
+    private User seller = new User((long) 2, "Other User", "S9926202Z", "92307744", "24 Hume Rd", "otherUser", "testing", "ROLE_USER", true);
+    private Account buyerAcc = new Account((long) 1, buyer, buyer.getId(), 1000.00, 1000.00);
+    private Account sellerAcc = new Account((long) 2, seller, seller.getId(), 1000.00, 1000.00);
+    private Trade buy = new Trade((long) 1, "buy", "A17U", 300, 3.30, null, 0.0, 0, 1, buyerAcc, buyer, "open", true, 990.0);
+    private Trade sell = new Trade((long) 2, "sell", "A17U", 100, null, 3.20, 0.0, 0, 2, sellerAcc, seller, "open", true, 0.0);
+    private Trade other = new Trade((long) 3, "sell", "A17U", 500, null, 3.40, 0.0, 0, 3, sellerAcc, seller, "open", true, 0.0);
+
+    // assert that a standby replicates the primary's resting orders, and takes over with them once
+    // the primary stops
+    @Test
+    void follow_primaryStops_takeOverWithReplicatedOrders() throws Exception {
+        int port = freePort();
+        TradeJournal journal = new TradeJournal(true, dir.resolve("trades.journal").toString(), 1000);
+        PrimaryLock primaryLock = new PrimaryLock(dir.resolve("replication.lock").toString());
+        ReplicationServer server = new ReplicationServer(journal,
+            new StandbyFollower(null, primaryLock, "", 0), primaryLock, port, 20);
+        List<Object> events = new CopyOnWriteArrayList<>();
+        StandbyFollower standby = new StandbyFollower(events::add, 
+            new PrimaryLock(dir.resolve("replication.lock").toString()), "localhost:" + port, 300);
+
+        journal.orderAccepted(buy);
+        server.start();
+        standby.start();
+        await().atMost(Duration.ofSeconds(5)).until(() -> standby.getReplicatedSeq() == 1);
+
+        journal.orderAccepted(sell);
+        journal.appendAll(List.of(JournalRecord.fill(buy, sell, 3200, 100)));
+        journal.orderAccepted(other);
+        await().atMost(Duration.ofSeconds(5)).until(() -> standby.getReplicatedSeq() == 4);
+        assertTrue(standby.isStandby());
+
+        server.stop();
+        primaryLock.release();
+        await().atMost(Duration.ofSeconds(5)).until(() -> !events.isEmpty());
+        journal.close();
+
+        assertFalse(standby.isStandby());
+        RestingOrders state = ((StandbyPromotedEvent) events.get(0)).getState();
+        List<Long> ids = new ArrayList<>();
+        for (RestingOrders.RestingOrder order : state.getOrders())
+            ids.add(order.getId());
+        assertEquals(Arrays.asList(1L, 3L), ids);
+        assertEquals(200, state.getOrders().iterator().next().getRemaining());
+    }
+
+    // assert that a standby does not take over from a silent primary that still holds the primary
+    // lock, e.g. one paused by a long garbage collection, until the lock is released
+    @Test
+    void follow_silentPrimaryHoldsLock_takeOverOnlyOnceReleased() throws Exception {
+        int port = freePort();
+        TradeJournal journal = new TradeJournal(true, dir.resolve("trades.journal").toString(), 1000);
+        PrimaryLock primaryLock = new PrimaryLock(dir.resolve("replication.lock").toString());
+        ReplicationServer server = new ReplicationServer(journal,
+            new StandbyFollower(null, primaryLock, "", 0), primaryLock, port, 20);
+        List<Object> events = new CopyOnWriteArrayList<>();
+        StandbyFollower standby = new StandbyFollower(events::add, 
+            new PrimaryLock(dir.resolve("replication.lock").toString()), "localhost:" + port, 300);
+
+        journal.orderAccepted(buy);
+        server.start();
+        standby.start();
+        await().atMost(Duration.ofSeconds(5)).until(() -> standby.getReplicatedSeq() == 1);
+
+        server.stop();
+        await().during(Duration.ofSeconds(1)).atMost(Duration.ofSeconds(2)).until(standby::isStandby);
+        assertTrue(events.isEmpty());
+
+        primaryLock.release();
+        await().atMost(Duration.ofSeconds(5)).until(() -> !events.isEmpty());
+        journal.close();
+        assertFalse(standby.isStandby());
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket free = new ServerSocket(0)) {
+            return free.getLocalPort();
+        }
+    }
+}
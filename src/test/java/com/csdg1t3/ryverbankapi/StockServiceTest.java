@@ -14,6 +14,7 @@ import java.util.*;
 import com.csdg1t3.ryverbankapi.user.*;
 import com.csdg1t3.ryverbankapi.trade.*;
 import com.csdg1t3.ryverbankapi.account.*;
+import com.csdg1t3.ryverbankapi.cluster.*;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -31,6 +32,9 @@ public class StockServiceTest {
 
     @Mock
     private MarketMaker marketMaker;
+
+    @Mock
+    private ClusterMembership cluster;
     
     @InjectMocks
     private StockService stockSvc;
@@ -57,6 +61,7 @@ public class StockServiceTest {
         stocks.add(stock1);
 
         when(stockRepo.findAll()).thenReturn(stocks);
+        when(cluster.isLocal(stock1.getSymbol())).thenReturn(true);
         List<Stock> updatedStocks = new ArrayList<Stock>();
         updatedStocks.add(updatedStock1);
         StockService spy = spy(stockSvc);
@@ -73,6 +78,20 @@ public class StockServiceTest {
         verify(spy).updateStockDetails(stock1);
     }
 
+    // assert that a stock owned by another node of the cluster is not updated from this node's books
+    @Test
+    void getAllUpdatedStocks_stockOwnedByOtherNode_ReturnWithoutUpdating() {
+        List<Stock> stocks = new ArrayList<Stock>();
+        stocks.add(stock2);
+
+        when(stockRepo.findAll()).thenReturn(stocks);
+        when(cluster.isLocal(stock2.getSymbol())).thenReturn(false);
+
+        assertEquals(stocks, stockSvc.getAllUpdatedStocks());
+        verifyNoInteractions(tradeSvc);
+        verify(stockRepo, never()).save(any(Stock.class));
+    }
+
     @Test
     void getUpdatedStock_validStock_ReturnUpdatedStock() {
         Optional<Stock> found = Optional.of(stock1);
@@ -97,41 +116,29 @@ public class StockServiceTest {
         verify(stockRepo).findBySymbol("invalidStock");
     }
 
+    // assert that the stock is updated and saved on its matching thread, not the request thread
     @Test
-    void updateStockDetails_validStock_usesAllMocks() {
-        Long id = Long.valueOf(1);
+    void updateStockDetails_validStock_returnQuoteFromMatchingThread() {
         String symbol = "A17U";
-        User user = new User(id, "Test", "S1234567G", "92307777", "Test Address", "Testing123", "testTest123", "ROLE_USER", true);
-        Account account = new Account(id, user, id, 1000.00, 1000.00);
         Stock stock = new Stock(symbol, 3.23, 500, 3.33, 500, 3.35);
-        Trade buy = new Trade(id, "buy", stock.getSymbol(), 200, 0.0, stock.getAsk(), 3.33, 200, System.currentTimeMillis(), account, user, "open", false, 0.0);
-        Trade sell = new Trade(id, "sell", stock.getSymbol(), 200, 3.34, stock.getAsk(), 0.0, 0, System.currentTimeMillis(), account, user, "open", false, 0.0);
+        Stock quoted = new Stock(symbol, 3.23, 700, 3.33, 200, 3.34);
         
-        when(tradeSvc.getHighestBidTradeForStock(symbol)).thenReturn(buy);
-        when(tradeSvc.getLowestAskTradeForStock(symbol)).thenReturn(sell);
-        when(stockRepo.save(stock)).thenReturn(stock);
+        when(tradeSvc.updateQuote(symbol)).thenReturn(quoted);
 
-        stockSvc.updateStockDetails(stock);
-
-        verify(tradeSvc).getHighestBidTradeForStock(symbol);
-        verify(tradeSvc).getLowestAskTradeForStock(symbol);
-        verify(stockRepo).save(stock);
+        assertEquals(quoted, stockSvc.updateStockDetails(stock));
+        verify(tradeSvc).updateQuote(symbol);
+        verify(stockRepo, never()).save(any(Stock.class));
     }
 
     @Test
-    void updateStockDetails_invalidStock_usesAllMocks() {
+    void updateStockDetails_invalidStock_returnStockAsGiven() {
         String symbol = "inValid";
-         Stock stock = stock1;
-        stock.setSymbol(symbol);
+        Stock stock = new Stock(symbol, 3.23, 20000, 3.19, 20000, 3.24);
         
-        when(tradeSvc.getHighestBidTradeForStock(symbol)).thenReturn(null);
-        when(tradeSvc.getLowestAskTradeForStock(symbol)).thenReturn(null);
-        when(stockRepo.save(stock)).thenReturn(null);
-
-        stockSvc.updateStockDetails(stock);
+        when(tradeSvc.updateQuote(symbol)).thenReturn(null);
 
-        verify(tradeSvc).getHighestBidTradeForStock(symbol);
-        verify(tradeSvc).getLowestAskTradeForStock(symbol);
-        verify(stockRepo).save(stock);
+        assertEquals(stock, stockSvc.updateStockDetails(stock));
+        verify(tradeSvc).updateQuote(symbol);
+        verify(stockRepo, never()).save(any(Stock.class));
     }
 }
@@ -0,0 +1,65 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.csdg1t3.ryverbankapi.user.*;
+import com.csdg1t3.ryverbankapi.account.*;
+import com.csdg1t3.ryverbankapi.trade.*;
+
+import org.junit.jupiter.api.Test;
+
+public class StopBookTest {
+    private User user = new User((long) 1, "Test User", "S9926201Z", "92307743", "23 Hume Rd", "testUser", "testing", "ROLE_USER", true);
+    private Account account = new Account((long) 1, user, user.getId(), 1000.00, 1000.00);
+
+    private Trade stop(long id, String action, double stop) {
+        Trade trade = new Trade(id, action, "A17U", 100, null, null, 0.0, 0, id, account, user, "pending", true, 0.0);
+        trade.setStop(stop);
+        return trade;
+    }
+
+    // assert that a rising price triggers only the buy stops it crosses, nearest stop first
+    @Test
+    void trigger_risingPrice_popCrossedBuyStopsInOrder() {
+        StopBook stops = new StopBook();
+        stops.add(stop(1, "buy", 3.40));
+        stops.add(stop(2, "buy", 3.30));
+        stops.add(stop(3, "buy", 3.30));
+        stops.add(stop(4, "sell", 3.20));
+
+        assertEquals(3, stops.trigger(Price.toTicks(3.40)));
+        assertEquals(2, stops.nextTriggered());
+        assertEquals(3, stops.nextTriggered());
+        assertEquals(1, stops.nextTriggered());
+        assertEquals(OrderBook.NONE, stops.nextTriggered());
+        assertEquals(1, stops.size());
+    }
+
+    // assert that a falling price triggers sell stops from the highest stop down
+    @Test
+    void trigger_fallingPrice_popCrossedSellStopsInOrder() {
+        StopBook stops = new StopBook();
+        stops.add(stop(1, "sell", 3.10));
+        stops.add(stop(2, "sell", 3.20));
+        stops.add(stop(3, "sell", 3.00));
+
+        assertEquals(2, stops.trigger(Price.toTicks(3.10)));
+        assertEquals(2, stops.nextTriggered());
+        assertEquals(1, stops.nextTriggered());
+        assertTrue(stops.contains((long) 3));
+    }
+
+    // assert that a removed stop is never triggered
+    @Test
+    void remove_pendingStop_notTriggered() {
+        StopBook stops = new StopBook();
+        stops.add(stop(1, "buy", 3.30));
+
+        assertTrue(stops.remove((long) 1));
+        assertFalse(stops.remove((long) 1));
+        assertEquals(0, stops.trigger(Price.toTicks(5.00)));
+        assertEquals(OrderBook.NONE, stops.nextTriggered());
+    }
+}
@@ -0,0 +1,58 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.*;
+
+import com.csdg1t3.ryverbankapi.trade.*;
+
+import org.junit.jupiter.api.Test;
+
+public class TimingWheelTest {
+    // assert that IDs fire in deadline order, including those placed in higher levels
+    @Test
+    void advance_deadlinesAcrossLevels_fireInDeadlineOrder() {
+        TimingWheel wheel = new TimingWheel(1000, 0);
+        wheel.schedule(1, 5_000_000);
+        wheel.schedule(2, 30_000);
+        wheel.schedule(3, 90_000);
+        wheel.schedule(4, 3_000);
+        List<Long> fired = new ArrayList<>();
+
+        wheel.advance(60_000, fired::add);
+        assertEquals(Arrays.asList(4L, 2L), fired);
+
+        wheel.advance(10_000_000, fired::add);
+        assertEquals(Arrays.asList(4L, 2L, 3L, 1L), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    // assert that no ID fires before its deadline, as deadlines are rounded up to the next tick
+    @Test
+    void advance_beforeDeadline_notFired() {
+        TimingWheel wheel = new TimingWheel(1000, 0);
+        wheel.schedule(1, 4_096_500);
+        List<Long> fired = new ArrayList<>();
+
+        wheel.advance(4_096_000, fired::add);
+        assertTrue(fired.isEmpty());
+        wheel.advance(4_097_000, fired::add);
+        assertEquals(Arrays.asList(1L), fired);
+    }
+
+    // assert that cancelled IDs never fire, and that overdue IDs fire on the next advance
+    @Test
+    void advance_cancelledAndOverdue_skipCancelledFireOverdue() {
+        TimingWheel wheel = new TimingWheel(1000, 10_000);
+        wheel.schedule(1, 20_000);
+        wheel.schedule(2, 5_000);
+        wheel.cancel((long) 1);
+        List<Long> fired = new ArrayList<>();
+
+        wheel.advance(10_000, fired::add);
+        wheel.advance(30_000, fired::add);
+
+        assertEquals(Arrays.asList(2L), fired);
+    }
+}
@@ -3,6 +3,8 @@ package com.csdg1t3.ryverbankapi;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -12,6 +14,7 @@ import com.csdg1t3.ryverbankapi.trade.*;
 import com.csdg1t3.ryverbankapi.security.UserAuthenticator;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -35,7 +38,10 @@ public class TradeControllerTest {
     private AccountRepository accountRepo;
 
     @Mock
-    private AssetRepository assetRepo;
+    private RiskCache risk;
+
+    @Mock
+    private PriceBands bands;
 
     @Mock
     private UserAuthenticator uAuth;
@@ -98,29 +104,110 @@ public class TradeControllerTest {
     void createTrade_validBuyTrade_returnTrades(){
         Long accId = buy.getAccount_id();
 
-        when(uAuth.idMatchesAuthenticatedUser(buy.getCustomer_id())).thenReturn(true);
-        when(accountRepo.existsById(accId)).thenReturn(true);
-        when(accountRepo.findById(accId)).thenReturn(Optional.of(account));
+        when(risk.account(accId)).thenReturn(account);
         when(uAuth.getAuthenticatedUser()).thenReturn(user);
-        when(stockRepo.existsBySymbol(buy.getSymbol())).thenReturn(true);
+        when(risk.isListed(buy.getSymbol())).thenReturn(true);
+        when(bands.withinStaticBand(buy.getSymbol(), 3340L)).thenReturn(true);
+        when(risk.reserveFunds(accId, 66800L)).thenReturn(true);
         when(tradeRepo.save(any(Trade.class))).thenReturn(buy);
         when(tradeSvc.makeTrade(any(Trade.class))).thenReturn(buy);
 
         Trade returned = tradeController.createTrade(buy);
         assertEquals(returned, buy);
-        verify(uAuth).idMatchesAuthenticatedUser(buy.getCustomer_id());
-        verify(accountRepo).existsById(accId);
-        verify(accountRepo).findById(accId);
+        assertEquals(true, buy.isReservationPending());
+        verify(risk).account(accId);
         verify(uAuth).getAuthenticatedUser();
-        verify(stockRepo).existsBySymbol(buy.getSymbol());
+        verify(risk).isListed(buy.getSymbol());
+        verify(risk).reserveFunds(accId, 66800L);
+        verify(accountRepo, never()).save(any(Account.class));
     }
    
+    //assert that an asynchronous trade is queued for matching and returned as accepted
+    @Test
+    void createTradeAsync_validBuyTrade_submitTrade(){
+        Long accId = buy.getAccount_id();
+
+        when(risk.account(accId)).thenReturn(account);
+        when(uAuth.getAuthenticatedUser()).thenReturn(user);
+        when(risk.isListed(buy.getSymbol())).thenReturn(true);
+        when(bands.withinStaticBand(buy.getSymbol(), 3340L)).thenReturn(true);
+        when(risk.reserveFunds(accId, 66800L)).thenReturn(true);
+        when(tradeRepo.save(any(Trade.class))).thenReturn(buy);
+
+        Trade returned = tradeController.createTradeAsync(buy);
+        assertEquals(buy.getId(), returned.getId());
+        assertEquals("open", returned.getStatus());
+        verify(tradeSvc).submitTrade(buy);
+        verify(tradeSvc, never()).makeTrade(any(Trade.class));
+    }
+
+    //assert that a batch reserves funds across its trades, rejecting those that cannot be afforded
+    @Test
+    void createTrades_insufficientFundsForSecondTrade_rejectSecondTrade(){
+        Trade second = new Trade(Long.valueOf(3), "buy", stock.getSymbol(), 200, 3.34, null, 0.0, 0, System.currentTimeMillis(), account, user, "open", false, 0.0);
+        List<Trade> batch = Arrays.asList(buy, second);
+
+        when(uAuth.getAuthenticatedUser()).thenReturn(user);
+        when(risk.account(account.getId())).thenReturn(account);
+        when(risk.isListed(stock.getSymbol())).thenReturn(true);
+        when(bands.withinStaticBand(stock.getSymbol(), 3340L)).thenReturn(true);
+        when(risk.reserveFunds(account.getId(), 66800L)).thenReturn(true, false);
+        when(tradeRepo.saveAll(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(tradeSvc.submitTrades(any())).thenAnswer(invocation -> completed(invocation.getArgument(0)));
+
+        List<TradeBatchResult> results = tradeController.createTrades(batch);
+        assertEquals(2, results.size());
+        assertEquals(buy, results.get(0).getTrade());
+        assertEquals("Insufficient funds for trade", results.get(1).getError());
+        verify(accountRepo, never()).saveAll(any());
+        verify(tradeSvc).submitTrades(Arrays.asList(buy));
+    }
+
+    //assert that trades of a stock that cannot be processed are rejected without failing the batch
+    @Test
+    void createTrades_processingFailsForOneStock_rejectTradesOfThatStock(){
+        Trade other = new Trade(Long.valueOf(3), "buy", "C61U", 100, 2.00, null, 0.0, 0, System.currentTimeMillis(), account, user, "open", false, 0.0);
+        List<Trade> batch = Arrays.asList(buy, other);
+        CompletableFuture<Trade> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("Database unavailable"));
+
+        when(uAuth.getAuthenticatedUser()).thenReturn(user);
+        when(risk.account(account.getId())).thenReturn(account);
+        when(risk.isListed(any(String.class))).thenReturn(true);
+        when(bands.withinStaticBand(any(String.class), anyLong())).thenReturn(true);
+        when(risk.reserveFunds(any(Long.class), anyLong())).thenReturn(true);
+        when(tradeRepo.saveAll(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(tradeSvc.submitTrades(any())).thenReturn(
+            Arrays.asList(CompletableFuture.completedFuture(buy), failed));
+
+        List<TradeBatchResult> results = tradeController.createTrades(batch);
+        assertEquals(buy, results.get(0).getTrade());
+        assertEquals(false, results.get(1).isAccepted());
+        assertEquals("Trade could not be processed", results.get(1).getError());
+    }
+
+    //assert that a limit trade priced outside the static price band is rejected
+    @Test
+    void createTrade_priceOutsideBand_throwTradeNotValidException(){
+        Long accId = buy.getAccount_id();
+
+        when(risk.account(accId)).thenReturn(account);
+        when(uAuth.getAuthenticatedUser()).thenReturn(user);
+        when(risk.isListed(buy.getSymbol())).thenReturn(true);
+        when(bands.withinStaticBand(buy.getSymbol(), 3340L)).thenReturn(false);
+
+        assertThrows(TradeNotValidException.class, () -> tradeController.createTrade(buy), "Price is outside the price band of A17U");
+        verify(risk, never()).reserveFunds(any(Long.class), anyLong());
+        verify(tradeRepo, never()).save(any(Trade.class));
+    }
+
    //assert that exception is thrown if customer id don't match user id
    @Test
    void createTrade_notOwner_ThrowTradeNotValidException(){
-       when(uAuth.idMatchesAuthenticatedUser(any(Long.class))).thenReturn(false);
+       User other = new User((long) 2, "Other User", "S8812345A", "91234567", "1 Other Rd", "otherUser", "testing", "ROLE_USER", true);
+       when(uAuth.getAuthenticatedUser()).thenReturn(other);
        assertThrows(TradeNotValidException.class, () -> tradeController.createTrade(buy), "You cannot post a trade for another user");
-       verify(uAuth).idMatchesAuthenticatedUser(buy.getId());
+       verify(risk, never()).account(any(Long.class));
    }
 
     //assert that trade is cancelled
@@ -134,6 +221,7 @@ public class TradeControllerTest {
         when(tradeRepo.existsById(any(Long.class))).thenReturn(true);
         when(tradeRepo.findById(any(Long.class))).thenReturn(Optional.of(buy));
         when(uAuth.idMatchesAuthenticatedUser(any(Long.class))).thenReturn(true);
+        when(tradeSvc.processCancelTrade(buy)).thenReturn(buy);
 
         Trade cancelledTrade = tradeController.cancelTrade(tradeId, tradeDetails); 
         assertEquals(buy, cancelledTrade);
@@ -142,6 +230,23 @@ public class TradeControllerTest {
         verify(tradeRepo).findById(tradeId);
    }
    
+    // assert that a partially filled trade can be cancelled
+    @Test
+    void cancelTrade_partialFilledTrade_returnCancelledTrade(){ 
+        buy.setStatus("partial-filled");
+        Long tradeId = buy.getId();
+        Trade tradeDetails = new Trade(Long.valueOf(2), "buy", buy.getSymbol(), buy.getQuantity(), buy.getBid(), 0.0, 0.0, 0, System.currentTimeMillis(), account, user, "cancelled", false, 0.0);
+
+        when(tradeRepo.existsById(any(Long.class))).thenReturn(true);
+        when(tradeRepo.findById(any(Long.class))).thenReturn(Optional.of(buy));
+        when(uAuth.idMatchesAuthenticatedUser(any(Long.class))).thenReturn(true);
+        when(tradeSvc.processCancelTrade(buy)).thenReturn(buy);
+
+        Trade cancelledTrade = tradeController.cancelTrade(tradeId, tradeDetails); 
+        assertEquals(buy, cancelledTrade);
+        verify(tradeSvc).processCancelTrade(buy);
+    }
+
     // assert that exception is thrown if trade is not valid
     // i.e. trade is not marked as "open"
     @Test 
@@ -199,4 +304,11 @@ public class TradeControllerTest {
    
 
 
+
+    private static List<CompletableFuture<Trade>> completed(List<Trade> trades) {
+        List<CompletableFuture<Trade>> futures = new ArrayList<>();
+        for (Trade trade : trades)
+            futures.add(CompletableFuture.completedFuture(trade));
+        return futures;
+    }
 }
@@ -0,0 +1,114 @@
+package com.csdg1t3.ryverbankapi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.csdg1t3.ryverbankapi.user.*;
+import com.csdg1t3.ryverbankapi.account.*;
+import com.csdg1t3.ryverbankapi.trade.*;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TradeJournalTest {
+    @TempDir
+    Path dir;
+
+    private User buyer = new User((long) 1, "Test User", "S9926201Z", "92307743", "23 Hume Rd", "testUser", "testing", "ROLE_USER", true);
+    private User seller = new User((long) 2, "Other User", "S9926202Z", "92307744", "24 Hume Rd", "otherUser", "testing", "ROLE_USER", true);
+    private Account buyerAcc = new Account((long) 1, buyer, buyer.getId(), 1000.00, 1000.00);
+    private Account sellerAcc = new Account((long) 2, seller, seller.getId(), 1000.00, 1000.00);
+    private Trade buy = new Trade((long) 1, "buy", "A17U", 300, 3.30, null, 0.0, 0, 1, buyerAcc, buyer, "open", true, 990.0);
+    private Trade sell = new Trade((long) 2, "sell", "A17U", 100, null, 3.20, 0.0, 0, 2, sellerAcc, seller, "open", true, 0.0);
+    private Trade other = new Trade((long) 3, "sell", "A17U", 500, null, 3.40, 0.0, 0, 3, sellerAcc, seller, "open", true, 0.0);
+
+    private String path() {
+        return dir.resolve("trades.journal").toString();
+    }
+
+    // assert that records are replayed in order with their sequence numbers
+    @Test
+    void replay_appendedRecords_returnRecordsInOrder() {
+        TradeJournal journal = new TradeJournal(true, path(), 1000);
+        journal.orderAccepted(buy);
+        journal.orderAccepted(sell);
+        journal.appendAll(List.of(JournalRecord.fill(buy, sell, 3200, 100)));
+
+        List<JournalRecord> records = new ArrayList<>();
+        journal.replay(records::add);
+        journal.close();
+
+        assertEquals(3, records.size());
+        assertEquals(JournalRecord.ACCEPTED, records.get(0).getType());
+        assertEquals(1, records.get(0).getOrderId());
+        assertEquals(JournalRecord.FILL, records.get(2).getType());
+        assertEquals(3, records.get(2).getSeq());
+        assertEquals(100, records.get(2).getQuantity());
+    }
+
+    // assert that a reopened journal continues after its last record
+    @Test
+    void constructor_existingJournal_continueSequence() {
+        TradeJournal journal = new TradeJournal(true, path(), 1000);
+        journal.orderAccepted(buy);
+        journal.appendAll(List.of(JournalRecord.closed(JournalRecord.CANCEL, buy)));
+        journal.close();
+
+        TradeJournal reopened = new TradeJournal(true, path(), 1000);
+        reopened.orderAccepted(sell);
+        List<JournalRecord> records = new ArrayList<>();
+        reopened.replay(records::add);
+        reopened.close();
+
+        assertEquals(3, records.size());
+        assertEquals(3, records.get(2).getSeq());
+        assertEquals(JournalRecord.CANCEL, records.get(1).getType());
+    }
+
+    // assert that replaying the journal rebuilds resting orders and their reservations
+    @Test
+    void apply_journalRecords_rebuildRestingOrders() {
+        TradeJournal journal = new TradeJournal(true, path(), 1000);
+        journal.orderAccepted(buy);
+        journal.orderAccepted(sell);
+        journal.orderAccepted(other);
+        journal.appendAll(List.of(JournalRecord.fill(buy, sell, 3200, 100)));
+        journal.appendAll(List.of(JournalRecord.closed(JournalRecord.EXPIRE, other)));
+
+        RestingOrders state = new RestingOrders();
+        journal.replay(state::apply);
+        journal.close();
+
+        assertEquals(1, state.getOrders().size());
+        RestingOrders.RestingOrder resting = state.getOrders().iterator().next();
+        assertEquals(1, resting.getId());
+        assertEquals(200, resting.getRemaining());
+        assertEquals(67000, state.reservedFunds().get(buyerAcc.getId()));
+        assertEquals(5, state.getLastSeq());
+    }
+
+    // assert that replaying an amendment updates the order and moves it behind later orders
+    @Test
+    void apply_amendRecord_updateOrderAndRequeue() {
+        Trade otherBuy = new Trade((long) 4, "buy", "A17U", 100, 3.30, null, 0.0, 0, 4, sellerAcc, seller, "open", true, 330.0);
+        TradeJournal journal = new TradeJournal(true, path(), 1000);
+        journal.orderAccepted(buy);
+        journal.orderAccepted(otherBuy);
+        buy.setBid(3.40);
+        buy.setQuantity(200);
+        journal.appendAll(List.of(JournalRecord.amend(buy, -31000, true)));
+
+        RestingOrders state = new RestingOrders();
+        journal.replay(state::apply);
+        journal.close();
+
+        List<RestingOrders.RestingOrder> orders = new ArrayList<>(state.getOrders());
+        assertEquals(4, orders.get(0).getId());
+        assertEquals(1, orders.get(1).getId());
+        assertEquals(3400, orders.get(1).getPrice());
+        assertEquals(200, orders.get(1).getRemaining());
+        assertEquals(68000, orders.get(1).getReserved());
+    }
+}
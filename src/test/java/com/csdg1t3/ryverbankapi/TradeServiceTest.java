@@ -3,6 +3,7 @@ package com.csdg1t3.ryverbankapi;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -10,12 +11,19 @@ import com.csdg1t3.ryverbankapi.user.*;
 import com.csdg1t3.ryverbankapi.security.*;
 import com.csdg1t3.ryverbankapi.trade.*;
 import com.csdg1t3.ryverbankapi.account.*;
+import com.csdg1t3.ryverbankapi.cluster.*;
 
+import java.nio.file.Path;
 import java.security.Timestamp;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.util.*;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.*;
@@ -42,10 +50,20 @@ public class TradeServiceTest {
     @Mock
     private StockRepository stockRepo;
 
+    @Mock
+    private RiskCache risk;
+
+    @Mock
+    private PriceBands bands;
+
+    @Mock
+    private StandbyFollower standby;
+
     @Mock
     private Calendar calendar;
 
-    @InjectMocks
+    private OrderBookManager orderBooks;
+
     private TradeService tradeSvc;
 
     private final User customer = new User((long) 1,"cspotatoes","S1234567G", "93223235", "Potato island", "potato","$2a$10$1/dOPkY80t.wyXV3p1MR0OhEJOnkljtU2AGkalTv1E3MZtJUqmmLO","ROLE_USER", true );
@@ -54,6 +72,9 @@ public class TradeServiceTest {
     private final long CUST_ID = (long) 1;
 
     private static final List<String> VALID_STATUSES = Arrays.asList("open", "partial-filled");
+    private static final List<String> OPEN_STATUSES = 
+        Arrays.asList("open", "partial-filled", "pending");
+    private static final long NOW = Instant.parse("2020-11-09T02:00:00Z").toEpochMilli();
 
     private Account account = new Account((long) 1, customer, customer.getId(), 1000.00, 1000.00);
     private Account tonyAccount = new Account(Long.valueOf(2), newCustomer, newCustomer.getId(), 100000.0, 100000.0);
@@ -63,6 +84,22 @@ public class TradeServiceTest {
     private List<Asset> assets = new ArrayList<>();
     private Portfolio portfolio = new Portfolio(Long.valueOf(1), CUST_ID, customer, assets, 0.0, 0.0);
     private Asset asset = new Asset(Long.valueOf(1), sell.getSymbol(), portfolio, 200, 200, 3.33, 666);
+
+    @BeforeEach
+    void setUp() {
+        orderBooks = new OrderBookManager(tradeRepo);
+        tradeSvc = new TradeService(tradeRepo, accountRepo, transferRepo, portfolioRepo, assetRepo, 
+        stockRepo, orderBooks, new MatchingEngine(null, 1, 16), new TradeJournal(false, null, 0), 
+        new MarketSession(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneId.of("GMT+8")), ""), risk,
+        bands, new ClusterMembership(null, false, "test", "", "", 0, 0), standby);
+        lenient().when(bands.allowsFill(any(), anyLong())).thenReturn(true);
+        lenient().when(bands.sweepLimit(any(), any())).thenAnswer(invocation -> {
+            long limit = 0;
+            for (Long price : invocation.<Iterable<Long>>getArgument(1))
+                limit = price;
+            return limit;
+        });
+    }
         
     //assert that all mocks are used when given zero unprocessed trades
     @Test
@@ -89,63 +126,122 @@ public class TradeServiceTest {
         verify(tradeRepo).findByProcessed(false);       
     }
     
-    //assert that all mocks are used when there are no expired trades 
+    //assert that crossing unprocessed trades are filled at a single auction price
+    @Test
+    void processUnprocessedTrades_crossingTrades_fillAtAuctionPrice() {
+        Trade auctionBuy = new Trade(Long.valueOf(3), "buy", stock.getSymbol(), 200, 3.34, null, 0.0, 0, 1, account, customer, "open", false, 668.0);
+        Trade auctionSell = new Trade(Long.valueOf(4), "sell", stock.getSymbol(), 200, null, 3.30, 0.0, 0, 2, tonyAccount, newCustomer, "open", false, 0.0);
+        when(tradeRepo.findByProcessed(false)).thenReturn(new ArrayList<>(Arrays.asList(auctionSell, auctionBuy)));
+        when(stockRepo.findBySymbol(stock.getSymbol())).thenReturn(Optional.of(stock));
+
+        tradeSvc.processUnprocessedTrades();
+
+        assertEquals("filled", auctionBuy.getStatus());
+        assertEquals("filled", auctionSell.getStatus());
+        assertEquals(3.30, auctionBuy.getAvg_price(), 0.0001);
+        assertEquals(3.30, stock.getLast_price(), 0.0001);
+        assertEquals(true, auctionBuy.getProcessed());
+    }
+
+    // assert that the open does not wait for the session refresh, so that stops triggered by the
+    // auction are matched instead of queued
     @Test
-    void expireTrades_noExpiredTrades_usesAllMocks() {
-        List<Trade> expired = new ArrayList<Trade>();
+    void processUnprocessedTrades_sessionNotYetOpen_openBeforeAuction() {
+        MarketSession session = new MarketSession(Clock.fixed(Instant.parse("2020-11-09T00:59:59Z"), 
+        ZoneId.of("GMT+8")), "");
+        TradeService svc = new TradeService(tradeRepo, accountRepo, transferRepo, portfolioRepo, assetRepo, 
+        stockRepo, orderBooks, new MatchingEngine(null, 1, 16), new TradeJournal(false, null, 0), 
+        session, risk, bands, new ClusterMembership(null, false, "test", "", "", 0, 0), standby);
+        when(tradeRepo.findByProcessed(false)).thenReturn(new ArrayList<>());
 
-        when(tradeRepo.findByStatusIn(VALID_STATUSES)).thenReturn(expired);
+        svc.processUnprocessedTrades();
+
+        assertEquals(true, session.isOpen());
+    }
+
+    // assert that trades are expired with bulk statements instead of one trade at a time
+    @Test
+    void expireTrades_openTrades_expireInBulk() {
+        when(tradeRepo.expireAll(OPEN_STATUSES, NOW)).thenReturn(2);
 
         tradeSvc.expireTrades();
 
-        verify(tradeRepo).findByStatusIn(VALID_STATUSES);
+        verify(accountRepo).releaseReservations(OPEN_STATUSES, NOW);
+        verify(assetRepo).releaseReservations(OPEN_STATUSES, NOW);
+        verify(tradeRepo).expireAll(OPEN_STATUSES, NOW);
+        verify(tradeRepo, never()).findByStatusIn(any());
+        verify(accountRepo, never()).findById(any());
     }
 
-    // assert that all mocks are used when there are expired trades
+    // assert that accounts keeping good-till-date trades only get back what the expiring trades
+    // reserved, with a relative update
     @Test
-    void expireTrades_listOfExpiredTrades_usesAllMocks() {
-        List<Trade> trades = new ArrayList<>();
-        trades.add(buy);
-        trades.add(sell);
+    void expireTrades_goodTillDateTrades_releaseExpiringReservations() {
+        Trade day = new Trade((long) 10, "buy", "A17U", 200, 2.00, null, 0.0, 0, 1, account, customer, "open", true, 400.0);
+        Trade gtd = new Trade((long) 11, "buy", "A17U", 100, 2.00, null, 0.0, 0, 2, account, customer, "open", true, 200.0);
+        gtd.setExpiry(NOW + 60000);
+        when(tradeRepo.findByStatusInAndExpiryGreaterThan(OPEN_STATUSES, NOW)).thenReturn(Arrays.asList(gtd));
+        when(tradeRepo.findByAccountIdAndStatusIn(account.getId(), OPEN_STATUSES)).thenReturn(Arrays.asList(day, gtd));
 
-        when(tradeRepo.findByStatusIn(VALID_STATUSES)).thenReturn(trades);
-        when(accountRepo.findById(buy.getId())).thenReturn(Optional.of(account));
-        when(accountRepo.save(account)).thenReturn(account);
-        when(assetRepo.findByPortfolioCustomerIdAndCode(sell.getCustomer_id(), sell.getSymbol())).thenReturn(Optional.of(asset));
-        when(assetRepo.save(asset)).thenReturn(asset);
+        tradeSvc.expireTrades();
+
+        verify(accountRepo).adjustBalances(account.getId(), 0, 40000);
+        verify(accountRepo, never()).saveAll(any());
+    }
+
+    // assert that the close stops matching at once, even before the session is refreshed
+    @Test
+    void expireTrades_sessionStillOpen_stopMatching() {
+        Trade restingSell = new Trade((long) 12, "sell", "A17U", 200, null, 3.30, 0.0, 0, 1, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade lateBuy = new Trade((long) 13, "buy", "A17U", 200, 3.30, null, 0.0, 0, 2, account, customer, "open", false, 660.0);
+        when(tradeRepo.findBySymbolAndStatusIn("A17U", VALID_STATUSES)).thenReturn(Arrays.asList(restingSell));
 
         tradeSvc.expireTrades();
+        tradeSvc.makeTrade(lateBuy);
 
-        verify(tradeRepo).findByStatusIn(VALID_STATUSES);
-        verify(accountRepo).findById(buy.getId());
-        verify(accountRepo).save(account);
-        verify(assetRepo).findByPortfolioCustomerIdAndCode(sell.getCustomer_id(), sell.getSymbol());
-        verify(assetRepo).save(asset);
+        assertEquals(0, lateBuy.getFilled_quantity());
+        assertEquals(false, lateBuy.getProcessed());
+        verifyNoInteractions(transferRepo);
     }
-    
-    //assert that for sell trade, all mocks are used 
+
+    // assert that order books are discarded after expiry, so that expired trades do not rest
     @Test
-    void processExpiredTrade_SellTrade_usesAllMocks() { 
-        assets.add(asset);
-        when(assetRepo.findByPortfolioCustomerIdAndCode(sell.getCustomer_id(), sell.getSymbol())).thenReturn(Optional.of(asset));
-        when(assetRepo.save(asset)).thenReturn(asset);
+    void expireTrades_loadedBooks_evictBooks() {
+        orderBooks.getBook("A17U").add(buy);
 
-        tradeSvc.processExpiredTrade(sell);
+        tradeSvc.expireTrades();
 
-        verify(assetRepo).findByPortfolioCustomerIdAndCode(sell.getCustomer_id(), sell.getSymbol());
-        verify(assetRepo).save(asset);
+        assertEquals(0, orderBooks.getSymbols().size());
+    }
+    
+    // assert that expiring a sell trade returns only its remaining quantity to the asset
+    @Test
+    void processExpiredTrade_SellTrade_returnRemainingQuantity() { 
+        Trade partial = new Trade((long) 8, "sell", "A17U", 500, null, 3.30, 3.30, 200, 1, tonyAccount, newCustomer, "partial-filled", true, 0.0);
+        Asset held = new Asset((long) 3, "A17U", portfolio, 500, 0, 3.00, 1500);
+        assets.add(held);
+        when(tradeRepo.findById((long) 8)).thenReturn(Optional.of(partial));
+        when(portfolioRepo.findByCustomerId(newCustomer.getId())).thenReturn(Optional.of(portfolio));
+
+        tradeSvc.processExpiredTrade(partial);
+
+        assertEquals("expired", partial.getStatus());
+        assertEquals(300, held.getAvailable_quantity());
+        verify(assetRepo).saveAll(any());
+        verify(assetRepo, never()).save(any(Asset.class));
     } 
 
-    //assert that for buy trade, all mocks are used 
+    // assert that expiring a buy trade releases only its unspent reservation, relatively
     @Test
-    void processExpiredTrade_BuyTrade_usesAllMocks() { 
-        when(accountRepo.findById(buy.getAccount_id())).thenReturn(Optional.of(account));
-        when(accountRepo.save(account)).thenReturn(account);
+    void processExpiredTrade_BuyTrade_releaseRemainingFunds() { 
+        Trade partial = new Trade((long) 9, "buy", "A17U", 300, 3.00, null, 3.00, 100, 1, account, customer, "partial-filled", true, 900.0);
+        when(tradeRepo.findById((long) 9)).thenReturn(Optional.of(partial));
 
-        tradeSvc.processExpiredTrade(buy);
+        tradeSvc.processExpiredTrade(partial);
         
-        verify(accountRepo).findById(buy.getAccount_id());
-        verify(accountRepo).save(account);
+        assertEquals("expired", partial.getStatus());
+        verify(accountRepo).adjustBalances(account.getId(), 0, 60000);
+        verify(accountRepo, never()).save(any(Account.class));
     } 
 
     @Test
@@ -210,28 +306,27 @@ public class TradeServiceTest {
     void getLowestAskTradeForStock_validStock_returnLowestAskTrade() {
         List<Trade> validTrades = new ArrayList<Trade>();
         validTrades.add(sell);
-        String action = "sell";
         String symbol = sell.getSymbol();
-        when(tradeRepo.findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES)).thenReturn(validTrades);
+        when(tradeRepo.findBySymbolAndStatusIn(symbol, VALID_STATUSES)).thenReturn(validTrades);
+        when(tradeRepo.findById(sell.getId())).thenReturn(Optional.of(sell));
 
         Trade returned = tradeSvc.getLowestAskTradeForStock(symbol);
 
         assertEquals(returned, sell);
-        verify(tradeRepo).findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES);
+        verify(tradeRepo).findBySymbolAndStatusIn(symbol, VALID_STATUSES);
     }
 
     @Test
     void getLowestAskTradeForStock_invalidStock_returnNull() {
         List<Trade> invalidTrades = new ArrayList<Trade>();
-        String action = "sell";
         String symbol = "invalidStock";
         
-        when(tradeRepo.findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES)).thenReturn(invalidTrades);
+        when(tradeRepo.findBySymbolAndStatusIn(symbol, VALID_STATUSES)).thenReturn(invalidTrades);
         
         Trade returned = tradeSvc.getLowestAskTradeForStock(symbol);
 
         assertNull(returned);
-        verify(tradeRepo).findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES);
+        verify(tradeRepo).findBySymbolAndStatusIn(symbol, VALID_STATUSES);
     }
 
     @Test
@@ -239,15 +334,14 @@ public class TradeServiceTest {
         List<Trade> found = new ArrayList<Trade>();
         sell.setAsk(0.0);
         found.add(sell);
-        String action = "sell";
         String symbol = sell.getSymbol();
         
-        when(tradeRepo.findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES)).thenReturn(found);
+        when(tradeRepo.findBySymbolAndStatusIn(symbol, VALID_STATUSES)).thenReturn(found);
 
         Trade returned = tradeSvc.getLowestAskTradeForStock(symbol);
 
         assertNull(returned);
-        verify(tradeRepo).findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES);
+        verify(tradeRepo).findBySymbolAndStatusIn(symbol, VALID_STATUSES);
     }
 
     @Test
@@ -255,28 +349,27 @@ public class TradeServiceTest {
         List<Trade> validTrades = new ArrayList<Trade>();
         buy.setBid(10.0);
         validTrades.add(buy);
-        String action = "buy";
         String symbol = buy.getSymbol();
-        when(tradeRepo.findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES)).thenReturn(validTrades);
+        when(tradeRepo.findBySymbolAndStatusIn(symbol, VALID_STATUSES)).thenReturn(validTrades);
+        when(tradeRepo.findById(buy.getId())).thenReturn(Optional.of(buy));
         Trade returned = tradeSvc.getHighestBidTradeForStock(symbol);
         
         assertEquals(returned, buy);
-        verify(tradeRepo).findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES);
+        verify(tradeRepo).findBySymbolAndStatusIn(symbol, VALID_STATUSES);
 
     } 
 
     @Test
     void getHighestBidTradeForStock_invalidStock_returnNull() {
         List<Trade> invalidTrades = new ArrayList<Trade>();
-        String action = "buy";
         String symbol = "invalidStock";
         
-        when(tradeRepo.findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES)).thenReturn(invalidTrades);
+        when(tradeRepo.findBySymbolAndStatusIn(symbol, VALID_STATUSES)).thenReturn(invalidTrades);
         
         Trade returned = tradeSvc.getHighestBidTradeForStock(symbol);
 
         assertNull(returned);
-        verify(tradeRepo).findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES);
+        verify(tradeRepo).findBySymbolAndStatusIn(symbol, VALID_STATUSES);
     }
 
     @Test
@@ -284,15 +377,14 @@ public class TradeServiceTest {
         List<Trade> found = new ArrayList<Trade>();
         buy.setBid(0.0);
         found.add(buy);
-        String action = "buy";
         String symbol = buy.getSymbol();
         
-        when(tradeRepo.findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES)).thenReturn(found);
+        when(tradeRepo.findBySymbolAndStatusIn(symbol, VALID_STATUSES)).thenReturn(found);
 
         Trade returned = tradeSvc.getHighestBidTradeForStock(symbol);
 
         assertNull(returned);
-        verify(tradeRepo).findByActionAndSymbolAndStatusIn(action, symbol, VALID_STATUSES);
+        verify(tradeRepo).findBySymbolAndStatusIn(symbol, VALID_STATUSES);
     }
 
     @Test
@@ -313,6 +405,314 @@ public class TradeServiceTest {
         verify(stockRepo).findBySymbol(sell.getSymbol());
     }
 
+    // assert that cancelling several trades releases their unspent reservations in one update
+    @Test
+    void processCancelTrades_openAndPartialTrades_releaseReservationsOnce() {
+        Account acc = new Account((long) 1, customer, customer.getId(), 1000.00, 200.00);
+        Trade open = new Trade((long) 5, "buy", "A17U", 200, 2.00, null, 0.0, 0, 1, acc, customer, "open", true, 400.0);
+        Trade partial = new Trade((long) 6, "buy", "A17U", 200, 2.00, null, 2.00, 100, 2, acc, customer, "partial-filled", true, 400.0);
+        Trade filled = new Trade((long) 7, "buy", "A17U", 200, 2.00, null, 2.00, 200, 3, acc, customer, "filled", true, 400.0);
+        List<Trade> trades = Arrays.asList(open, partial, filled);
+
+        when(tradeRepo.findAllById(Arrays.asList((long) 5, (long) 6, (long) 7))).thenReturn(trades);
+
+        List<Trade> cancelled = tradeSvc.processCancelTrades(trades);
+
+        assertEquals(Arrays.asList(open, partial), cancelled);
+        assertEquals("cancelled", partial.getStatus());
+        assertEquals("filled", filled.getStatus());
+        verify(accountRepo).adjustBalances(acc.getId(), 0, 60000);
+        verify(accountRepo, never()).saveAll(any());
+        verify(tradeRepo).saveAll(any());
+    }
+
+    // assert that a quantity decrease keeps time priority, and a price change loses it
+    @Test
+    void processAmendTrade_quantityThenPrice_keepThenLosePriority() {
+        Trade first = new Trade((long) 10, "sell", "A17U", 500, null, 3.30, 0.0, 0, 1, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade second = new Trade((long) 11, "sell", "A17U", 500, null, 3.30, 0.0, 0, 2, account, customer, "open", true, 0.0);
+        Asset held = new Asset((long) 3, "A17U", portfolio, 1000, 0, 3.00, 3000);
+        assets.add(held);
+        OrderBook book = orderBooks.getBook("A17U");
+        book.add(first);
+        book.add(second);
+
+        when(tradeRepo.findById((long) 10)).thenReturn(Optional.of(first));
+        when(portfolioRepo.findByCustomerId(newCustomer.getId())).thenReturn(Optional.of(portfolio));
+
+        tradeSvc.processAmendTrade(first, 300, Price.toTicks(3.30));
+        assertEquals(10, book.bestAsk());
+        assertEquals(300, book.getRemaining(10));
+        assertEquals(200, held.getAvailable_quantity());
+        verify(assetRepo).saveAll(any());
+        verify(assetRepo, never()).save(any(Asset.class));
+
+        tradeSvc.processAmendTrade(first, 300, Price.toTicks(3.28));
+        tradeSvc.processAmendTrade(first, 300, Price.toTicks(3.30));
+        assertEquals(11, book.bestAsk());
+        assertEquals(3300, book.getPriceTicks(10));
+    }
+
+    // assert that a stop trade waits outside the order book until a fill reaches its stop price
+    @Test
+    void makeTrade_stopTrade_holdUntilTriggered() {
+        Trade stopSell = new Trade((long) 12, "sell", "A17U", 200, null, 0.0, 0.0, 0, 1, tonyAccount, newCustomer, "open", false, 0.0);
+        stopSell.setStop(3.20);
+        Trade restingBuy = new Trade((long) 13, "buy", "A17U", 400, 3.20, null, 0.0, 0, 2, account, customer, "open", true, 1280.0);
+        Trade sellAtStop = new Trade((long) 14, "sell", "A17U", 200, null, 3.20, 0.0, 0, 3, tonyAccount, newCustomer, "open", false, 0.0);
+        orderBooks.getBook("A17U").add(restingBuy);
+        when(stockRepo.findBySymbol("A17U")).thenReturn(Optional.of(stock));
+        when(tradeRepo.findById((long) 12)).thenReturn(Optional.of(stopSell));
+        when(tradeRepo.findById((long) 13)).thenReturn(Optional.of(restingBuy));
+
+        tradeSvc.makeTrade(stopSell);
+        assertEquals("pending", stopSell.getStatus());
+        assertEquals(1, orderBooks.getStops("A17U").size());
+
+        tradeSvc.makeTrade(sellAtStop);
+        assertEquals("filled", sellAtStop.getStatus());
+        assertEquals("filled", stopSell.getStatus());
+        assertEquals("filled", restingBuy.getStatus());
+        assertEquals(0, orderBooks.getStops("A17U").size());
+    }
+
+    // assert that an immediate-or-cancel trade fills what it can and cancels the rest
+    @Test
+    void makeTrade_iocTrade_cancelUnfilledQuantity() {
+        Trade restingSell = new Trade((long) 20, "sell", "A17U", 200, null, 3.30, 0.0, 0, 1, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade ioc = new Trade((long) 21, "buy", "A17U", 500, 3.30, null, 0.0, 0, 2, account, customer, "open", false, 1650.0);
+        ioc.setTime_in_force("ioc");
+        orderBooks.getBook("A17U").add(restingSell);
+        when(stockRepo.findBySymbol("A17U")).thenReturn(Optional.of(stock));
+        when(tradeRepo.findById((long) 20)).thenReturn(Optional.of(restingSell));
+
+        tradeSvc.makeTrade(ioc);
+
+        assertEquals("cancelled", ioc.getStatus());
+        assertEquals(200, ioc.getFilled_quantity());
+        assertEquals(0, orderBooks.getBook("A17U").size());
+        verify(accountRepo).adjustBalances(account.getId(), -66000, 99000);
+    }
+
+    // assert that a fill-or-kill trade that the book cannot fill in full is cancelled untouched
+    @Test
+    void makeTrade_fokTradeThinBook_cancelWithoutFills() {
+        Trade restingSell = new Trade((long) 20, "sell", "A17U", 200, null, 3.30, 0.0, 0, 1, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade fok = new Trade((long) 21, "buy", "A17U", 500, 3.30, null, 0.0, 0, 2, account, customer, "open", false, 1650.0);
+        fok.setTime_in_force("fok");
+        orderBooks.getBook("A17U").add(restingSell);
+
+        tradeSvc.makeTrade(fok);
+
+        assertEquals("cancelled", fok.getStatus());
+        assertEquals(0, fok.getFilled_quantity());
+        assertEquals(200, orderBooks.getBook("A17U").getRemaining(20));
+        verify(accountRepo).adjustBalances(account.getId(), 0, 165000);
+        verify(transferRepo, never()).saveAll(any());
+    }
+
+    // assert that a fill-or-kill trade is cancelled untouched if filling it in full would breach
+    // the price bands part-way through the sweep
+    @Test
+    void makeTrade_fokTradeSweepBreachesBands_cancelWithoutFills() {
+        Trade nearSell = new Trade((long) 22, "sell", "A17U", 200, null, 3.30, 0.0, 0, 1, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade farSell = new Trade((long) 23, "sell", "A17U", 300, null, 3.50, 0.0, 0, 2, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade fok = new Trade((long) 24, "buy", "A17U", 500, 3.50, null, 0.0, 0, 3, account, customer, "open", false, 1750.0);
+        fok.setTime_in_force("fok");
+        orderBooks.getBook("A17U").add(nearSell);
+        orderBooks.getBook("A17U").add(farSell);
+        when(bands.sweepLimit(eq("A17U"), any())).thenReturn(Price.toTicks(3.30));
+
+        tradeSvc.makeTrade(fok);
+
+        assertEquals("cancelled", fok.getStatus());
+        assertEquals(0, fok.getFilled_quantity());
+        assertEquals(200, orderBooks.getBook("A17U").getRemaining(22));
+        verify(bands, never()).allowsFill(any(), anyLong());
+        verify(transferRepo, never()).saveAll(any());
+    }
+
+    // assert that the reservation made in the risk cache is written with the trade's unit of work
+    @Test
+    void makeTrade_reservationPending_writeAndSettleReservation() {
+        Trade restingSell = new Trade((long) 20, "sell", "A17U", 200, null, 3.30, 0.0, 0, 1, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade fok = new Trade((long) 21, "buy", "A17U", 500, 3.30, null, 0.0, 0, 2, account, customer, "open", false, 1650.0);
+        fok.setTime_in_force("fok");
+        fok.setReservationPending(true);
+        orderBooks.getBook("A17U").add(restingSell);
+
+        tradeSvc.makeTrade(fok);
+
+        assertEquals(false, fok.isReservationPending());
+        verify(accountRepo).adjustBalances(account.getId(), 0, 0);
+        verify(risk).settleFunds(account.getId(), 165000);
+        verify(risk).invalidateAccount(account.getId());
+    }
+
+    // assert that a trade whose next fill would breach the price bands is cancelled unfilled
+    @Test
+    void makeTrade_fillBreachesPriceBands_cancelRemainder() {
+        Trade restingSell = new Trade((long) 20, "sell", "A17U", 200, null, 3.30, 0.0, 0, 1, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade buyTrade = new Trade((long) 21, "buy", "A17U", 500, 3.30, null, 0.0, 0, 2, account, customer, "open", false, 1650.0);
+        orderBooks.getBook("A17U").add(restingSell);
+        when(tradeRepo.findById((long) 20)).thenReturn(Optional.of(restingSell));
+        when(bands.allowsFill("A17U", Price.toTicks(3.30))).thenReturn(false);
+        when(bands.isHalted("A17U")).thenReturn(false, true);
+
+        tradeSvc.makeTrade(buyTrade);
+
+        assertEquals("cancelled", buyTrade.getStatus());
+        assertEquals(0, buyTrade.getFilled_quantity());
+        assertEquals(200, orderBooks.getBook("A17U").getRemaining(20));
+        verify(accountRepo).adjustBalances(account.getId(), 0, 165000);
+    }
+
+    // assert that the books are discarded when the writes of a match fail, so that fills that 
+    // were rolled back do not stay in memory
+    @Test
+    void makeTrade_writeFails_discardBooks() {
+        Trade restingSell = new Trade((long) 20, "sell", "A17U", 200, null, 3.30, 0.0, 0, 1, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade buyTrade = new Trade((long) 21, "buy", "A17U", 200, 3.30, null, 0.0, 0, 2, account, customer, "open", false, 660.0);
+        orderBooks.getBook("A17U").add(restingSell);
+        when(tradeRepo.findById((long) 20)).thenReturn(Optional.of(restingSell));
+        when(stockRepo.findBySymbol("A17U")).thenReturn(Optional.of(stock));
+        when(transferRepo.saveAll(any())).thenThrow(new IllegalStateException("Database unavailable"));
+
+        assertThrows(IllegalStateException.class, () -> tradeSvc.makeTrade(buyTrade));
+
+        assertEquals(0, orderBooks.getSymbols().size());
+        verify(bands).restore("A17U");
+    }
+
+    // assert that a new trade whose match fails is rejected, so that the rebuilt book does not
+    // load it without its reservation
+    @Test
+    void makeTrade_writeFails_rejectNewTrade() {
+        Trade restingSell = new Trade((long) 20, "sell", "A17U", 200, null, 3.30, 0.0, 0, 1, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade buyTrade = new Trade((long) 21, "buy", "A17U", 200, 3.30, null, 0.0, 0, 2, account, customer, "open", false, 660.0);
+        buyTrade.setReservationPending(true);
+        orderBooks.getBook("A17U").add(restingSell);
+        when(tradeRepo.findById((long) 20)).thenReturn(Optional.of(restingSell));
+        when(stockRepo.findBySymbol("A17U")).thenReturn(Optional.of(stock));
+        when(transferRepo.saveAll(any())).thenThrow(new IllegalStateException("Database unavailable"));
+
+        assertThrows(IllegalStateException.class, () -> tradeSvc.makeTrade(buyTrade));
+
+        assertEquals("rejected", buyTrade.getStatus());
+        verify(tradeRepo).rejectAll(Arrays.asList((long) 21), OPEN_STATUSES);
+        verify(risk).settleFunds(account.getId(), 66000);
+        verify(risk, never()).releaseFunds(any(), anyLong());
+    }
+
+    // assert that in a cluster, a buy trade whose funds were reserved by another node meanwhile
+    // is rejected by the database instead of overdrawing the account
+    @Test
+    void makeTrade_clusterFundsReservedElsewhere_rejectTrade() {
+        TradeService svc = new TradeService(tradeRepo, accountRepo, transferRepo, portfolioRepo, assetRepo, 
+        stockRepo, orderBooks, new MatchingEngine(null, 1, 16), new TradeJournal(false, null, 0), 
+        new MarketSession(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneId.of("GMT+8")), ""), risk,
+        bands, new ClusterMembership(null, true, "test", "", "", 0, 0), standby);
+        Trade restingSell = new Trade((long) 20, "sell", "A17U", 200, null, 3.30, 0.0, 0, 1, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade buyTrade = new Trade((long) 21, "buy", "A17U", 200, 3.30, null, 0.0, 0, 2, account, customer, "open", false, 660.0);
+        buyTrade.setReservationPending(true);
+        orderBooks.getBook("A17U").add(restingSell);
+        when(accountRepo.reserveFunds(account.getId(), 66000)).thenReturn(0);
+
+        svc.makeTrade(buyTrade);
+
+        assertEquals("rejected", buyTrade.getStatus());
+        assertEquals(0, buyTrade.getFilled_quantity());
+        assertEquals(200, orderBooks.getBook("A17U").getRemaining(20));
+        verify(risk).releaseFunds(account.getId(), 66000);
+        verify(risk, never()).settleFunds(any(), anyLong());
+        verify(tradeRepo).saveAll(any());
+        verifyNoInteractions(transferRepo);
+    }
+
+    // assert that journal records are only appended once the writes of a match succeed
+    @Test
+    void makeTrade_writeFails_journalNothing(@TempDir Path dir) {
+        TradeJournal journal = new TradeJournal(true, dir.resolve("trades.journal").toString(), 1000);
+        TradeService svc = new TradeService(tradeRepo, accountRepo, transferRepo, portfolioRepo, assetRepo, 
+        stockRepo, orderBooks, new MatchingEngine(null, 1, 16), journal, 
+        new MarketSession(Clock.fixed(Instant.ofEpochMilli(NOW), ZoneId.of("GMT+8")), ""), risk,
+        bands, new ClusterMembership(null, false, "test", "", "", 0, 0), standby);
+        Trade restingSell = new Trade((long) 20, "sell", "A17U", 200, null, 3.30, 0.0, 0, 1, tonyAccount, newCustomer, "open", true, 0.0);
+        Trade first = new Trade((long) 21, "buy", "A17U", 100, 3.30, null, 0.0, 0, 2, account, customer, "open", false, 330.0);
+        Trade second = new Trade((long) 22, "buy", "A17U", 100, 3.30, null, 0.0, 0, 3, account, customer, "open", false, 330.0);
+        orderBooks.getBook("A17U").add(restingSell);
+        when(tradeRepo.findById((long) 20)).thenReturn(Optional.of(restingSell));
+        when(stockRepo.findBySymbol("A17U")).thenReturn(Optional.of(stock));
+        when(transferRepo.saveAll(any())).thenReturn(null)
+            .thenThrow(new IllegalStateException("Database unavailable"));
+
+        svc.makeTrade(first);
+        assertEquals(2, journal.getLastSeq());
+
+        assertThrows(IllegalStateException.class, () -> svc.makeTrade(second));
+        assertEquals(2, journal.getLastSeq());
+        journal.close();
+    }
+
+    // assert that a good-till-date trade is expired once its expiry passes, releasing its funds
+    @Test
+    void expireDueTrades_expiryPassed_expireTrade() {
+        Trade gtd = new Trade((long) 22, "buy", "A17U", 200, 3.00, null, 0.0, 0, 1, account, customer, "open", true, 600.0);
+        gtd.setExpiry(NOW - 1000);
+        orderBooks.getBook("A17U").add(gtd);
+        orderBooks.getExpiries("A17U", NOW - 5000).schedule(gtd.getId(), gtd.getExpiry());
+        when(tradeRepo.findById((long) 22)).thenReturn(Optional.of(gtd));
+
+        tradeSvc.expireDueTrades();
+
+        assertEquals("expired", gtd.getStatus());
+        assertEquals(0, orderBooks.getBook("A17U").size());
+        verify(accountRepo).adjustBalances(account.getId(), 0, 60000);
+    }
+
+    // assert that the entities modified by a fill are written with one saveAll() per repository
+    @Test
+    void fillTrades_validTrades_writeEntitiesInBatches() {
+        when(stockRepo.findBySymbol(stock.getSymbol())).thenReturn(Optional.of(stock));
+
+        tradeSvc.fillTrades(buy, sell, sell.getAsk(), 100);
+
+        verify(tradeRepo).saveAll(any());
+        verify(transferRepo).saveAll(any());
+        verify(stockRepo).saveAll(any());
+        verify(tradeRepo, never()).save(any(Trade.class));
+        verify(accountRepo, never()).save(any(Account.class));
+    }
+
+    // assert that fills change account balances relative to the database, so that fills on other
+    // matching threads are not overwritten
+    @Test
+    void fillTrades_validTrades_adjustBalancesRelatively() {
+        when(stockRepo.findBySymbol(stock.getSymbol())).thenReturn(Optional.of(stock));
+
+        tradeSvc.fillTrades(buy, sell, 3.33, 100);
+
+        verify(accountRepo).adjustBalances(account.getId(), -33300, 0);
+        verify(accountRepo).adjustBalances(tonyAccount.getId(), 33300, 33300);
+        verify(accountRepo, never()).saveAll(any());
+        assertEquals(1000.00, account.getBalance(), 0.001);
+    }
+
+    // assert that the funds left on a buy trade are its reservation less what each fill paid
+    @Test
+    void fillTrades_severalFills_amtRemainingExact() {
+        Trade partialBuy = new Trade(Long.valueOf(5), "buy", stock.getSymbol(), 300, 0.335, null, 0.0, 0, 1, account, customer, "open", true, 100.50);
+        Trade bigSell = new Trade(Long.valueOf(6), "sell", stock.getSymbol(), 300, null, 0.331, 0.0, 0, 2, tonyAccount, newCustomer, "open", true, 0.0);
+        when(stockRepo.findBySymbol(stock.getSymbol())).thenReturn(Optional.of(stock));
+
+        tradeSvc.fillTrades(partialBuy, bigSell, 0.331, 100);
+        tradeSvc.fillTrades(partialBuy, bigSell, 0.333, 100);
+        tradeSvc.fillTrades(partialBuy, bigSell, 0.334, 100);
+
+        assertEquals(9980, partialBuy.getAmtSpentCents());
+        assertEquals(70, partialBuy.getAmtRemainingCents());
+    }
+
     @Test
     void fillTrades_sameBuyerAndSeller_tradesStatusOpen() {
         sell.setAccount(account);
@@ -325,25 +725,79 @@ public class TradeServiceTest {
         assertEquals(sell.getStatus(), "open");
     }
 
-    @Test 
-    void processCancelTrade_sellingTrade_statusChanged() {
-        when(assetRepo.findByPortfolioCustomerIdAndCode(sell.getCustomer_id(), sell.getSymbol())).thenReturn(Optional.of(asset));
+    // assert that customers are compared by value, so that ids outside the Long cache are matched
+    @Test
+    void fillTrades_sameCustomerLargeId_tradesStatusOpen() {
+        buy.setCustomer_id(Long.valueOf(1000));
+        sell.setCustomer_id(Long.valueOf(1000));
 
-        tradeSvc.processCancelTrade(sell);
+        tradeSvc.fillTrades(buy, sell, sell.getAsk(), 100);
 
-        assertEquals("cancelled", sell.getStatus());
-        verify(assetRepo).findByPortfolioCustomerIdAndCode(sell.getCustomer_id(), sell.getSymbol());
+        assertEquals("open", buy.getStatus());
+        assertEquals("open", sell.getStatus());
+        verifyNoInteractions(transferRepo);
     }
 
+    // assert that cancelling a sell trade returns only its remaining quantity to the asset
+    @Test 
+    void processCancelTrade_sellingTrade_statusChanged() {
+        Trade partial = new Trade((long) 30, "sell", "A17U", 500, null, 3.30, 3.30, 200, 1, tonyAccount, newCustomer, "partial-filled", true, 0.0);
+        Asset held = new Asset((long) 3, "A17U", portfolio, 500, 0, 3.00, 1500);
+        assets.add(held);
+        when(tradeRepo.findById((long) 30)).thenReturn(Optional.of(partial));
+        when(portfolioRepo.findByCustomerId(newCustomer.getId())).thenReturn(Optional.of(portfolio));
+
+        Trade cancelled = tradeSvc.processCancelTrade(partial);
+
+        assertEquals("cancelled", cancelled.getStatus());
+        assertEquals(300, held.getAvailable_quantity());
+        verify(assetRepo).saveAll(any());
+        verify(assetRepo, never()).save(any(Asset.class));
+    }
+
+    // assert that cancelling a buy trade releases only its unspent reservation, relatively
     @Test 
     void processCancelTrade_buyingTrade_statusChanged() {
-        Optional<Account> found = Optional.of(account);
-        when(accountRepo.findById(buy.getCustomer_id())).thenReturn(found);
+        Trade partial = new Trade((long) 31, "buy", "A17U", 300, 3.00, null, 3.00, 100, 1, account, customer, "partial-filled", true, 900.0);
+        when(tradeRepo.findById((long) 31)).thenReturn(Optional.of(partial));
+
+        Trade cancelled = tradeSvc.processCancelTrade(partial);
 
-        tradeSvc.processCancelTrade(buy);
+        assertEquals("cancelled", cancelled.getStatus());
+        verify(accountRepo).adjustBalances(account.getId(), 0, 60000);
+        verify(accountRepo, never()).save(any(Account.class));
+    }
+
+    // assert that a trade filled after it was read for cancellation is left as it is
+    @Test
+    void processCancelTrade_filledSinceRead_keepFills() {
+        Trade read = new Trade((long) 32, "buy", "A17U", 200, 3.00, null, 0.0, 0, 1, account, customer, "open", true, 600.0);
+        Trade current = new Trade((long) 32, "buy", "A17U", 200, 3.00, null, 3.00, 200, 1, account, customer, "filled", true, 600.0);
+        when(tradeRepo.findById((long) 32)).thenReturn(Optional.of(current));
+
+        Trade result = tradeSvc.processCancelTrade(read);
 
-        assertEquals("cancelled", buy.getStatus());
-        verify(accountRepo).findById(buy.getCustomer_id());
+        assertEquals("filled", result.getStatus());
+        assertEquals(200, result.getFilled_quantity());
+        verify(accountRepo, never()).adjustBalances(any(), anyLong(), anyLong());
+        verify(tradeRepo, never()).saveAll(any());
+    }
+
+    // assert that the quote is saved through the unit of work on the stock's matching thread
+    @Test
+    void updateQuote_restingBuy_saveQuoteOnMatchingThread() {
+        Stock quoted = new Stock("A17U", 3.23, 500, 3.33, 500, 3.35);
+        Trade restingBuy = new Trade((long) 30, "buy", "A17U", 400, 3.30, null, 0.0, 0, 1, account, customer, "open", true, 1320.0);
+        orderBooks.getBook("A17U").add(restingBuy);
+        when(stockRepo.findBySymbol("A17U")).thenReturn(Optional.of(quoted));
+
+        assertEquals(quoted, tradeSvc.updateQuote("A17U"));
+        assertEquals(400, quoted.getBid_volume());
+        assertEquals(3300, quoted.getBidTicks());
+        assertEquals(0, quoted.getAsk_volume());
+        assertEquals(3230, quoted.getAskTicks());
+        verify(stockRepo).saveAll(any());
+        verify(stockRepo, never()).save(any(Stock.class));
     }
 
-}
\ No newline at end of file
+}